@@ -11,8 +11,10 @@ import java.util.Vector;
 
 import com.trilead.ssh2.auth.AuthenticationManager;
 import com.trilead.ssh2.channel.ChannelManager;
+import com.trilead.ssh2.channel.ForwardingEngine;
 import com.trilead.ssh2.crypto.CryptoWishList;
 import com.trilead.ssh2.crypto.cipher.BlockCipherFactory;
+import com.trilead.ssh2.crypto.dh.DhKeyPairPool;
 import com.trilead.ssh2.crypto.digest.MAC;
 import com.trilead.ssh2.log.Logger;
 import com.trilead.ssh2.packets.PacketIgnore;
@@ -100,6 +102,26 @@ public class Connection {
 
 	private boolean tcpNoDelay = false;
 
+	private boolean transportWriterThread = false;
+
+	private boolean socketChannelTransport = false;
+
+	private boolean receivePipeline = false;
+
+	private int maxChannelWindowSize = 30000;
+
+	private int forwardingEngineThreads = 0;
+
+	private long writeCoalescingDelay = 0;
+
+	private long channelOpenTimeout = 0;
+	private long channelIdleTimeout = 0;
+	private long channelHalfCloseTimeout = 0;
+
+	private long rekeyBytes = 0;
+	private long rekeyPackets = 0;
+	private long rekeyInterval = 0;
+
 	private ProxyData proxyData = null;
 
 	private Vector<ConnectionMonitor> connectionMonitors = new Vector<ConnectionMonitor>();
@@ -202,7 +224,7 @@ public class Connection {
 			am = new AuthenticationManager(tm);
 
 		if (cm == null)
-			cm = new ChannelManager(tm);
+			cm = createChannelManager();
 
 		if (user == null)
 			throw new IllegalArgumentException("user argument is null");
@@ -286,7 +308,7 @@ public class Connection {
 			am = new AuthenticationManager(tm);
 
 		if (cm == null)
-			cm = new ChannelManager(tm);
+			cm = createChannelManager();
 
 		if (user == null)
 			throw new IllegalArgumentException("user argument is null");
@@ -335,7 +357,7 @@ public class Connection {
 			am = new AuthenticationManager(tm);
 
 		if (cm == null)
-			cm = new ChannelManager(tm);
+			cm = createChannelManager();
 
 		if (user == null)
 			throw new IllegalArgumentException("user argument is null");
@@ -387,7 +409,7 @@ public class Connection {
 			am = new AuthenticationManager(tm);
 
 		if (cm == null)
-			cm = new ChannelManager(tm);
+			cm = createChannelManager();
 
 		if (user == null)
 			throw new IllegalArgumentException("user argument is null");
@@ -457,7 +479,7 @@ public class Connection {
 			am = new AuthenticationManager(tm);
 
 		if (cm == null)
-			cm = new ChannelManager(tm);
+			cm = createChannelManager();
 
 		if (user == null)
 			throw new IllegalArgumentException("user argument is null");
@@ -560,7 +582,7 @@ public class Connection {
 			am = new AuthenticationManager(tm);
 
 		if (cm == null)
-			cm = new ChannelManager(tm);
+			cm = createChannelManager();
 
 		if (user == null)
 			throw new IllegalArgumentException("user argument is null");
@@ -756,6 +778,10 @@ public class Connection {
 		final TimeoutState state = new TimeoutState();
 
 		tm = new TransportManager(hostname, port);
+		tm.setWriterThreadEnabled(transportWriterThread);
+		tm.setSocketChannelEnabled(socketChannelTransport);
+		tm.setReceivePipelineEnabled(receivePipeline);
+		tm.setRekeyThresholds(rekeyBytes, rekeyPackets, rekeyInterval);
 
 		tm.setConnectionMonitors(connectionMonitors);
 
@@ -805,6 +831,10 @@ public class Connection {
 						timeoutHandler);
 			}
 
+			/* Have the client's DH key pair ready by the time the kex needs it */
+
+			DhKeyPairPool.prefill(getOrCreateSecureRND());
+
 			try {
 				tm.initialize(cryptoWishList, verifier, dhgexpara,
 						connectTimeout, getOrCreateSecureRND(), proxyData);
@@ -1088,7 +1118,8 @@ public class Connection {
 	 * next (server driven) key exchange.
 	 * <p>
 	 * Note: This implementation will never start a key exchange (other than the
-	 * initial one) unless you or the SSH-2 server ask for it.
+	 * initial one) unless you or the SSH-2 server ask for it, or a threshold
+	 * set with {@link #setRekeyThresholds(long, long, long)} is reached.
 	 * 
 	 * @throws IOException
 	 *             In case of any failure behind the scenes.
@@ -1101,6 +1132,89 @@ public class Connection {
 		tm.forceKeyExchange(cryptoWishList, dhgexpara);
 	}
 
+	/**
+	 * Starts a key exchange automatically once the given amount of data has
+	 * been sent or received with the current keys, or once the given time
+	 * has passed since the last key exchange. RFC 4253 recommends a new key
+	 * exchange after each gigabyte of data or after each hour. 0 disables a
+	 * threshold; the default is 0 for all of them.
+	 * <p>
+	 * During a key exchange, data written to channels is queued (up to 1 MB)
+	 * and sent right after the new keys are in place.
+	 * 
+	 * @param bytes
+	 *            max. bytes per direction.
+	 * @param packets
+	 *            max. packets per direction.
+	 * @param intervalMillis
+	 *            max. time between two key exchanges, in milliseconds.
+	 */
+	public synchronized void setRekeyThresholds(long bytes, long packets,
+			long intervalMillis) {
+		if ((bytes < 0) || (packets < 0) || (intervalMillis < 0))
+			throw new IllegalArgumentException(
+					"Thresholds must not be negative");
+
+		rekeyBytes = bytes;
+		rekeyPackets = packets;
+		rekeyInterval = intervalMillis;
+
+		if (tm != null)
+			tm.setRekeyThresholds(bytes, packets, intervalMillis);
+	}
+
+	/**
+	 * @return number of key exchanges after the initial one.
+	 */
+	public synchronized int getRekeyCount() {
+		if (tm == null)
+			throw new IllegalStateException(
+					"You need to establish a connection first.");
+
+		return tm.getRekeyCount();
+	}
+
+	/**
+	 * Channel data is held back while a key exchange is running. This
+	 * returns how long that was the case during the last key exchange (the
+	 * initial one is not counted).
+	 * 
+	 * @return the time in milliseconds, 0 if there was no key exchange yet.
+	 */
+	public synchronized long getLastRekeyStallMillis() {
+		if (tm == null)
+			throw new IllegalStateException(
+					"You need to establish a connection first.");
+
+		return tm.getLastRekeyStallMillis();
+	}
+
+	/**
+	 * @return the longest time, in milliseconds, channel data was held back
+	 *         by a key exchange.
+	 * @see #getLastRekeyStallMillis()
+	 */
+	public synchronized long getMaxRekeyStallMillis() {
+		if (tm == null)
+			throw new IllegalStateException(
+					"You need to establish a connection first.");
+
+		return tm.getMaxRekeyStallMillis();
+	}
+
+	/**
+	 * @return the total time, in milliseconds, channel data was held back by
+	 *         key exchanges.
+	 * @see #getLastRekeyStallMillis()
+	 */
+	public synchronized long getTotalRekeyStallMillis() {
+		if (tm == null)
+			throw new IllegalStateException(
+					"You need to establish a connection first.");
+
+		return tm.getTotalRekeyStallMillis();
+	}
+
 	/**
 	 * Returns a {@link ConnectionInfo} object containing the details of the
 	 * connection. Can be called as soon as the connection has been established
@@ -1183,7 +1297,7 @@ public class Connection {
 			am = new AuthenticationManager(tm);
 
 		if (cm == null)
-			cm = new ChannelManager(tm);
+			cm = createChannelManager();
 
 		return am.getRemainingMethods(user);
 	}
@@ -1610,4 +1724,218 @@ public class Connection {
 		if (tm != null)
 			tm.setTcpNoDelay(enable);
 	}
+
+	/**
+	 * Sets the limit for the receive window of each channel. Windows start at
+	 * 30000 bytes and are doubled automatically while a channel is limited by
+	 * its window rather than by the network (e.g., a download over a link
+	 * with a long round trip time), until they reach this size. Receive
+	 * buffers grow along with the window, so the limit should fit the number
+	 * of channels the application keeps open. Passing 30000 or less disables
+	 * the auto-tuning, this is the default.
+	 * <p>
+	 * Can be called at any time, it affects the next window adjustments of
+	 * all channels.
+	 * 
+	 * @param size
+	 *            maximum window size in bytes
+	 */
+	public synchronized void setMaxChannelWindowSize(int size) {
+		if ((size < 0) || (size > (Integer.MAX_VALUE / 2)))
+			throw new IllegalArgumentException("Illegal window size " + size);
+
+		maxChannelWindowSize = size;
+
+		if (cm != null)
+			cm.setMaxWindowSize(size);
+	}
+
+	/**
+	 * Collects small writes to the stdin streams of channels (including port
+	 * forwardings) for up to the given time, so that they go out in fewer,
+	 * fuller packets. Collected data is sent earlier once a packet is full,
+	 * the remote window is full, or the stream is flushed. The default is 0
+	 * (every write is sent immediately).
+	 * <p>
+	 * Affects channels opened after this call.
+	 * 
+	 * @param micros
+	 *            max. delay in microseconds, e.g., 200.
+	 */
+	public synchronized void setWriteCoalescingDelay(long micros) {
+		if (micros < 0)
+			throw new IllegalArgumentException("Illegal delay " + micros);
+
+		writeCoalescingDelay = micros;
+
+		if (cm != null)
+			cm.setWriteCoalescingDelay(micros);
+	}
+
+	/**
+	 * Closes channels that are stuck. All timeouts are in milliseconds, 0
+	 * disables a timeout. The default is 0 for all of them.
+	 * <p>
+	 * Affects channels opened after this call.
+	 * 
+	 * @param openTimeout
+	 *            max. time the server may take to answer a channel open
+	 *            request; the open fails afterwards.
+	 * @param idleTimeout
+	 *            max. time a forwarded channel (local, dynamic, remote or X11
+	 *            forwarding) may go without data in either direction.
+	 *            Sessions are never closed for being idle.
+	 * @param halfCloseTimeout
+	 *            max. time a forwarded channel may stay open after one side
+	 *            has sent EOF.
+	 */
+	public synchronized void setChannelTimeouts(long openTimeout,
+			long idleTimeout, long halfCloseTimeout) {
+		if ((openTimeout < 0) || (idleTimeout < 0) || (halfCloseTimeout < 0))
+			throw new IllegalArgumentException("Timeouts must not be negative");
+
+		channelOpenTimeout = openTimeout;
+		channelIdleTimeout = idleTimeout;
+		channelHalfCloseTimeout = halfCloseTimeout;
+
+		if (cm != null)
+			cm.setChannelTimeouts(openTimeout, idleTimeout, halfCloseTimeout);
+	}
+
+	/**
+	 * Lets local and dynamic (SOCKS) port forwardings use a selector based
+	 * engine with the given number of threads, which multiplexes all
+	 * forwarded sockets, instead of two threads per forwarded connection.
+	 * Pass 0 to disable the engine. The default is 0.
+	 * <p>
+	 * Note: This can only be called before connect()
+	 * 
+	 * @param threads
+	 *            number of selector threads, e.g., 1 or 2
+	 * @throws IOException
+	 */
+	public synchronized void setForwardingEngineThreads(int threads)
+			throws IOException {
+		if (threads < 0)
+			throw new IllegalArgumentException("Illegal number of threads "
+					+ threads);
+
+		if (tm != null)
+			throw new IOException("Connection to " + hostname
+					+ " is already in connected state!");
+
+		forwardingEngineThreads = threads;
+	}
+
+	/**
+	 * @return the channel manager, <code>null</code> if not connected.
+	 */
+	synchronized ChannelManager getChannelManager() {
+		return cm;
+	}
+
+	/**
+	 * @return whether the connection has been closed or lost (or was never
+	 *         established).
+	 */
+	synchronized boolean isClosed() {
+		return (tm == null) || (tm.getReasonClosedCause() != null);
+	}
+
+	private ChannelManager createChannelManager() {
+		ChannelManager channelManager = new ChannelManager(tm,
+				maxChannelWindowSize);
+
+		channelManager.setWriteCoalescingDelay(writeCoalescingDelay);
+		channelManager.setChannelTimeouts(channelOpenTimeout,
+				channelIdleTimeout, channelHalfCloseTimeout);
+
+		if (forwardingEngineThreads > 0) {
+			try {
+				channelManager.setForwardingEngine(new ForwardingEngine(
+						forwardingEngineThreads));
+			} catch (IOException e) {
+				/* No selector available, use a thread per direction */
+			}
+		}
+
+		return channelManager;
+	}
+
+	/**
+	 * Uses a <code>java.nio.channels.SocketChannel</code> for the connection
+	 * to the server. Socket reads and writes then go through 64 KB direct
+	 * buffers, so that each system call moves as much data as possible. The
+	 * version exchange and the HTTP proxy handshake read from the same
+	 * buffer. The default is <code>false</code>.
+	 * <p>
+	 * Note: in this mode, interrupting a thread that is blocked while sending
+	 * data closes the connection (see
+	 * <code>java.nio.channels.InterruptibleChannel</code>). Consider
+	 * combining it with {@link #setTransportWriterThread(boolean)}.
+	 * <p>
+	 * Note: This can only be called before connect()
+	 * 
+	 * @param enable
+	 *            whether to use a <code>SocketChannel</code>
+	 * @throws IOException
+	 */
+	public synchronized void setSocketChannelTransport(boolean enable)
+			throws IOException {
+		if (tm != null)
+			throw new IOException("Connection to " + hostname
+					+ " is already in connected state!");
+
+		socketChannelTransport = enable;
+	}
+
+	/**
+	 * Enables a dedicated transport writer thread. Instead of encrypting and
+	 * writing each packet to the socket themselves, all threads sending on
+	 * this connection then only enqueue their messages. The writer sends
+	 * whatever has accumulated with a single flush, which reduces lock
+	 * contention and the number of socket writes if many channels are busy.
+	 * <p>
+	 * The writer also schedules the queued messages: window adjusts and other
+	 * small control messages go first, channel data is interleaved by deficit
+	 * round robin according to the send weight of each channel (see
+	 * {@link com.trilead.ssh2.channel.Channel#setSendWeight(int)}).
+	 * The default is <code>false</code>.
+	 * <p>
+	 * Note: This can only be called before connect()
+	 * 
+	 * @param enable
+	 *            whether to use a writer thread
+	 * @throws IOException
+	 */
+	public synchronized void setTransportWriterThread(boolean enable)
+			throws IOException {
+		if (tm != null)
+			throw new IOException("Connection to " + hostname
+					+ " is already in connected state!");
+
+		transportWriterThread = enable;
+	}
+
+	/**
+	 * Splits the handling of incoming packets into two threads: one reads,
+	 * decrypts and verifies packets, the other one delivers them to the
+	 * channels. Up to 16 messages are buffered in between, so decryption of
+	 * the next packet overlaps with the processing of the current one. The
+	 * default is <code>false</code>.
+	 * <p>
+	 * Note: This can only be called before connect()
+	 * 
+	 * @param enable
+	 *            whether to use a separate dispatch thread
+	 * @throws IOException
+	 */
+	public synchronized void setReceivePipeline(boolean enable)
+			throws IOException {
+		if (tm != null)
+			throw new IOException("Connection to " + hostname
+					+ " is already in connected state!");
+
+		receivePipeline = enable;
+	}
 }
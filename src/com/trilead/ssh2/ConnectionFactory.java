@@ -0,0 +1,24 @@
+package com.trilead.ssh2;
+
+import java.io.IOException;
+
+/**
+ * A <code>ConnectionFactory</code> creates the connections of a
+ * {@link ConnectionPool}, both initially and whenever a connection of the
+ * pool has been lost.
+ *
+ * @version $Id$
+ */
+public interface ConnectionFactory {
+	/**
+	 * Creates a new connection to the server.
+	 * <p>
+	 * You MUST NOT make any assumption about the thread that invokes this
+	 * method.
+	 *
+	 * @return a connected and authenticated connection.
+	 * @throws IOException
+	 *             if the connection cannot be established.
+	 */
+	public Connection createConnection() throws IOException;
+}
@@ -24,13 +24,27 @@ public class ConnectionInfo {
 	public String serverToClientCryptoAlgorithm;
 
 	/**
-	 * The currently used MAC algorithm for packets from to the client to the
+	 * The name of the cipher provider (e.g., "jce" or "builtin") that
+	 * implements the crypto algorithm for packets from the client to the
 	 * server.
 	 */
+	public String clientToServerCryptoProvider;
+	/**
+	 * The name of the cipher provider (e.g., "jce" or "builtin") that
+	 * implements the crypto algorithm for packets from the server to the
+	 * client.
+	 */
+	public String serverToClientCryptoProvider;
+
+	/**
+	 * The currently used MAC algorithm for packets from to the client to the
+	 * server. <code>null</code> if the crypto algorithm is an AEAD cipher
+	 * (e.g., aes128-gcm@openssh.com), which authenticates packets itself.
+	 */
 	public String clientToServerMACAlgorithm;
 	/**
 	 * The currently used MAC algorithm for packets from to the server to the
-	 * client.
+	 * client. <code>null</code> if the crypto algorithm is an AEAD cipher.
 	 */
 	public String serverToClientMACAlgorithm;
 
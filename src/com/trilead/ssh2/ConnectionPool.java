@@ -0,0 +1,385 @@
+package com.trilead.ssh2;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Vector;
+
+import com.trilead.ssh2.channel.ChannelManager;
+import com.trilead.ssh2.channel.ChannelManagerSelector;
+import com.trilead.ssh2.log.Logger;
+import com.trilead.ssh2.util.ThreadService;
+
+/**
+ * A <code>ConnectionPool</code> spreads the channels of port forwardings
+ * across several SSH connections to the same server. A single connection
+ * sends everything over one TCP stream, hence one lost segment stalls all of
+ * its channels. With a pool, each new channel is opened on the least loaded
+ * connection, measured by the number of open channels and the number of bytes
+ * waiting in its send queue.
+ * <p>
+ * The connections are created by a {@link ConnectionFactory}. If a connection
+ * is lost, it is removed from the pool and replaced in the background. The
+ * channels of the lost connection are closed, new channels go to the
+ * remaining connections in the mean time.
+ * <p>
+ * Port forwarders created by the pool stay valid until the pool is closed.
+ *
+ * @version $Id$
+ */
+public class ConnectionPool {
+	private static final Logger log = Logger.getLogger(ConnectionPool.class);
+
+	/* An open channel weighs as much as this many queued bytes */
+	private static final long BYTES_PER_CHANNEL = 32768;
+
+	/* Delay between attempts to replace a lost connection, in ms */
+	private static final long MIN_RETRY_DELAY = 1000;
+	private static final long MAX_RETRY_DELAY = 30000;
+
+	private final ConnectionFactory factory;
+	private final int size;
+
+	/* The following fields are protected by the pool's monitor */
+
+	private final Vector<Member> members = new Vector<Member>();
+	private final Vector<LocalPortForwarder> localForwarders = new Vector<LocalPortForwarder>();
+	private final Vector<DynamicPortForwarder> dynamicForwarders = new Vector<DynamicPortForwarder>();
+	private boolean closed = false;
+
+	private final ChannelManagerSelector selector = new ChannelManagerSelector() {
+		@Override
+		public ChannelManager selectChannelManager() throws IOException {
+			return select();
+		}
+	};
+
+	/**
+	 * One connection of the pool.
+	 */
+	private final class Member implements ConnectionMonitor {
+		final Connection conn;
+		final ChannelManager cm;
+
+		Member(Connection conn, ChannelManager cm) {
+			this.conn = conn;
+			this.cm = cm;
+		}
+
+		long load() {
+			return cm.getChannelCount() * BYTES_PER_CHANNEL
+					+ cm.getQueuedBytes();
+		}
+
+		@Override
+		public void connectionLost(Throwable reason) {
+			lost(this, reason);
+		}
+	}
+
+	/**
+	 * Replaces a lost connection, retrying with increasing delays until it
+	 * succeeds or the pool is closed.
+	 */
+	private final class Replacer implements Runnable {
+		final Connection lostConnection;
+
+		Replacer(Connection lostConnection) {
+			this.lostConnection = lostConnection;
+		}
+
+		@Override
+		public void run() {
+			/* Not in the monitor callback, close() takes the connection's lock */
+
+			if (lostConnection != null)
+				lostConnection.close();
+
+			long delay = MIN_RETRY_DELAY;
+
+			while (!isClosed()) {
+				try {
+					if (add(factory.createConnection()))
+						return;
+				} catch (IOException e) {
+					if (log.isEnabled())
+						log.log(20, "Cannot replace connection: "
+								+ e.getMessage());
+				}
+
+				try {
+					Thread.sleep(delay);
+				} catch (InterruptedException e) {
+					return;
+				}
+
+				delay = Math.min(delay * 2, MAX_RETRY_DELAY);
+			}
+		}
+	}
+
+	/**
+	 * Prepares a pool. No connection is established before {@link #open()}
+	 * is called.
+	 *
+	 * @param factory
+	 *            creates the connections of the pool.
+	 * @param size
+	 *            number of connections, at least one.
+	 */
+	public ConnectionPool(ConnectionFactory factory, int size) {
+		if (factory == null)
+			throw new IllegalArgumentException("factory argument is null");
+
+		if (size < 1)
+			throw new IllegalArgumentException("Illegal pool size " + size);
+
+		this.factory = factory;
+		this.size = size;
+	}
+
+	/**
+	 * Establishes the connections of the pool. Connections that cannot be
+	 * established now are retried in the background.
+	 *
+	 * @throws IOException
+	 *             if not a single connection could be established.
+	 */
+	public void open() throws IOException {
+		IOException lastError = null;
+
+		for (int i = 0; i < size; i++) {
+			if (isClosed())
+				throw new IllegalStateException("The pool has been closed.");
+
+			try {
+				if (add(factory.createConnection()))
+					continue;
+			} catch (IOException e) {
+				lastError = e;
+			}
+
+			ThreadService.start(new Replacer(null), "ConnectionPool replacer");
+		}
+
+		if (getConnectionCount() == 0) {
+			close();
+
+			IOException e = new IOException(
+					"Cannot establish any connection of the pool");
+			e.initCause(lastError);
+			throw e;
+		}
+	}
+
+	/**
+	 * @return the number of connections that are currently established.
+	 */
+	public synchronized int getConnectionCount() {
+		return members.size();
+	}
+
+	/**
+	 * @return the connections that are currently established.
+	 */
+	public synchronized Connection[] getConnections() {
+		Connection[] result = new Connection[members.size()];
+
+		for (int i = 0; i < result.length; i++)
+			result[i] = members.elementAt(i).conn;
+
+		return result;
+	}
+
+	/**
+	 * Creates a new {@link LocalPortForwarder}. Each forwarded TCP/IP
+	 * connection gets its channel on the least loaded connection of the pool.
+	 *
+	 * @see Connection#createLocalPortForwarder(InetSocketAddress, String, int)
+	 */
+	public LocalPortForwarder createLocalPortForwarder(InetSocketAddress addr,
+			String host_to_connect, int port_to_connect) throws IOException {
+		LocalPortForwarder lpf = new LocalPortForwarder(selector, addr,
+				host_to_connect, port_to_connect);
+
+		if (!track(localForwarders, lpf)) {
+			lpf.close();
+			throw new IllegalStateException("The pool has been closed.");
+		}
+
+		return lpf;
+	}
+
+	/**
+	 * @see #createLocalPortForwarder(InetSocketAddress, String, int)
+	 */
+	public LocalPortForwarder createLocalPortForwarder(int local_port,
+			String host_to_connect, int port_to_connect) throws IOException {
+		return createLocalPortForwarder(new InetSocketAddress(local_port),
+				host_to_connect, port_to_connect);
+	}
+
+	/**
+	 * Creates a new {@link DynamicPortForwarder}. Each forwarded TCP/IP
+	 * connection gets its channel on the least loaded connection of the pool.
+	 *
+	 * @see Connection#createDynamicPortForwarder(InetSocketAddress)
+	 */
+	public DynamicPortForwarder createDynamicPortForwarder(
+			InetSocketAddress addr) throws IOException {
+		DynamicPortForwarder dpf = new DynamicPortForwarder(selector, addr);
+
+		if (!track(dynamicForwarders, dpf)) {
+			dpf.close();
+			throw new IllegalStateException("The pool has been closed.");
+		}
+
+		return dpf;
+	}
+
+	/**
+	 * @see #createDynamicPortForwarder(InetSocketAddress)
+	 */
+	public DynamicPortForwarder createDynamicPortForwarder(int local_port)
+			throws IOException {
+		return createDynamicPortForwarder(new InetSocketAddress(local_port));
+	}
+
+	/**
+	 * Stops all port forwarders of the pool and closes all connections. Can be
+	 * called at any time.
+	 */
+	public void close() {
+		Vector<Member> m;
+		Vector<LocalPortForwarder> lpfs;
+		Vector<DynamicPortForwarder> dpfs;
+
+		synchronized (this) {
+			if (closed)
+				return;
+
+			closed = true;
+
+			m = new Vector<Member>(members);
+			lpfs = new Vector<LocalPortForwarder>(localForwarders);
+			dpfs = new Vector<DynamicPortForwarder>(dynamicForwarders);
+
+			members.removeAllElements();
+			localForwarders.removeAllElements();
+			dynamicForwarders.removeAllElements();
+		}
+
+		for (int i = 0; i < lpfs.size(); i++) {
+			try {
+				lpfs.elementAt(i).close();
+			} catch (IOException ignore) {
+			}
+		}
+
+		for (int i = 0; i < dpfs.size(); i++) {
+			try {
+				dpfs.elementAt(i).close();
+			} catch (IOException ignore) {
+			}
+		}
+
+		for (int i = 0; i < m.size(); i++)
+			m.elementAt(i).conn.close();
+	}
+
+	private synchronized boolean isClosed() {
+		return closed;
+	}
+
+	private synchronized <T> boolean track(Vector<T> forwarders, T forwarder) {
+		if (closed)
+			return false;
+
+		forwarders.addElement(forwarder);
+		return true;
+	}
+
+	/**
+	 * Adds a freshly established connection to the pool.
+	 *
+	 * @return false if the connection is not usable, it has been closed.
+	 */
+	private boolean add(Connection conn) {
+		ChannelManager cm = conn.getChannelManager();
+
+		if ((cm == null) || !conn.isAuthenticationComplete()) {
+			conn.close();
+			return false;
+		}
+
+		Member m = new Member(conn, cm);
+
+		synchronized (this) {
+			if (closed) {
+				m = null;
+			} else {
+				members.addElement(m);
+			}
+		}
+
+		if (m == null) {
+			conn.close();
+
+			/* The pool does not want more connections */
+			return true;
+		}
+
+		conn.addConnectionMonitor(m);
+
+		/* Monitors are only informed once, the connection may be gone already */
+
+		if (conn.isClosed())
+			lost(m, null);
+
+		return true;
+	}
+
+	private void lost(Member m, Throwable reason) {
+		synchronized (this) {
+			if (!members.removeElement(m))
+				return;
+
+			if (closed)
+				return;
+		}
+
+		if (log.isEnabled())
+			log.log(20, "Connection of the pool lost"
+					+ ((reason != null) ? ": " + reason.getMessage() : ""));
+
+		ThreadService.start(new Replacer(m.conn), "ConnectionPool replacer");
+	}
+
+	private ChannelManager select() throws IOException {
+		Vector<Member> candidates;
+
+		synchronized (this) {
+			if (closed)
+				throw new IOException("The connection pool has been closed");
+
+			candidates = new Vector<Member>(members);
+		}
+
+		Member best = null;
+		long bestLoad = 0;
+
+		for (int i = 0; i < candidates.size(); i++) {
+			Member m = candidates.elementAt(i);
+			long load = m.load();
+
+			if ((best == null) || (load < bestLoad)) {
+				best = m;
+				bestLoad = load;
+			}
+		}
+
+		if (best == null)
+			throw new IOException("No connection of the pool is available");
+
+		return best.cm;
+	}
+}
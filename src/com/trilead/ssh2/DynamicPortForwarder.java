@@ -21,7 +21,9 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 
 import com.trilead.ssh2.channel.ChannelManager;
+import com.trilead.ssh2.channel.ChannelManagerSelector;
 import com.trilead.ssh2.channel.DynamicAcceptThread;
+import com.trilead.ssh2.util.ThreadService;
 
 /**
  * A <code>DynamicPortForwarder</code> forwards TCP/IP connections to a local
@@ -42,16 +44,94 @@ public class DynamicPortForwarder {
 		this.cm = cm;
 
 		dat = new DynamicAcceptThread(cm, addr);
-		dat.setDaemon(true);
-		dat.start();
+		ThreadService.start(dat, "DynamicAcceptThread");
 	}
 
 	DynamicPortForwarder(ChannelManager cm, int local_port) throws IOException {
 		this.cm = cm;
 
 		dat = new DynamicAcceptThread(cm, local_port);
-		dat.setDaemon(true);
-		dat.start();
+		ThreadService.start(dat, "DynamicAcceptThread");
+	}
+
+	DynamicPortForwarder(ChannelManagerSelector selector,
+			InetSocketAddress addr) throws IOException {
+		dat = new DynamicAcceptThread(selector, addr,
+				DynamicAcceptThread.DEFAULT_BACKLOG);
+		ThreadService.start(dat, "DynamicAcceptThread");
+	}
+
+	/**
+	 * Sets the share of the connection's bandwidth for connections forwarded
+	 * from now on, relative to other channels (only effective in writer
+	 * thread mode).
+	 * 
+	 * @see LocalPortForwarder#setSendWeight(int)
+	 */
+	public void setSendWeight(int weight) {
+		dat.setSendWeight(weight);
+	}
+
+	/**
+	 * Sets the number of SOCKS handshakes that are processed concurrently. The
+	 * default is 8.
+	 */
+	public void setMaxHandshakes(int max) {
+		dat.setMaxHandshakes(max);
+	}
+
+	/**
+	 * Sets the number of connections that may wait for a free handshake
+	 * thread. Further connections are closed immediately. The default is 64.
+	 */
+	public void setMaxQueuedHandshakes(int max) {
+		dat.setMaxQueued(max);
+	}
+
+	/**
+	 * Limits the concurrent handshakes per client address. The default is 0
+	 * (no limit).
+	 */
+	public void setMaxHandshakesPerClient(int max) {
+		dat.setMaxPerClient(max);
+	}
+
+	/**
+	 * @return number of connections waiting for a handshake thread.
+	 */
+	public int getQueuedHandshakes() {
+		return dat.getQueued();
+	}
+
+	/**
+	 * @return number of handshakes in progress.
+	 */
+	public int getActiveHandshakes() {
+		return dat.getActive();
+	}
+
+	/**
+	 * @return number of connections that have been closed because of the
+	 *         limits.
+	 */
+	public long getRejectedConnections() {
+		return dat.getRejected();
+	}
+
+	/**
+	 * @return average time (in milliseconds) that connections waited for a
+	 *         handshake thread.
+	 */
+	public long getAverageQueueTime() {
+		return dat.getAverageQueueNanos() / 1000000;
+	}
+
+	/**
+	 * @return longest time (in milliseconds) that a connection waited for a
+	 *         handshake thread.
+	 */
+	public long getMaxQueueTime() {
+		return dat.getMaxQueueNanos() / 1000000;
 	}
 
 	/**
@@ -4,7 +4,10 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 
 import com.trilead.ssh2.channel.ChannelManager;
+import com.trilead.ssh2.channel.ChannelManagerSelector;
 import com.trilead.ssh2.channel.LocalAcceptThread;
+import com.trilead.ssh2.transport.SendFlow;
+import com.trilead.ssh2.util.ThreadService;
 
 /**
  * A <code>LocalPortForwarder</code> forwards TCP/IP connections to a local port
@@ -33,8 +36,7 @@ public class LocalPortForwarder {
 		this.port_to_connect = port_to_connect;
 
 		lat = new LocalAcceptThread(cm, addr, host_to_connect, port_to_connect);
-		lat.setDaemon(true);
-		lat.start();
+		ThreadService.start(lat, "LocalAcceptThread");
 	}
 
 	LocalPortForwarder(ChannelManager cm, int local_port,
@@ -45,8 +47,32 @@ public class LocalPortForwarder {
 
 		lat = new LocalAcceptThread(cm, local_port, host_to_connect,
 				port_to_connect);
-		lat.setDaemon(true);
-		lat.start();
+		ThreadService.start(lat, "LocalAcceptThread");
+	}
+
+	LocalPortForwarder(ChannelManagerSelector selector, InetSocketAddress addr,
+			String host_to_connect, int port_to_connect) throws IOException {
+		this.host_to_connect = host_to_connect;
+		this.port_to_connect = port_to_connect;
+
+		lat = new LocalAcceptThread(selector, addr, host_to_connect,
+				port_to_connect);
+		ThreadService.start(lat, "LocalAcceptThread");
+	}
+
+	/**
+	 * Sets the share of the connection's bandwidth for connections forwarded
+	 * from now on, relative to other channels (only effective in writer
+	 * thread mode). E.g., raise it for DNS or interactive traffic that must
+	 * not wait behind bulk transfers.
+	 * 
+	 * @param weight
+	 *            see {@link SendFlow#WEIGHT_BULK},
+	 *            {@link SendFlow#WEIGHT_DEFAULT} and
+	 *            {@link SendFlow#WEIGHT_INTERACTIVE}.
+	 */
+	public void setSendWeight(int weight) {
+		lat.setSendWeight(weight);
 	}
 
 	/**
@@ -8,6 +8,7 @@ import java.security.SecureRandom;
 import com.trilead.ssh2.channel.Channel;
 import com.trilead.ssh2.channel.ChannelManager;
 import com.trilead.ssh2.channel.X11ServerData;
+import com.trilead.ssh2.transport.SendFlow;
 
 /**
  * A <code>Session</code> is a remote execution of a program. "Program" means in
@@ -179,6 +180,33 @@ public class Session {
 		return cm.requestChannelAgentForwarding(cn, agent);
 	}
 
+	/**
+	 * Collects small writes to stdin for up to the given time, see
+	 * {@link Connection#setWriteCoalescingDelay(long)}. Call
+	 * <code>getStdin().flush()</code> to send collected data at once.
+	 * 
+	 * @param micros
+	 *            max. delay in microseconds, 0 to disable.
+	 */
+	public void setWriteCoalescingDelay(long micros) {
+		cn.getStdinStream().setCoalescingDelay(micros);
+	}
+
+	/**
+	 * Sets the share of the connection's bandwidth for this session, relative
+	 * to other channels. Only effective if the connection uses a transport
+	 * writer thread.
+	 * 
+	 * @see Connection#setTransportWriterThread(boolean)
+	 * @param weight
+	 *            see {@link SendFlow#WEIGHT_BULK},
+	 *            {@link SendFlow#WEIGHT_DEFAULT} and
+	 *            {@link SendFlow#WEIGHT_INTERACTIVE}.
+	 */
+	public void setSendWeight(int weight) {
+		cn.setSendWeight(weight);
+	}
+
 	/**
 	 * Basically just a wrapper for lazy people - identical to calling
 	 * <code>requestPTY("dumb", 0, 0, 0, 0, null)</code>.
@@ -3,6 +3,8 @@ package com.trilead.ssh2;
 import java.io.IOException;
 import java.io.InputStream;
 
+import com.trilead.ssh2.util.ThreadService;
+
 /**
  * A <code>StreamGobbler</code> is an InputStream that uses an internal worker
  * thread to constantly consume input from another InputStream. It uses a buffer
@@ -35,7 +37,7 @@ import java.io.InputStream;
  */
 
 public class StreamGobbler extends InputStream {
-	class GobblerThread extends Thread {
+	class GobblerThread implements Runnable {
 		@Override
 		public void run() {
 			byte[] buff = new byte[8192];
@@ -95,7 +97,7 @@ public class StreamGobbler extends InputStream {
 	}
 
 	private InputStream is;
-	private GobblerThread t;
+	private Thread t;
 
 	private Object synchronizer = new Object();
 
@@ -109,9 +111,7 @@ public class StreamGobbler extends InputStream {
 
 	public StreamGobbler(InputStream is) {
 		this.is = is;
-		t = new GobblerThread();
-		t.setDaemon(true);
-		t.start();
+		t = ThreadService.start(new GobblerThread(), "StreamGobbler");
 	}
 
 	@Override
@@ -1,5 +1,12 @@
 package com.trilead.ssh2.channel;
 
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.trilead.ssh2.transport.SendFlow;
+import com.trilead.ssh2.transport.TransportConnection;
+import com.trilead.ssh2.util.TimeoutService.TimeoutToken;
+
 /**
  * Channel.
  * 
@@ -40,6 +47,31 @@ public class Channel {
 
 	static final int CHANNEL_BUFFER_SIZE = 30000;
 
+	/*
+	 * Initial size of the receive buffers, by channel type. The buffers are
+	 * taken from the shared pool on first use and grow with the window.
+	 */
+
+	static final int SESSION_BUFFER_SIZE = 32768;
+	static final int FORWARDING_BUFFER_SIZE = 8192;
+	static final int AGENT_BUFFER_SIZE = 4096;
+	static final int STDERR_BUFFER_SIZE = 4096;
+
+	/*
+	 * The receive window starts at CHANNEL_BUFFER_SIZE and is doubled whenever
+	 * the consumer drains it faster than the peer could refill it within the
+	 * measured round trip time, up to the maximum configured in the
+	 * ChannelManager. By default the maximum is the initial window, i.e. the
+	 * auto-tuning is off: every window that grows also grows the receive
+	 * buffer, which a small heap cannot afford for many idle channels.
+	 */
+
+	static final int DEFAULT_MAX_WINDOW_SIZE = CHANNEL_BUFFER_SIZE;
+
+	/* What we accept per data packet, leave enough slack for the headers */
+
+	static final int CHANNEL_MAX_PACKET_SIZE = TransportConnection.MAX_PACKET_LENGTH - 1024;
+
 	/*
 	 * To achieve correctness, the following rules have to be respected when
 	 * accessing this object:
@@ -98,8 +130,30 @@ public class Channel {
 
 	final byte[] msgWindowAdjust = new byte[9];
 
+	/* Header of outgoing SSH_MSG_CHANNEL_DATA messages, same rules as above */
+
+	final byte[] msgDataHeader = new byte[9];
+
+	/*
+	 * Guards the following fields. Waiters block on the condition that
+	 * matches what they are waiting for, so that, e.g., incoming data does
+	 * not wake up a sender that waits for the remote window. State changes
+	 * (open, close) signal all three conditions, see stateChanged().
+	 */
+
+	final ReentrantLock lock = new ReentrantLock();
+
+	/* Data, EOF, exit status or exit signal arrived */
+	final Condition dataAvailable = lock.newCondition();
+
+	/* The remote window has been enlarged */
+	final Condition windowAvailable = lock.newCondition();
+
+	/* A channel request or the open request has been answered */
+	final Condition requestDone = lock.newCondition();
+
 	// If you access (read or write) any of the following fields, then you have
-	// to synchronize on the channel.
+	// to hold the channel lock.
 
 	int state = STATE_OPENING;
 
@@ -115,19 +169,45 @@ public class Channel {
 	int localWindow = 0; /* locally, we use a small window, < 2^31 */
 	long remoteWindow = 0; /* long for readable 2^32 - 1 window support */
 
+	int windowSize = CHANNEL_BUFFER_SIZE; /* current target for localWindow */
+	long windowAdjustTime = 0; /* System.nanoTime() of the last adjust */
+	long openRequestTime = 0; /* System.nanoTime() of our CHANNEL_OPEN */
+
+	/*
+	 * Open, idle and half-close timeouts, see ChannelManager.armTimeouts().
+	 * Times as in System.currentTimeMillis(). The token is null if no timeout
+	 * applies to this channel.
+	 */
+	TimeoutToken timeoutToken = null;
+	boolean timeoutArmed = false;
+	boolean timeoutsForForwarding = false;
+	long openTime = 0;
+	long lastActivity = 0;
+	long halfCloseTime = 0;
+
 	int localMaxPacketSize = -1;
 	int remoteMaxPacketSize = -1;
 
-	final byte[] stdoutBuffer = new byte[CHANNEL_BUFFER_SIZE];
-	final byte[] stderrBuffer = new byte[CHANNEL_BUFFER_SIZE];
+	/* Grow on demand, up to windowSize */
 
-	int stdoutReadpos = 0;
-	int stdoutWritepos = 0;
-	int stderrReadpos = 0;
-	int stderrWritepos = 0;
+	final ChannelBuffer stdoutBuffer;
+	final ChannelBuffer stderrBuffer;
 
 	boolean EOF = false;
 
+	/*
+	 * Requested while the open request was in flight, sent once the server
+	 * has confirmed the channel (we do not know its remote ID before).
+	 */
+	boolean closePending = false;
+	boolean eofPending = false;
+
+	/* Asynchronous opens only, called once, see notifyOpenListener() */
+	ChannelOpenListener openListener = null;
+
+	/* SSH_OPEN_* reason code of a refused open request */
+	int openFailureCode = 0;
+
 	Integer exit_status;
 
 	String exit_signal;
@@ -145,27 +225,72 @@ public class Channel {
 	private String reasonClosed = null;
 
 	public Channel(ChannelManager cm) {
+		this(cm, SESSION_BUFFER_SIZE);
+	}
+
+	/**
+	 * @param bufferSize
+	 *            initial size of the stdout buffer, see SESSION_BUFFER_SIZE
+	 *            and friends.
+	 */
+	Channel(ChannelManager cm, int bufferSize) {
 		this.cm = cm;
 
+		this.stdoutBuffer = new ChannelBuffer(bufferSize);
+		this.stderrBuffer = new ChannelBuffer(STDERR_BUFFER_SIZE);
+
 		this.localWindow = CHANNEL_BUFFER_SIZE;
-		this.localMaxPacketSize = 35000 - 1024; // leave enough slack
+		this.localMaxPacketSize = CHANNEL_MAX_PACKET_SIZE;
 
 		this.stdinStream = new ChannelOutputStream(this);
+		this.stdinStream.setCoalescingDelay(cm.getWriteCoalescingDelay());
 		this.stdoutStream = new ChannelInputStream(this, false);
 		this.stderrStream = new ChannelInputStream(this, true);
 	}
 
+	/**
+	 * Wakes up all waiters after a state change. Must be called while holding
+	 * the lock.
+	 */
+	void stateChanged() {
+		dataAvailable.signalAll();
+		windowAvailable.signalAll();
+		requestDone.signalAll();
+		notifyListener();
+	}
+
+	/* Outgoing data, scheduled by the writer thread of the transport */
+
+	final SendFlow sendFlow = new SendFlow();
+
+	/* Event driven consumers, see ForwardingEngine */
+
+	volatile ChannelListener listener = null;
+
+	void notifyListener() {
+		ChannelListener l = listener;
+
+		if (l != null)
+			l.channelEvent(this);
+	}
+
 	/* Methods to allow access from classes outside of this package */
 
 	public String getExitSignal() {
-		synchronized (this) {
+		lock.lock();
+		try {
 			return exit_signal;
+		} finally {
+			lock.unlock();
 		}
 	}
 
 	public Integer getExitStatus() {
-		synchronized (this) {
+		lock.lock();
+		try {
 			return exit_status;
+		} finally {
+			lock.unlock();
 		}
 	}
 
@@ -187,6 +312,20 @@ public class Channel {
 		return stdoutStream;
 	}
 
+	/**
+	 * Sets the share of the connection's bandwidth for this channel, relative
+	 * to the other channels. Only effective in writer thread mode.
+	 * 
+	 * @see SendFlow#setWeight(int)
+	 */
+	public void setSendWeight(int weight) {
+		sendFlow.setWeight(weight);
+	}
+
+	public int getSendWeight() {
+		return sendFlow.getWeight();
+	}
+
 	public void setReasonClosed(String reasonClosed) {
 		synchronized (reasonClosedLock) {
 			if (this.reasonClosed == null)
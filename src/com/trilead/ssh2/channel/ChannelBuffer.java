@@ -0,0 +1,158 @@
+package com.trilead.ssh2.channel;
+
+import com.trilead.ssh2.util.BufferPool;
+
+/**
+ * ChannelBuffer. A ring buffer for the data received on a channel (stdout or
+ * stderr). Reads never move the remaining data around, the buffer only grows
+ * (up to the current window size) if the data does not fit anymore.
+ * <p>
+ * The memory is taken from the shared {@link BufferPool} when the first data
+ * arrives, so channels that never receive anything on a stream (e.g., stderr
+ * of a port forwarding) do not occupy any memory for it.
+ * <p>
+ * A reader that finds the buffer empty may offer its own target array. The
+ * next packet is then copied directly into that array instead of into the
+ * ring, provided that it fits.
+ * <p>
+ * Not thread safe, all methods have to be called while holding the lock of
+ * the channel.
+ *
+ * @version $Id$
+ */
+final class ChannelBuffer {
+	private static final BufferPool pool = BufferPool.getShared();
+
+	private final int initialSize;
+
+	private byte[] buffer = null;
+	private int readpos = 0;
+	private int count = 0;
+
+	private byte[] handoffTarget = null;
+	private int handoffOff;
+	private int handoffLen;
+	private int handedOff = 0;
+
+	ChannelBuffer(int initialSize) {
+		this.initialSize = initialSize;
+	}
+
+	int available() {
+		return count;
+	}
+
+	int capacity() {
+		return (buffer != null) ? buffer.length : 0;
+	}
+
+	/**
+	 * Stores received data, either in a waiting reader's array or in the
+	 * ring.
+	 *
+	 * @param limit
+	 *            the ring never grows beyond this size, unless the data would
+	 *            not fit otherwise.
+	 */
+	void write(byte[] src, int off, int len, int limit) {
+		if ((count == 0) && (handoffTarget != null) && (len <= handoffLen)) {
+			System.arraycopy(src, off, handoffTarget, handoffOff, len);
+			handedOff = len;
+			handoffTarget = null;
+			return;
+		}
+
+		if (buffer == null)
+			buffer = pool.acquire(Math.max(initialSize, len));
+		else if (count + len > buffer.length)
+			grow(count + len, limit);
+
+		int writepos = (readpos + count) % buffer.length;
+		int first = Math.min(len, buffer.length - writepos);
+
+		System.arraycopy(src, off, buffer, writepos, first);
+
+		if (first < len)
+			System.arraycopy(src, off + first, buffer, 0, len - first);
+
+		count += len;
+	}
+
+	int read(byte[] target, int off, int len) {
+		if (count == 0)
+			return 0;
+
+		int copylen = (count > len) ? len : count;
+		int first = Math.min(copylen, buffer.length - readpos);
+
+		System.arraycopy(buffer, readpos, target, off, first);
+
+		if (first < copylen)
+			System.arraycopy(buffer, 0, target, off + first, copylen - first);
+
+		readpos = (readpos + copylen) % buffer.length;
+		count -= copylen;
+
+		if (count == 0)
+			readpos = 0;
+
+		return copylen;
+	}
+
+	/**
+	 * Offers the target array of a reader that is about to wait. Only one
+	 * offer can be pending at any time.
+	 *
+	 * @return false if another reader already made an offer.
+	 */
+	boolean offer(byte[] target, int off, int len) {
+		if ((handoffTarget != null) || (handedOff != 0))
+			return false;
+
+		handoffTarget = target;
+		handoffOff = off;
+		handoffLen = len;
+		return true;
+	}
+
+	/**
+	 * @return the number of bytes that have been copied into the offered
+	 *         array, 0 if none.
+	 */
+	int takeHandoff() {
+		int len = handedOff;
+		handedOff = 0;
+		return len;
+	}
+
+	void cancelOffer() {
+		handoffTarget = null;
+	}
+
+	/**
+	 * Returns the memory to the pool if the buffer is empty. It is acquired
+	 * again if more data arrives.
+	 */
+	void release() {
+		if ((count != 0) || (buffer == null))
+			return;
+
+		pool.release(buffer);
+		buffer = null;
+		readpos = 0;
+	}
+
+	private void grow(int needed, int limit) {
+		int newSize = Math.max(needed, Math.min(buffer.length * 2, limit));
+
+		int used = count;
+		byte[] tmp = pool.acquire(newSize);
+
+		read(tmp, 0, used);
+
+		pool.release(buffer);
+		buffer = tmp;
+		readpos = 0;
+		count = used;
+	}
+}
@@ -0,0 +1,16 @@
+package com.trilead.ssh2.channel;
+
+/**
+ * ChannelListener. Gets notified whenever something happens on a channel that
+ * a waiting reader or writer would be woken up for (data, EOF, window adjust,
+ * state change).
+ * <p>
+ * The listener is called while the channel lock is held, often by the
+ * receive thread. Implementations must not block and must not call back into
+ * the channel, they should just schedule the channel for processing.
+ *
+ * @version $Id$
+ */
+interface ChannelListener {
+	public void channelEvent(Channel c);
+}
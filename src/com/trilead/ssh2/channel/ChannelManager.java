@@ -3,6 +3,7 @@ package com.trilead.ssh2.channel;
 import java.io.IOException;
 import java.util.HashMap;
 import java.util.Vector;
+import java.util.concurrent.TimeUnit;
 
 import com.trilead.ssh2.AuthAgentCallback;
 import com.trilead.ssh2.ChannelCondition;
@@ -26,6 +27,8 @@ import com.trilead.ssh2.packets.Packets;
 import com.trilead.ssh2.packets.TypesReader;
 import com.trilead.ssh2.transport.MessageHandler;
 import com.trilead.ssh2.transport.TransportManager;
+import com.trilead.ssh2.util.ThreadService;
+import com.trilead.ssh2.util.TimeoutService;
 
 /**
  * ChannelManager. Please read the comments in Channel.java.
@@ -36,14 +39,56 @@ import com.trilead.ssh2.transport.TransportManager;
  * @version $Id: ChannelManager.java,v 1.2 2008/03/03 07:01:36 cplattne Exp $
  */
 public class ChannelManager implements MessageHandler {
+	/**
+	 * Closes the channels whose timeout has expired. Closing sends a
+	 * message, which may block, so this is not done in the thread of the
+	 * TimeoutService. Exits after 2 seconds without work.
+	 */
+	class Reaper implements Runnable {
+		@Override
+		public void run() {
+			while (true) {
+				Channel c;
+				String reason;
+
+				synchronized (expired) {
+					if (expired.size() == 0) {
+						try {
+							expired.wait(2000);
+						} catch (InterruptedException e) {
+						}
+
+						if (expired.size() == 0) {
+							reaperThread = null;
+							return;
+						}
+					}
+
+					c = expired.remove(0);
+					reason = expiredReasons.remove(0);
+				}
+
+				try {
+					closeChannel(c, reason, true);
+				} catch (IOException ignore) {
+				}
+
+				notifyOpenListener(c);
+			}
+		}
+	}
+
 	private static final Logger log = Logger.getLogger(ChannelManager.class);
 
 	private HashMap x11_magic_cookies = new HashMap();
 
 	private TransportManager tm;
 
-	private Vector channels = new Vector();
-	private int nextLocalChannel = 100;
+	/*
+	 * The monitor of the table also protects the global request state
+	 * (shutdown, globalSuccessCounter, globalFailedCounter)
+	 */
+	private final ChannelTable channels = new ChannelTable();
 	private boolean shutdown = false;
 	private int globalSuccessCounter = 0;
 	private int globalFailedCounter = 0;
@@ -56,16 +101,316 @@ public class ChannelManager implements MessageHandler {
 
 	private boolean listenerThreadsAllowed = true;
 
+	/* Upper limit for the auto-tuned receive window of each channel */
+	private volatile int maxWindowSize = Channel.DEFAULT_MAX_WINDOW_SIZE;
+
+	/* Smallest channel open round trip seen so far, 0 if unknown */
+	private volatile long minRoundTripNanos = 0;
+
+	/* Used until a round trip has been measured */
+	private static final long DEFAULT_ROUND_TRIP_NANOS = 100 * 1000000L;
+
+	private volatile ForwardingEngine forwardingEngine = null;
+
+	/* Coalescing delay of the stdin streams of new channels, in us */
+	private volatile long writeCoalescingDelay = 0;
+
+	/* Sends the data of coalescing streams on deadline */
+	private final CoalescingFlusher flusher = new CoalescingFlusher();
+
+	/* Channel timeouts in ms, 0 = disabled, see setChannelTimeouts() */
+	private volatile long channelOpenTimeout = 0;
+	private volatile long channelIdleTimeout = 0;
+	private volatile long channelHalfCloseTimeout = 0;
+
+	/*
+	 * Channels with an expired timeout and the reasons, waiting for the
+	 * reaper. Protected by the monitor of "expired".
+	 */
+	private final Vector<Channel> expired = new Vector<Channel>();
+	private final Vector<String> expiredReasons = new Vector<String>();
+	private Thread reaperThread = null;
+
 	public ChannelManager(TransportManager tm) {
+		this(tm, Channel.DEFAULT_MAX_WINDOW_SIZE);
+	}
+
+	public ChannelManager(TransportManager tm, int maxWindowSize) {
 		this.tm = tm;
+		setMaxWindowSize(maxWindowSize);
 		tm.registerMessageHandler(this, 80, 100);
 	}
 
-	private int addChannel(Channel c) {
-		synchronized (channels) {
-			channels.addElement(c);
-			return nextLocalChannel++;
+	/**
+	 * Sets the limit up to which the receive window of a channel may grow.
+	 * Values below the initial window size disable the auto-tuning.
+	 */
+	public void setMaxWindowSize(int maxWindowSize) {
+		if (maxWindowSize < 0 || maxWindowSize > (Integer.MAX_VALUE / 2))
+			throw new IllegalArgumentException("Illegal maximum window size "
+					+ maxWindowSize);
+
+		this.maxWindowSize = maxWindowSize;
+	}
+
+	public int getMaxWindowSize() {
+		return maxWindowSize;
+	}
+
+	/**
+	 * Round trip estimate used by the window auto-tuning: the fastest channel
+	 * open request/confirmation exchange seen on this connection. The
+	 * minimum filters out time the server spent on, e.g., connecting to
+	 * the target of a port forwarding.
+	 */
+	long getRoundTripNanos() {
+		long rtt = minRoundTripNanos;
+
+		return (rtt > 0) ? rtt : DEFAULT_ROUND_TRIP_NANOS;
+	}
+
+	/**
+	 * Local port forwardings use this engine instead of two StreamForwarder
+	 * threads per connection, if set. It is shut down together with the
+	 * connection.
+	 */
+	public void setForwardingEngine(ForwardingEngine engine) {
+		this.forwardingEngine = engine;
+	}
+
+	public ForwardingEngine getForwardingEngine() {
+		return forwardingEngine;
+	}
+
+	/**
+	 * Enables write coalescing for the channels opened from now on, see
+	 * {@link ChannelOutputStream#setCoalescingDelay(long)}.
+	 */
+	public void setWriteCoalescingDelay(long micros) {
+		if (micros < 0)
+			throw new IllegalArgumentException("Illegal delay " + micros);
+
+		writeCoalescingDelay = micros;
+	}
+
+	public long getWriteCoalescingDelay() {
+		return writeCoalescingDelay;
+	}
+
+	/**
+	 * Sets the timeouts for the channels opened from now on. Expired channels
+	 * are closed (an open request that times out is reported as failed).
+	 * 
+	 * @param openTimeout
+	 *            max. time in ms the server may take to answer an open
+	 *            request.
+	 * @param idleTimeout
+	 *            max. time in ms without data in either direction, only for
+	 *            forwarded channels (local, remote and X11 forwardings).
+	 * @param halfCloseTimeout
+	 *            max. time in ms a forwarded channel may stay open after EOF
+	 *            has been sent or received.
+	 */
+	public void setChannelTimeouts(long openTimeout, long idleTimeout,
+			long halfCloseTimeout) {
+		if ((openTimeout < 0) || (idleTimeout < 0) || (halfCloseTimeout < 0))
+			throw new IllegalArgumentException("Timeouts must not be negative");
+
+		channelOpenTimeout = openTimeout;
+		channelIdleTimeout = idleTimeout;
+		channelHalfCloseTimeout = halfCloseTimeout;
+	}
+
+	/**
+	 * Creates the timeout of a new channel, if any timeout applies. Called
+	 * while holding the lock of the channel.
+	 * <p>
+	 * Each channel has a single token. Traffic only updates
+	 * <code>lastActivity</code>; when the token fires, the handler checks
+	 * which deadline is really due and moves the token to the next one.
+	 */
+	private void armTimeouts(final Channel c, boolean forwarding) {
+		c.timeoutsForForwarding = forwarding;
+
+		if ((channelOpenTimeout == 0)
+				&& (!forwarding || ((channelIdleTimeout == 0) && (channelHalfCloseTimeout == 0))))
+			return;
+
+		long now = System.currentTimeMillis();
+
+		c.openTime = now;
+		c.lastActivity = now;
+
+		long deadline = nextTimeout(c);
+
+		/* Without a deadline yet, the handler runs once and disarms */
+
+		c.timeoutArmed = true;
+		c.timeoutToken = TimeoutService.addTimeoutHandler(
+				(deadline > 0) ? deadline : now, new Runnable() {
+					@Override
+					public void run() {
+						checkTimeouts(c);
+					}
+				});
+	}
+
+	/**
+	 * @return the earliest deadline of the channel, 0 if none. Called while
+	 *         holding the lock of the channel.
+	 */
+	private long nextTimeout(Channel c) {
+		long next = Long.MAX_VALUE;
+		long open = channelOpenTimeout;
+		long idle = channelIdleTimeout;
+		long halfClose = channelHalfCloseTimeout;
+
+		if ((c.state == Channel.STATE_OPENING) && (open > 0))
+			next = Math.min(next, c.openTime + open);
+
+		if (c.timeoutsForForwarding) {
+			if (idle > 0)
+				next = Math.min(next, c.lastActivity + idle);
+
+			if ((halfClose > 0) && (c.halfCloseTime != 0))
+				next = Math.min(next, c.halfCloseTime + halfClose);
 		}
+
+		return (next == Long.MAX_VALUE) ? 0 : next;
+	}
+
+	/**
+	 * Called under the channel lock when EOF is sent or received.
+	 */
+	private void halfClosed(Channel c) {
+		if ((c.halfCloseTime != 0) || (c.timeoutToken == null))
+			return;
+
+		c.halfCloseTime = System.currentTimeMillis();
+
+		long deadline = nextTimeout(c);
+
+		/* The token may be due later, e.g., for the idle timeout */
+
+		if ((deadline > 0)
+				&& (!c.timeoutArmed || (deadline < c.timeoutToken.getRunTime()))) {
+			c.timeoutArmed = true;
+			TimeoutService.reschedule(c.timeoutToken, deadline);
+		}
+	}
+
+	/**
+	 * Runs in the thread of the TimeoutService, must not block.
+	 */
+	private void checkTimeouts(Channel c) {
+		String reason;
+
+		c.lock.lock();
+		try {
+			c.timeoutArmed = false;
+
+			if ((c.state == Channel.STATE_CLOSED) || (c.timeoutToken == null))
+				return;
+
+			long now = System.currentTimeMillis();
+			long open = channelOpenTimeout;
+			long idle = channelIdleTimeout;
+			long halfClose = channelHalfCloseTimeout;
+
+			if ((c.state == Channel.STATE_OPENING) && (open > 0)
+					&& (now >= c.openTime + open))
+				reason = "The channel open request timed out";
+			else if (c.timeoutsForForwarding && (halfClose > 0)
+					&& (c.halfCloseTime != 0)
+					&& (now >= c.halfCloseTime + halfClose))
+				reason = "The half-closed channel timed out";
+			else if (c.timeoutsForForwarding && (idle > 0)
+					&& (now >= c.lastActivity + idle))
+				reason = "The channel was idle for too long";
+			else
+				reason = null;
+
+			if (reason == null) {
+				long next = nextTimeout(c);
+
+				if (next > 0) {
+					c.timeoutArmed = true;
+					TimeoutService.reschedule(c.timeoutToken, next);
+				}
+
+				return;
+			}
+		} finally {
+			c.lock.unlock();
+		}
+
+		if (log.isEnabled())
+			log.log(50, reason + " (channel " + c.localID + ")");
+
+		/* Closing sends a message, which may block */
+
+		synchronized (expired) {
+			expired.addElement(c);
+			expiredReasons.addElement(reason);
+
+			if (reaperThread == null)
+				reaperThread = ThreadService.start(new Reaper(),
+						"ChannelManager reaper");
+			else
+				expired.notify();
+		}
+	}
+
+	/**
+	 * Runs the deadline flush of a coalescing stream of this connection
+	 * after the given delay.
+	 */
+	void scheduleFlush(Runnable flush, long nanos) {
+		flusher.schedule(flush, nanos);
+	}
+
+	/**
+	 * @return how many bytes a coalescing stream may collect before sending:
+	 *         one packet, or less if the remote window is smaller.
+	 */
+	int getCoalescingLimit(Channel c, int bufferSize) {
+		c.lock.lock();
+		try {
+			if (c.state != Channel.STATE_OPEN)
+				return bufferSize;
+
+			int limit = c.remoteMaxPacketSize
+					- (tm.getPacketOverheadEstimate() + 9);
+
+			if ((c.remoteWindow > 0) && (c.remoteWindow < limit))
+				limit = (int) c.remoteWindow;
+
+			if (limit > bufferSize)
+				limit = bufferSize;
+
+			return (limit > 0) ? limit : 1;
+		} finally {
+			c.lock.unlock();
+		}
+	}
+
+	/**
+	 * @return number of channels that are open or being opened.
+	 */
+	public int getChannelCount() {
+		return channels.size();
+	}
+
+	/**
+	 * @return number of bytes sent on this connection that are still queued
+	 *         (in writer thread mode).
+	 */
+	public long getQueuedBytes() {
+		return tm.getQueuedBytes();
+	}
+
+	private int addChannel(Channel c) throws IOException {
+		return channels.add(c);
 	}
 
 	public X11ServerData checkX11Cookie(String hexFakeCookie) {
@@ -80,14 +425,10 @@ public class ChannelManager implements MessageHandler {
 		if (log.isEnabled())
 			log.log(50, "Closing all channels");
 
-		Vector channel_copy;
-
-		synchronized (channels) {
-			channel_copy = (Vector) channels.clone();
-		}
+		Vector<Channel> channel_copy = channels.snapshot();
 
 		for (int i = 0; i < channel_copy.size(); i++) {
-			Channel c = (Channel) channel_copy.elementAt(i);
+			Channel c = channel_copy.elementAt(i);
 			try {
 				closeChannel(c, "Closing all channels", true);
 			} catch (IOException e) {
@@ -99,7 +440,13 @@ public class ChannelManager implements MessageHandler {
 			throws IOException {
 		byte msg[] = new byte[5];
 
-		synchronized (c) {
+		c.lock.lock();
+		try {
+			if ((c.state == Channel.STATE_OPENING) || c.closePending) {
+				/* Sent once the open request is answered */
+				c.closePending = true;
+			}
+
 			if (force) {
 				c.state = Channel.STATE_CLOSED;
 				c.EOF = true;
@@ -107,19 +454,26 @@ public class ChannelManager implements MessageHandler {
 
 			c.setReasonClosed(reason);
 
+			if (c.closePending) {
+				c.stateChanged();
+				return;
+			}
+
 			msg[0] = Packets.SSH_MSG_CHANNEL_CLOSE;
 			msg[1] = (byte) (c.remoteID >> 24);
 			msg[2] = (byte) (c.remoteID >> 16);
 			msg[3] = (byte) (c.remoteID >> 8);
 			msg[4] = (byte) (c.remoteID);
 
-			c.notifyAll();
+			c.stateChanged();
+		} finally {
+			c.lock.unlock();
 		}
 
 		synchronized (c.channelSendLock) {
 			if (c.closeMessageSent == true)
 				return;
-			tm.sendMessage(msg);
+			tm.sendControlMessage(c.sendFlow, msg);
 			c.closeMessageSent = true;
 		}
 
@@ -129,105 +483,131 @@ public class ChannelManager implements MessageHandler {
 	}
 
 	public int getAvailable(Channel c, boolean extended) throws IOException {
-		synchronized (c) {
+		c.lock.lock();
+		try {
 			int avail;
 
 			if (extended)
-				avail = c.stderrWritepos - c.stderrReadpos;
+				avail = c.stderrBuffer.available();
 			else
-				avail = c.stdoutWritepos - c.stdoutReadpos;
+				avail = c.stdoutBuffer.available();
 
 			return ((avail > 0) ? avail : (c.EOF ? -1 : 0));
+		} finally {
+			c.lock.unlock();
 		}
 	}
 
 	private Channel getChannel(int id) {
-		synchronized (channels) {
-			for (int i = 0; i < channels.size(); i++) {
-				Channel c = (Channel) channels.elementAt(i);
-				if (c.localID == id)
-					return c;
-			}
-		}
-		return null;
+		return channels.get(id);
 	}
 
 	public int getChannelData(Channel c, boolean extended, byte[] target,
 			int off, int len) throws IOException {
+		return getChannelData(c, extended, target, off, len, true);
+	}
+
+	/**
+	 * Non-blocking variant of {@link #getChannelData}, for event driven
+	 * consumers (see {@link ForwardingEngine}).
+	 * 
+	 * @return the number of bytes read from stdout, 0 if there is no data
+	 *         right now, or -1 if no more data will arrive.
+	 */
+	public int pollChannelData(Channel c, byte[] target, int off, int len)
+			throws IOException {
+		return getChannelData(c, false, target, off, len, false);
+	}
+
+	private int getChannelData(Channel c, boolean extended, byte[] target,
+			int off, int len, boolean wait) throws IOException {
 		int copylen = 0;
 		int increment = 0;
 		int remoteID = 0;
 		int localID = 0;
 
-		synchronized (c) {
-			int stdoutAvail = 0;
-			int stderrAvail = 0;
+		c.lock.lock();
+		try {
+			ChannelBuffer buffer = extended ? c.stderrBuffer : c.stdoutBuffer;
+			boolean offered = false;
 
-			while (true) {
-				/*
-				 * Data available? We have to return remaining data even if the
-				 * channel is already closed.
-				 */
+			try {
+				while (true) {
+					/* Did the receiver copy a packet directly into target? */
 
-				stdoutAvail = c.stdoutWritepos - c.stdoutReadpos;
-				stderrAvail = c.stderrWritepos - c.stderrReadpos;
+					if (offered) {
+						copylen = buffer.takeHandoff();
 
-				if ((!extended) && (stdoutAvail != 0))
-					break;
+						if (copylen > 0) {
+							offered = false;
+							break;
+						}
+					}
 
-				if ((extended) && (stderrAvail != 0))
-					break;
+					/*
+					 * Data available? We have to return remaining data even if
+					 * the channel is already closed.
+					 */
 
-				/* Do not wait if more data will never arrive (EOF or CLOSED) */
+					if (buffer.available() != 0) {
+						copylen = buffer.read(target, off, len);
+						break;
+					}
 
-				if ((c.EOF) || (c.state != Channel.STATE_OPEN))
-					return -1;
+					/*
+					 * Do not wait if more data will never arrive (EOF or
+					 * CLOSED)
+					 */
 
-				try {
-					c.wait();
-				} catch (InterruptedException ignore) {
-				}
-			}
+					if ((c.EOF) || (c.state == Channel.STATE_CLOSED)) {
+						/* Drained, no more data will arrive */
+						buffer.release();
+						return -1;
+					}
 
-			/* OK, there is some data. Return it. */
+					if (!wait)
+						return 0;
 
-			if (!extended) {
-				copylen = (stdoutAvail > len) ? len : stdoutAvail;
-				System.arraycopy(c.stdoutBuffer, c.stdoutReadpos, target, off,
-						copylen);
-				c.stdoutReadpos += copylen;
+					if (!offered)
+						offered = buffer.offer(target, off, len);
 
-				if (c.stdoutReadpos != c.stdoutWritepos)
+					try {
+						c.dataAvailable.await();
+					} catch (InterruptedException ignore) {
+					}
+				}
+			} finally {
+				if (offered)
+					buffer.cancelOffer();
+			}
 
-					System.arraycopy(c.stdoutBuffer, c.stdoutReadpos,
-							c.stdoutBuffer, 0, c.stdoutWritepos
-									- c.stdoutReadpos);
+			if (c.state != Channel.STATE_OPEN)
+				return copylen;
 
-				c.stdoutWritepos -= c.stdoutReadpos;
-				c.stdoutReadpos = 0;
-			} else {
-				copylen = (stderrAvail > len) ? len : stderrAvail;
-				System.arraycopy(c.stderrBuffer, c.stderrReadpos, target, off,
-						copylen);
-				c.stderrReadpos += copylen;
+			if (c.localWindow < ((c.windowSize + 1) / 2)) {
+				long now = System.nanoTime();
 
-				if (c.stderrReadpos != c.stderrWritepos)
+				/*
+				 * Half of the window has been consumed since the last adjust.
+				 * If that took less than two round trips, then the peer is
+				 * limited by the window and not by the link: grow it.
+				 */
 
-					System.arraycopy(c.stderrBuffer, c.stderrReadpos,
-							c.stderrBuffer, 0, c.stderrWritepos
-									- c.stderrReadpos);
+				if ((c.windowAdjustTime != 0)
+						&& (now - c.windowAdjustTime < 2 * getRoundTripNanos())
+						&& (c.windowSize < maxWindowSize)) {
+					c.windowSize = Math.min(c.windowSize * 2, maxWindowSize);
 
-				c.stderrWritepos -= c.stderrReadpos;
-				c.stderrReadpos = 0;
-			}
+					if (log.isEnabled())
+						log.log(80, "Growing window of channel " + c.localID
+								+ " to " + c.windowSize);
+				}
 
-			if (c.state != Channel.STATE_OPEN)
-				return copylen;
+				c.windowAdjustTime = now;
 
-			if (c.localWindow < ((Channel.CHANNEL_BUFFER_SIZE + 1) / 2)) {
-				int minFreeSpace = Math.min(Channel.CHANNEL_BUFFER_SIZE
-						- c.stdoutWritepos, Channel.CHANNEL_BUFFER_SIZE
-						- c.stderrWritepos);
+				int minFreeSpace = c.windowSize
+						- Math.max(c.stdoutBuffer.available(),
+								c.stderrBuffer.available());
 
 				increment = minFreeSpace - c.localWindow;
 				c.localWindow = minFreeSpace;
@@ -235,6 +615,8 @@ public class ChannelManager implements MessageHandler {
 
 			remoteID = c.remoteID; /* read while holding the lock */
 			localID = c.localID; /* read while holding the lock */
+		} finally {
+			c.lock.unlock();
 		}
 
 		/*
@@ -284,28 +666,41 @@ public class ChannelManager implements MessageHandler {
 				listenerThreadsAllowed = false;
 			}
 
+			if (forwardingEngine != null)
+				forwardingEngine.shutdown();
+
 			synchronized (channels) {
 				shutdown = true;
 
-				for (int i = 0; i < channels.size(); i++) {
-					Channel c = (Channel) channels.elementAt(i);
-					synchronized (c) {
+				Vector<Channel> channel_copy = channels.snapshot();
+
+				for (int i = 0; i < channel_copy.size(); i++) {
+					Channel c = channel_copy.elementAt(i);
+					c.lock.lock();
+					try {
 						c.EOF = true;
 						c.state = Channel.STATE_CLOSED;
 						c.setReasonClosed("The connection is being shutdown");
+						if (c.timeoutToken != null)
+							TimeoutService.cancelTimeoutHandler(c.timeoutToken);
+
 						c.closeMessageRecv = true; /*
 													 * You never know, perhaps
 													 * we are waiting for a
 													 * pending close message
 													 * from the server...
 													 */
-						c.notifyAll();
+						c.stateChanged();
+					} finally {
+						c.lock.unlock();
 					}
 				}
-				/* Works with J2ME */
-				channels.setSize(0);
-				channels.trimToSize();
+				channels.clear();
 				channels.notifyAll(); /* Notify global response waiters */
+
+				for (int i = 0; i < channel_copy.size(); i++)
+					notifyOpenListener(channel_copy.elementAt(i));
+
 				return;
 			}
 		}
@@ -375,7 +770,8 @@ public class ChannelManager implements MessageHandler {
 					"Unexpected SSH_MSG_CHANNEL_CLOSE message for non-existent channel "
 							+ id);
 
-		synchronized (c) {
+		c.lock.lock();
+		try {
 			c.EOF = true;
 			c.state = Channel.STATE_CLOSED;
 			c.setReasonClosed("Close requested by remote");
@@ -383,7 +779,9 @@ public class ChannelManager implements MessageHandler {
 
 			removeChannel(c.localID);
 
-			c.notifyAll();
+			c.stateChanged();
+		} finally {
+			c.lock.unlock();
 		}
 
 		if (log.isEnabled())
@@ -417,7 +815,8 @@ public class ChannelManager implements MessageHandler {
 			log.log(80, "Got SSH_MSG_CHANNEL_DATA (channel " + id + ", " + len
 					+ ")");
 
-		synchronized (c) {
+		c.lock.lock();
+		try {
 			if (c.state == Channel.STATE_CLOSED)
 				return; // ignore
 
@@ -432,10 +831,15 @@ public class ChannelManager implements MessageHandler {
 
 			c.localWindow -= len;
 
-			System.arraycopy(msg, 9, c.stdoutBuffer, c.stdoutWritepos, len);
-			c.stdoutWritepos += len;
+			if (c.timeoutToken != null)
+				c.lastActivity = System.currentTimeMillis();
 
-			c.notifyAll();
+			c.stdoutBuffer.write(msg, 9, len, c.windowSize);
+
+			c.dataAvailable.signalAll();
+			c.notifyListener();
+		} finally {
+			c.lock.unlock();
 		}
 	}
 
@@ -455,9 +859,14 @@ public class ChannelManager implements MessageHandler {
 					"Unexpected SSH_MSG_CHANNEL_EOF message for non-existent channel "
 							+ id);
 
-		synchronized (c) {
+		c.lock.lock();
+		try {
 			c.EOF = true;
-			c.notifyAll();
+			halfClosed(c);
+			c.dataAvailable.signalAll();
+			c.notifyListener();
+		} finally {
+			c.lock.unlock();
 		}
 
 		if (log.isEnabled())
@@ -499,7 +908,8 @@ public class ChannelManager implements MessageHandler {
 			log.log(80, "Got SSH_MSG_CHANNEL_EXTENDED_DATA (channel " + id
 					+ ", " + len + ")");
 
-		synchronized (c) {
+		c.lock.lock();
+		try {
 			if (c.state == Channel.STATE_CLOSED)
 				return; // ignore
 
@@ -514,10 +924,15 @@ public class ChannelManager implements MessageHandler {
 
 			c.localWindow -= len;
 
-			System.arraycopy(msg, 13, c.stderrBuffer, c.stderrWritepos, len);
-			c.stderrWritepos += len;
+			if (c.timeoutToken != null)
+				c.lastActivity = System.currentTimeMillis();
 
-			c.notifyAll();
+			c.stderrBuffer.write(msg, 13, len, c.windowSize);
+
+			c.dataAvailable.signalAll();
+			c.notifyListener();
+		} finally {
+			c.lock.unlock();
 		}
 	}
 
@@ -537,9 +952,12 @@ public class ChannelManager implements MessageHandler {
 					"Unexpected SSH_MSG_CHANNEL_FAILURE message for non-existent channel "
 							+ id);
 
-		synchronized (c) {
+		c.lock.lock();
+		try {
 			c.failedCounter++;
-			c.notifyAll();
+			c.requestDone.signalAll();
+		} finally {
+			c.lock.unlock();
 		}
 
 		if (log.isEnabled())
@@ -580,16 +998,20 @@ public class ChannelManager implements MessageHandler {
 			String remoteOriginatorAddress = tr.readString();
 			int remoteOriginatorPort = tr.readUINT32();
 
-			Channel c = new Channel(this);
+			Channel c = new Channel(this, Channel.FORWARDING_BUFFER_SIZE);
 
-			synchronized (c) {
+			c.lock.lock();
+			try {
 				c.remoteID = remoteID;
 				c.remoteWindow = remoteWindow & 0xFFFFffffL; /*
 															 * properly convert
 															 * UINT32 to long
 															 */
 				c.remoteMaxPacketSize = remoteMaxPacketSize;
-				c.localID = addChannel(c);
+				addChannel(c);
+				armTimeouts(c, true);
+			} finally {
+				c.lock.unlock();
 			}
 
 			/*
@@ -598,8 +1020,7 @@ public class ChannelManager implements MessageHandler {
 
 			RemoteX11AcceptThread rxat = new RemoteX11AcceptThread(c,
 					remoteOriginatorAddress, remoteOriginatorPort);
-			rxat.setDaemon(true);
-			rxat.start();
+			ThreadService.start(rxat, "RemoteX11AcceptThread");
 
 			return;
 		}
@@ -643,16 +1064,20 @@ public class ChannelManager implements MessageHandler {
 				return;
 			}
 
-			Channel c = new Channel(this);
+			Channel c = new Channel(this, Channel.FORWARDING_BUFFER_SIZE);
 
-			synchronized (c) {
+			c.lock.lock();
+			try {
 				c.remoteID = remoteID;
 				c.remoteWindow = remoteWindow & 0xFFFFffffL; /*
 															 * convert UINT32 to
 															 * long
 															 */
 				c.remoteMaxPacketSize = remoteMaxPacketSize;
-				c.localID = addChannel(c);
+				addChannel(c);
+				armTimeouts(c, true);
+			} finally {
+				c.lock.unlock();
 			}
 
 			/*
@@ -664,30 +1089,32 @@ public class ChannelManager implements MessageHandler {
 					remoteOriginatorAddress, remoteOriginatorPort,
 					rfd.targetAddress, rfd.targetPort);
 
-			rat.setDaemon(true);
-			rat.start();
+			ThreadService.start(rat, "RemoteAcceptThread");
 
 			return;
 		}
 
 		if ("auth-agent@openssh.com".equals(channelType)) {
-			Channel c = new Channel(this);
+			Channel c = new Channel(this, Channel.AGENT_BUFFER_SIZE);
 
-			synchronized (c) {
+			c.lock.lock();
+			try {
 				c.remoteID = remoteID;
 				c.remoteWindow = remoteWindow & 0xFFFFffffL; /*
 															 * properly convert
 															 * UINT32 to long
 															 */
 				c.remoteMaxPacketSize = remoteMaxPacketSize;
-				c.localID = addChannel(c);
+				addChannel(c);
+				armTimeouts(c, false);
+			} finally {
+				c.lock.unlock();
 			}
 
 			AuthAgentForwardThread aat = new AuthAgentForwardThread(c,
 					authAgent);
 
-			aat.setDaemon(true);
-			aat.start();
+			ThreadService.start(aat, "AuthAgentForwardThread");
 
 			return;
 		}
@@ -717,27 +1144,76 @@ public class ChannelManager implements MessageHandler {
 					"Unexpected SSH_MSG_CHANNEL_OPEN_CONFIRMATION message for non-existent channel "
 							+ sm.recipientChannelID);
 
-		synchronized (c) {
-			if (c.state != Channel.STATE_OPENING)
+		byte[] pending = null;
+
+		c.lock.lock();
+		try {
+			if ((c.state != Channel.STATE_OPENING) && !c.closePending)
 				throw new IOException(
 						"Unexpected SSH_MSG_CHANNEL_OPEN_CONFIRMATION message for channel "
 								+ sm.recipientChannelID);
 
 			c.remoteID = sm.senderChannelID;
-			c.remoteWindow = sm.initialWindowSize & 0xFFFFffffL; /*
-																 * convert
-																 * UINT32 to
-																 * long
-																 */
-			c.remoteMaxPacketSize = sm.maxPacketSize;
-			c.state = Channel.STATE_OPEN;
-			c.notifyAll();
+
+			if (c.closePending) {
+				/* Closed locally in the meantime */
+
+				c.closePending = false;
+				c.state = Channel.STATE_CLOSED;
+				c.EOF = true;
+				c.closeMessageSent = true;
+				c.stateChanged();
+
+				pending = new byte[5];
+				pending[0] = Packets.SSH_MSG_CHANNEL_CLOSE;
+			} else {
+				c.remoteWindow = sm.initialWindowSize & 0xFFFFffffL; /*
+																	 * convert
+																	 * UINT32
+																	 * to long
+																	 */
+				c.remoteMaxPacketSize = sm.maxPacketSize;
+				c.state = Channel.STATE_OPEN;
+				c.stateChanged();
+
+				c.windowAdjustTime = System.nanoTime();
+
+				if (c.openRequestTime != 0) {
+					long rtt = c.windowAdjustTime - c.openRequestTime;
+
+					if ((minRoundTripNanos == 0) || (rtt < minRoundTripNanos))
+						minRoundTripNanos = rtt;
+				}
+
+				if (c.eofPending) {
+					c.eofPending = false;
+
+					pending = new byte[5];
+					pending[0] = Packets.SSH_MSG_CHANNEL_EOF;
+				}
+			}
+
+			if (pending != null) {
+				pending[1] = (byte) (c.remoteID >> 24);
+				pending[2] = (byte) (c.remoteID >> 16);
+				pending[3] = (byte) (c.remoteID >> 8);
+				pending[4] = (byte) (c.remoteID);
+			}
+		} finally {
+			c.lock.unlock();
 		}
 
+		/* We must not block the receive thread */
+
+		if (pending != null)
+			tm.sendAsynchronousMessage(pending);
+
 		if (log.isEnabled())
 			log.log(50, "Got SSH_MSG_CHANNEL_OPEN_CONFIRMATION (channel "
 					+ sm.recipientChannelID + " / remote: "
 					+ sm.senderChannelID + ")");
+
+		notifyOpenListener(c);
 	}
 
 	public void msgChannelOpenFailure(byte[] msg, int msglen)
@@ -792,17 +1268,64 @@ public class ChannelManager implements MessageHandler {
 			descriptionBuffer.setCharAt(i, '\uFFFD');
 		}
 
-		synchronized (c) {
+		c.lock.lock();
+		try {
 			c.EOF = true;
 			c.state = Channel.STATE_CLOSED;
+			c.closePending = false;
+			c.closeMessageSent = true; /* there is nothing to close */
+			c.openFailureCode = reasonCode;
 			c.setReasonClosed("The server refused to open the channel ("
 					+ reasonCodeSymbolicName + ", '"
 					+ descriptionBuffer.toString() + "')");
-			c.notifyAll();
+
+			/* Nobody may wait for it (asynchronous open) */
+			removeChannel(c.localID);
+
+			c.stateChanged();
+		} finally {
+			c.lock.unlock();
 		}
 
 		if (log.isEnabled())
 			log.log(50, "Got SSH_MSG_CHANNEL_OPEN_FAILURE (channel " + id + ")");
+
+		notifyOpenListener(c);
+	}
+
+	/**
+	 * Reports the outcome of an asynchronous open request (once).
+	 */
+	private void notifyOpenListener(Channel c) {
+		ChannelOpenListener l;
+		boolean opened;
+		String reason;
+		int reasonCode;
+
+		c.lock.lock();
+		try {
+			l = c.openListener;
+			c.openListener = null;
+			opened = (c.state == Channel.STATE_OPEN);
+			reasonCode = c.openFailureCode;
+		} finally {
+			c.lock.unlock();
+		}
+
+		if (l == null)
+			return;
+
+		reason = c.getReasonClosed();
+
+		try {
+			if (opened)
+				l.channelOpened(c);
+			else
+				l.channelOpenFailed(c, reason, reasonCode);
+		} catch (RuntimeException e) {
+			if (log.isEnabled())
+				log.log(20, "ChannelOpenListener failed: " + e.getMessage());
+		}
 	}
 
 	public void msgChannelRequest(byte[] msg, int msglen) throws IOException {
@@ -836,9 +1359,12 @@ public class ChannelManager implements MessageHandler {
 				throw new IOException(
 						"Badly formatted SSH_MSG_CHANNEL_REQUEST message");
 
-			synchronized (c) {
+			c.lock.lock();
+			try {
 				c.exit_status = new Integer(exit_status);
-				c.notifyAll();
+				c.dataAvailable.signalAll();
+			} finally {
+				c.lock.unlock();
 			}
 
 			if (log.isEnabled())
@@ -862,9 +1388,12 @@ public class ChannelManager implements MessageHandler {
 				throw new IOException(
 						"Badly formatted SSH_MSG_CHANNEL_REQUEST message");
 
-			synchronized (c) {
+			c.lock.lock();
+			try {
 				c.exit_signal = signame;
-				c.notifyAll();
+				c.dataAvailable.signalAll();
+			} finally {
+				c.lock.unlock();
 			}
 
 			if (log.isEnabled())
@@ -912,9 +1441,12 @@ public class ChannelManager implements MessageHandler {
 					"Unexpected SSH_MSG_CHANNEL_SUCCESS message for non-existent channel "
 							+ id);
 
-		synchronized (c) {
+		c.lock.lock();
+		try {
 			c.successCounter++;
-			c.notifyAll();
+			c.requestDone.signalAll();
+		} finally {
+			c.lock.unlock();
 		}
 
 		if (log.isEnabled())
@@ -940,7 +1472,8 @@ public class ChannelManager implements MessageHandler {
 					"Unexpected SSH_MSG_CHANNEL_WINDOW_ADJUST message for non-existent channel "
 							+ id);
 
-		synchronized (c) {
+		c.lock.lock();
+		try {
 			final long huge = 0xFFFFffffL; /* 2^32 - 1 */
 
 			c.remoteWindow += (windowChange & huge); /* avoid sign extension */
@@ -950,7 +1483,10 @@ public class ChannelManager implements MessageHandler {
 			if ((c.remoteWindow > huge))
 				c.remoteWindow = huge;
 
-			c.notifyAll();
+			c.windowAvailable.signalAll();
+			c.notifyListener();
+		} finally {
+			c.lock.unlock();
 		}
 
 		if (log.isEnabled())
@@ -1003,11 +1539,42 @@ public class ChannelManager implements MessageHandler {
 	public Channel openDirectTCPIPChannel(String host_to_connect,
 			int port_to_connect, String originator_IP_address,
 			int originator_port) throws IOException {
-		Channel c = new Channel(this);
+		Channel c = openDirectTCPIPChannelAsync(host_to_connect,
+				port_to_connect, originator_IP_address, originator_port, null);
+
+		waitUntilChannelOpen(c);
+
+		return c;
+	}
+
+	/**
+	 * Sends the open request for a direct-tcpip channel without waiting for
+	 * the answer of the server, so that many requests can be in flight
+	 * without a thread each.
+	 * <p>
+	 * The channel can be used right away: data written to it is held back
+	 * until the server has confirmed the channel, reads block until then. If
+	 * the server refuses, reads return EOF and writes fail. Use
+	 * {@link #waitUntilChannelOpen(Channel)} to wait for the outcome.
+	 * 
+	 * @param listener
+	 *            gets the outcome, may be <code>null</code>.
+	 */
+	public Channel openDirectTCPIPChannelAsync(String host_to_connect,
+			int port_to_connect, String originator_IP_address,
+			int originator_port, ChannelOpenListener listener)
+			throws IOException {
+		Channel c = new Channel(this, Channel.FORWARDING_BUFFER_SIZE);
 
-		synchronized (c) {
-			c.localID = addChannel(c);
+		c.lock.lock();
+		try {
+			addChannel(c);
+			armTimeouts(c, true);
+			c.openRequestTime = System.nanoTime();
+			c.openListener = listener;
 			// end of synchronized block forces writing out to main memory
+		} finally {
+			c.lock.unlock();
 		}
 
 		PacketOpenDirectTCPIPChannel dtc = new PacketOpenDirectTCPIPChannel(
@@ -1017,17 +1584,20 @@ public class ChannelManager implements MessageHandler {
 
 		tm.sendMessage(dtc.getPayload());
 
-		waitUntilChannelOpen(c);
-
 		return c;
 	}
 
 	public Channel openSessionChannel() throws IOException {
 		Channel c = new Channel(this);
 
-		synchronized (c) {
-			c.localID = addChannel(c);
+		c.lock.lock();
+		try {
+			addChannel(c);
+			armTimeouts(c, false);
+			c.openRequestTime = System.nanoTime();
 			// end of synchronized block forces the writing out to main memory
+		} finally {
+			c.lock.unlock();
 		}
 
 		if (log.isEnabled())
@@ -1058,15 +1628,12 @@ public class ChannelManager implements MessageHandler {
 	}
 
 	private void removeChannel(int id) {
-		synchronized (channels) {
-			for (int i = 0; i < channels.size(); i++) {
-				Channel c = (Channel) channels.elementAt(i);
-				if (c.localID == id) {
-					channels.removeElementAt(i);
-					break;
-				}
-			}
-		}
+		Channel c = channels.get(id);
+
+		channels.remove(id);
+
+		if ((c != null) && (c.timeoutToken != null))
+			TimeoutService.cancelTimeoutHandler(c.timeoutToken);
 	}
 
 	public void requestCancelGlobalForward(int bindPort) throws IOException {
@@ -1131,7 +1698,7 @@ public class ChannelManager implements MessageHandler {
 
 		PacketChannelAuthAgentReq aar = new PacketChannelAuthAgentReq(
 				c.remoteID);
-		tm.sendMessage(aar.getPayload());
+		tm.sendControlMessage(c.sendFlow, aar.getPayload());
 
 		if (waitForChannelRequestResult(c) == false) {
 			authAgent = null;
@@ -1144,7 +1711,8 @@ public class ChannelManager implements MessageHandler {
 	public void requestChannelTrileadPing(Channel c) throws IOException {
 		PacketChannelTrileadPing pctp;
 
-		synchronized (c) {
+		c.lock.lock();
+		try {
 			if (c.state != Channel.STATE_OPEN)
 				throw new IOException("Cannot ping this channel ("
 						+ c.getReasonClosed() + ")");
@@ -1152,13 +1720,15 @@ public class ChannelManager implements MessageHandler {
 			pctp = new PacketChannelTrileadPing(c.remoteID);
 
 			c.successCounter = c.failedCounter = 0;
+		} finally {
+			c.lock.unlock();
 		}
 
 		synchronized (c.channelSendLock) {
 			if (c.closeMessageSent)
 				throw new IOException("Cannot ping this channel ("
 						+ c.getReasonClosed() + ")");
-			tm.sendMessage(pctp.getPayload());
+			tm.sendControlMessage(c.sendFlow, pctp.getPayload());
 		}
 
 		try {
@@ -1176,7 +1746,8 @@ public class ChannelManager implements MessageHandler {
 	public void requestExecCommand(Channel c, String cmd) throws IOException {
 		PacketSessionExecCommand sm;
 
-		synchronized (c) {
+		c.lock.lock();
+		try {
 			if (c.state != Channel.STATE_OPEN)
 				throw new IOException(
 						"Cannot execute command on this channel ("
@@ -1185,6 +1756,8 @@ public class ChannelManager implements MessageHandler {
 			sm = new PacketSessionExecCommand(c.remoteID, true, cmd);
 
 			c.successCounter = c.failedCounter = 0;
+		} finally {
+			c.lock.unlock();
 		}
 
 		synchronized (c.channelSendLock) {
@@ -1192,7 +1765,7 @@ public class ChannelManager implements MessageHandler {
 				throw new IOException(
 						"Cannot execute command on this channel ("
 								+ c.getReasonClosed() + ")");
-			tm.sendMessage(sm.getPayload());
+			tm.sendControlMessage(c.sendFlow, sm.getPayload());
 		}
 
 		if (log.isEnabled())
@@ -1284,7 +1857,8 @@ public class ChannelManager implements MessageHandler {
 			int term_height_pixels, byte[] terminal_modes) throws IOException {
 		PacketSessionPtyRequest spr;
 
-		synchronized (c) {
+		c.lock.lock();
+		try {
 			if (c.state != Channel.STATE_OPEN)
 				throw new IOException("Cannot request PTY on this channel ("
 						+ c.getReasonClosed() + ")");
@@ -1294,13 +1868,15 @@ public class ChannelManager implements MessageHandler {
 					term_width_pixels, term_height_pixels, terminal_modes);
 
 			c.successCounter = c.failedCounter = 0;
+		} finally {
+			c.lock.unlock();
 		}
 
 		synchronized (c.channelSendLock) {
 			if (c.closeMessageSent)
 				throw new IOException("Cannot request PTY on this channel ("
 						+ c.getReasonClosed() + ")");
-			tm.sendMessage(spr.getPayload());
+			tm.sendControlMessage(c.sendFlow, spr.getPayload());
 		}
 
 		try {
@@ -1315,7 +1891,8 @@ public class ChannelManager implements MessageHandler {
 	public void requestShell(Channel c) throws IOException {
 		PacketSessionStartShell sm;
 
-		synchronized (c) {
+		c.lock.lock();
+		try {
 			if (c.state != Channel.STATE_OPEN)
 				throw new IOException("Cannot start shell on this channel ("
 						+ c.getReasonClosed() + ")");
@@ -1323,13 +1900,15 @@ public class ChannelManager implements MessageHandler {
 			sm = new PacketSessionStartShell(c.remoteID, true);
 
 			c.successCounter = c.failedCounter = 0;
+		} finally {
+			c.lock.unlock();
 		}
 
 		synchronized (c.channelSendLock) {
 			if (c.closeMessageSent)
 				throw new IOException("Cannot start shell on this channel ("
 						+ c.getReasonClosed() + ")");
-			tm.sendMessage(sm.getPayload());
+			tm.sendControlMessage(c.sendFlow, sm.getPayload());
 		}
 
 		try {
@@ -1345,7 +1924,8 @@ public class ChannelManager implements MessageHandler {
 			throws IOException {
 		PacketSessionSubsystemRequest ssr;
 
-		synchronized (c) {
+		c.lock.lock();
+		try {
 			if (c.state != Channel.STATE_OPEN)
 				throw new IOException(
 						"Cannot request subsystem on this channel ("
@@ -1355,6 +1935,8 @@ public class ChannelManager implements MessageHandler {
 					subSystemName);
 
 			c.successCounter = c.failedCounter = 0;
+		} finally {
+			c.lock.unlock();
 		}
 
 		synchronized (c.channelSendLock) {
@@ -1362,7 +1944,7 @@ public class ChannelManager implements MessageHandler {
 				throw new IOException(
 						"Cannot request subsystem on this channel ("
 								+ c.getReasonClosed() + ")");
-			tm.sendMessage(ssr.getPayload());
+			tm.sendControlMessage(c.sendFlow, ssr.getPayload());
 		}
 
 		try {
@@ -1379,7 +1961,8 @@ public class ChannelManager implements MessageHandler {
 			int x11ScreenNumber) throws IOException {
 		PacketSessionX11Request psr;
 
-		synchronized (c) {
+		c.lock.lock();
+		try {
 			if (c.state != Channel.STATE_OPEN)
 				throw new IOException("Cannot request X11 on this channel ("
 						+ c.getReasonClosed() + ")");
@@ -1389,13 +1972,15 @@ public class ChannelManager implements MessageHandler {
 					x11AuthenticationCookie, x11ScreenNumber);
 
 			c.successCounter = c.failedCounter = 0;
+		} finally {
+			c.lock.unlock();
 		}
 
 		synchronized (c.channelSendLock) {
 			if (c.closeMessageSent)
 				throw new IOException("Cannot request X11 on this channel ("
 						+ c.getReasonClosed() + ")");
-			tm.sendMessage(psr.getPayload());
+			tm.sendControlMessage(c.sendFlow, psr.getPayload());
 		}
 
 		if (log.isEnabled())
@@ -1416,7 +2001,8 @@ public class ChannelManager implements MessageHandler {
 			int term_height_pixels) throws IOException {
 		PacketSessionPtyResize spr;
 
-		synchronized (c) {
+		c.lock.lock();
+		try {
 			if (c.state != Channel.STATE_OPEN)
 				throw new IOException("Cannot request PTY on this channel ("
 						+ c.getReasonClosed() + ")");
@@ -1425,37 +2011,65 @@ public class ChannelManager implements MessageHandler {
 					term_height_characters, term_width_pixels,
 					term_height_pixels);
 			c.successCounter = c.failedCounter = 0;
+		} finally {
+			c.lock.unlock();
 		}
 
 		synchronized (c.channelSendLock) {
 			if (c.closeMessageSent)
 				throw new IOException("Cannot request PTY on this channel ("
 						+ c.getReasonClosed() + ")");
-			tm.sendMessage(spr.getPayload());
+			tm.sendControlMessage(c.sendFlow, spr.getPayload());
 		}
 	}
 
 	public void sendData(Channel c, byte[] buffer, int pos, int len)
 			throws IOException {
+		sendData(c, buffer, pos, len, true);
+	}
+
+	/**
+	 * Non-blocking variant of {@link #sendData(Channel, byte[], int, int)}:
+	 * sends as much as the remote window allows right now. The channel's
+	 * listener is notified once the window opens again.
+	 * 
+	 * @return the number of bytes sent, may be 0.
+	 */
+	public int trySendData(Channel c, byte[] buffer, int pos, int len)
+			throws IOException {
+		return sendData(c, buffer, pos, len, false);
+	}
+
+	private int sendData(Channel c, byte[] buffer, int pos, int len,
+			boolean wait) throws IOException {
+		int sent = 0;
+
 		while (len > 0) {
 			int thislen = 0;
-			byte[] msg;
+			int remoteID;
 
-			synchronized (c) {
+			c.lock.lock();
+			try {
 				while (true) {
 					if (c.state == Channel.STATE_CLOSED)
 						throw new IOException("SSH channel is closed. ("
 								+ c.getReasonClosed() + ")");
 
-					if (c.state != Channel.STATE_OPEN)
+					if ((c.state != Channel.STATE_OPEN)
+							&& (c.state != Channel.STATE_OPENING))
 						throw new IOException("SSH channel in strange state. ("
 								+ c.state + ")");
 
-					if (c.remoteWindow != 0)
+					/* While opening, wait for the confirmation (and window) */
+
+					if ((c.state == Channel.STATE_OPEN) && (c.remoteWindow != 0))
 						break;
 
+					if (!wait)
+						return sent;
+
 					try {
-						c.wait();
+						c.windowAvailable.await();
 					} catch (InterruptedException ignore) {
 					}
 				}
@@ -1478,52 +2092,79 @@ public class ChannelManager implements MessageHandler {
 
 				c.remoteWindow -= thislen;
 
-				msg = new byte[1 + 8 + thislen];
+				if (c.timeoutToken != null)
+					c.lastActivity = System.currentTimeMillis();
 
-				msg[0] = Packets.SSH_MSG_CHANNEL_DATA;
-				msg[1] = (byte) (c.remoteID >> 24);
-				msg[2] = (byte) (c.remoteID >> 16);
-				msg[3] = (byte) (c.remoteID >> 8);
-				msg[4] = (byte) (c.remoteID);
-				msg[5] = (byte) (thislen >> 24);
-				msg[6] = (byte) (thislen >> 16);
-				msg[7] = (byte) (thislen >> 8);
-				msg[8] = (byte) (thislen);
-
-				System.arraycopy(buffer, pos, msg, 9, thislen);
+				remoteID = c.remoteID; /* read while holding the lock */
+			} finally {
+				c.lock.unlock();
 			}
 
+			/*
+			 * The data is copied straight from the caller's buffer into the
+			 * transport, only the header is assembled here.
+			 */
+
 			synchronized (c.channelSendLock) {
 				if (c.closeMessageSent == true)
 					throw new IOException("SSH channel is closed. ("
 							+ c.getReasonClosed() + ")");
 
-				tm.sendMessage(msg);
+				byte[] header = c.msgDataHeader;
+
+				header[0] = Packets.SSH_MSG_CHANNEL_DATA;
+				header[1] = (byte) (remoteID >> 24);
+				header[2] = (byte) (remoteID >> 16);
+				header[3] = (byte) (remoteID >> 8);
+				header[4] = (byte) (remoteID);
+				header[5] = (byte) (thislen >> 24);
+				header[6] = (byte) (thislen >> 16);
+				header[7] = (byte) (thislen >> 8);
+				header[8] = (byte) (thislen);
+
+				tm.sendMessage(c.sendFlow, header, 9, buffer, pos, thislen);
 			}
 
 			pos += thislen;
 			len -= thislen;
+			sent += thislen;
 		}
+
+		return sent;
 	}
 
 	public void sendEOF(Channel c) throws IOException {
 		byte[] msg = new byte[5];
 
-		synchronized (c) {
+		c.lock.lock();
+		try {
+			if (c.state == Channel.STATE_OPENING) {
+				/*
+				 * Sent on confirmation. Callers send EOF after their data,
+				 * which cannot have been sent yet, so nothing can overtake it.
+				 */
+				c.eofPending = true;
+				return;
+			}
+
 			if (c.state != Channel.STATE_OPEN)
 				return;
 
+			halfClosed(c);
+
 			msg[0] = Packets.SSH_MSG_CHANNEL_EOF;
 			msg[1] = (byte) (c.remoteID >> 24);
 			msg[2] = (byte) (c.remoteID >> 16);
 			msg[3] = (byte) (c.remoteID >> 8);
 			msg[4] = (byte) (c.remoteID);
+		} finally {
+			c.lock.unlock();
 		}
 
 		synchronized (c.channelSendLock) {
 			if (c.closeMessageSent == true)
 				return;
-			tm.sendMessage(msg);
+			tm.sendControlMessage(c.sendFlow, msg);
 		}
 
 		if (log.isEnabled())
@@ -1534,14 +2175,18 @@ public class ChannelManager implements MessageHandler {
 	public void sendOpenConfirmation(Channel c) throws IOException {
 		PacketChannelOpenConfirmation pcoc = null;
 
-		synchronized (c) {
+		c.lock.lock();
+		try {
 			if (c.state != Channel.STATE_OPENING)
 				return;
 
 			c.state = Channel.STATE_OPEN;
+			c.windowAdjustTime = System.nanoTime();
 
 			pcoc = new PacketChannelOpenConfirmation(c.remoteID, c.localID,
 					c.localWindow, c.localMaxPacketSize);
+		} finally {
+			c.lock.unlock();
 		}
 
 		synchronized (c.channelSendLock) {
@@ -1565,18 +2210,17 @@ public class ChannelManager implements MessageHandler {
 		if (log.isEnabled())
 			log.log(50, "Closing all X11 channels for the given fake cookie");
 
-		Vector channel_copy;
-
-		synchronized (channels) {
-			channel_copy = (Vector) channels.clone();
-		}
+		Vector<Channel> channel_copy = channels.snapshot();
 
 		for (int i = 0; i < channel_copy.size(); i++) {
-			Channel c = (Channel) channel_copy.elementAt(i);
+			Channel c = channel_copy.elementAt(i);
 
-			synchronized (c) {
+			c.lock.lock();
+			try {
 				if (hexFakeCookie.equals(c.hexX11FakeCookie) == false)
 					continue;
+			} finally {
+				c.lock.unlock();
 			}
 
 			try {
@@ -1591,7 +2235,8 @@ public class ChannelManager implements MessageHandler {
 
 	private final boolean waitForChannelRequestResult(Channel c)
 			throws IOException {
-		synchronized (c) {
+		c.lock.lock();
+		try {
 			while ((c.successCounter == 0) && (c.failedCounter == 0)) {
 				if (c.state != Channel.STATE_OPEN) {
 					String detail = c.getReasonClosed();
@@ -1604,7 +2249,7 @@ public class ChannelManager implements MessageHandler {
 				}
 
 				try {
-					c.wait();
+					c.requestDone.await();
 				} catch (InterruptedException ignore) {
 				}
 			}
@@ -1618,6 +2263,8 @@ public class ChannelManager implements MessageHandler {
 			throw new IOException("Illegal state. The server sent "
 					+ c.successCounter + " SSH_MSG_CHANNEL_SUCCESS and "
 					+ c.failedCounter + " SSH_MSG_CHANNEL_FAILURE messages.");
+		} finally {
+			c.lock.unlock();
 		}
 	}
 
@@ -1637,12 +2284,13 @@ public class ChannelManager implements MessageHandler {
 		long end_time = 0;
 		boolean end_time_set = false;
 
-		synchronized (c) {
+		c.lock.lock();
+		try {
 			while (true) {
 				int current_cond = 0;
 
-				int stdoutAvail = c.stdoutWritepos - c.stdoutReadpos;
-				int stderrAvail = c.stderrWritepos - c.stderrReadpos;
+				int stdoutAvail = c.stdoutBuffer.available();
+				int stderrAvail = c.stderrBuffer.available();
 
 				if (stdoutAvail > 0)
 					current_cond = current_cond | ChannelCondition.STDOUT_DATA;
@@ -1680,12 +2328,14 @@ public class ChannelManager implements MessageHandler {
 
 				try {
 					if (timeout > 0)
-						c.wait(timeout);
+						c.dataAvailable.await(timeout, TimeUnit.MILLISECONDS);
 					else
-						c.wait();
+						c.dataAvailable.await();
 				} catch (InterruptedException e) {
 				}
 			}
+		} finally {
+			c.lock.unlock();
 		}
 	}
 
@@ -1715,11 +2365,18 @@ public class ChannelManager implements MessageHandler {
 		}
 	}
 
-	private void waitUntilChannelOpen(Channel c) throws IOException {
-		synchronized (c) {
+	/**
+	 * Waits until the server has answered the open request of the channel.
+	 * 
+	 * @throws IOException
+	 *             if the channel could not be opened.
+	 */
+	public void waitUntilChannelOpen(Channel c) throws IOException {
+		c.lock.lock();
+		try {
 			while (c.state == Channel.STATE_OPENING) {
 				try {
-					c.wait();
+					c.requestDone.await();
 				} catch (InterruptedException ignore) {
 				}
 			}
@@ -1734,6 +2391,8 @@ public class ChannelManager implements MessageHandler {
 
 				throw new IOException("Could not open channel (" + detail + ")");
 			}
+		} finally {
+			c.lock.unlock();
 		}
 	}
 }
@@ -0,0 +1,19 @@
+package com.trilead.ssh2.channel;
+
+import java.io.IOException;
+
+/**
+ * ChannelManagerSelector. Chooses the connection (i.e., its channel manager)
+ * for each new forwarded channel, e.g., the least loaded connection of a
+ * pool.
+ *
+ * @version $Id$
+ */
+public interface ChannelManagerSelector {
+	/**
+	 * @return the channel manager that shall open the next channel.
+	 * @throws IOException
+	 *             if no connection is available.
+	 */
+	public ChannelManager selectChannelManager() throws IOException;
+}
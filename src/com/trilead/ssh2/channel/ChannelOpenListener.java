@@ -0,0 +1,32 @@
+package com.trilead.ssh2.channel;
+
+/**
+ * ChannelOpenListener. Receives the outcome of an asynchronous channel open
+ * request, see
+ * {@link ChannelManager#openDirectTCPIPChannelAsync(String, int, String, int, ChannelOpenListener)}
+ * .
+ * <p>
+ * The methods are called by the receive thread of the connection (or while
+ * the connection is being shut down). They must not block and must not send
+ * anything on the connection themselves. Talking to a local client counts as
+ * blocking, too: hand the outcome to another thread, which answers the client
+ * and starts the forwarding.
+ *
+ * @version $Id$
+ */
+public interface ChannelOpenListener {
+	/**
+	 * The server has confirmed the channel, it can be used now.
+	 */
+	public void channelOpened(Channel c);
+
+	/**
+	 * The server refused to open the channel, or the connection has been
+	 * closed before the answer arrived.
+	 *
+	 * @param reasonCode
+	 *            the SSH_OPEN_* reason code sent by the server, 0 if the
+	 *            connection has been closed.
+	 */
+	public void channelOpenFailed(Channel c, String reason, int reasonCode);
+}
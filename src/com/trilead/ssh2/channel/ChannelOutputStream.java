@@ -2,40 +2,118 @@ package com.trilead.ssh2.channel;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.trilead.ssh2.util.BufferPool;
 
 /**
  * ChannelOutputStream.
- * 
+ * <p>
+ * By default every write is sent as (at least) one SSH packet. In coalescing
+ * mode (see {@link #setCoalescingDelay(long)}) small writes are collected
+ * and sent together once a packet is full, once the collected data fills the
+ * remote window, on {@link #flush()}, or when the first collected byte has
+ * waited for the coalescing delay.
+ *
  * @author Christian Plattner, plattner@trilead.com
  * @version $Id: ChannelOutputStream.java,v 1.1 2007/10/15 12:49:56 cplattne Exp
  *          $
  */
 public final class ChannelOutputStream extends OutputStream {
+	/* Max. number of bytes collected in coalescing mode */
+
+	static final int COALESCING_BUFFER_SIZE = 32768;
+
+	/* Retry delay if a deadline flush cannot make progress, in ns */
+
+	private static final long FLUSH_RETRY_NANOS = 1000000L;
+
+	private static final BufferPool pool = BufferPool.getShared();
+
 	Channel c;
 
 	private byte[] writeBuffer;
 
 	boolean isClosed = false;
 
+	/*
+	 * Coalescing mode. The buffer and the flags are protected by the lock,
+	 * which is never waited for by the flusher thread of the connection.
+	 */
+
+	private volatile long coalescingDelay = 0;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private byte[] pending = null;
+	private int pendingLen = 0;
+	private boolean flushScheduled = false;
+	private IOException flushError = null;
+
+	private final Runnable deadlineFlush = new Runnable() {
+		@Override
+		public void run() {
+			flushOnDeadline();
+		}
+	};
+
 	ChannelOutputStream(Channel c) {
 		this.c = c;
 		writeBuffer = new byte[1];
 	}
 
+	/**
+	 * Enables or disables the coalescing of small writes.
+	 *
+	 * @param micros
+	 *            max. time the first collected byte may wait, in
+	 *            microseconds. 0 (the default) disables coalescing, each write
+	 *            is sent immediately.
+	 */
+	public void setCoalescingDelay(long micros) {
+		if (micros < 0)
+			throw new IllegalArgumentException("Illegal delay " + micros);
+
+		coalescingDelay = micros * 1000;
+	}
+
+	/**
+	 * @return the coalescing delay in microseconds, 0 if disabled.
+	 */
+	public long getCoalescingDelay() {
+		return coalescingDelay / 1000;
+	}
+
 	@Override
 	public void close() throws IOException {
-		if (isClosed == false) {
-			isClosed = true;
-			c.cm.sendEOF(c);
+		lock.lock();
+		try {
+			if (isClosed == false) {
+				isClosed = true;
+
+				try {
+					sendPending();
+				} finally {
+					c.cm.sendEOF(c);
+				}
+			}
+		} finally {
+			lock.unlock();
 		}
 	}
 
 	@Override
 	public void flush() throws IOException {
-		if (isClosed)
-			throw new IOException("This OutputStream is closed.");
+		lock.lock();
+		try {
+			if (isClosed)
+				throw new IOException("This OutputStream is closed.");
+
+			/* A no-op, unless data has been collected in coalescing mode */
 
-		/* This is a no-op, since this stream is unbuffered */
+			sendPending();
+		} finally {
+			lock.unlock();
+		}
 	}
 
 	@Override
@@ -45,9 +123,6 @@ public final class ChannelOutputStream extends OutputStream {
 
 	@Override
 	public void write(byte[] b, int off, int len) throws IOException {
-		if (isClosed)
-			throw new IOException("This OutputStream is closed.");
-
 		if (b == null)
 			throw new NullPointerException();
 
@@ -55,16 +130,148 @@ public final class ChannelOutputStream extends OutputStream {
 				|| ((off + len) < 0) || (off > b.length))
 			throw new IndexOutOfBoundsException();
 
-		if (len == 0)
-			return;
+		lock.lock();
+		try {
+			if (isClosed)
+				throw new IOException("This OutputStream is closed.");
+
+			if (len == 0)
+				return;
 
-		c.cm.sendData(c, b, off, len);
+			if ((coalescingDelay == 0) && (pendingLen == 0)) {
+				c.cm.sendData(c, b, off, len);
+				return;
+			}
+
+			collect(b, off, len);
+		} finally {
+			lock.unlock();
+		}
 	}
 
 	@Override
 	public void write(int b) throws IOException {
-		writeBuffer[0] = (byte) b;
+		lock.lock();
+		try {
+			writeBuffer[0] = (byte) b;
+
+			write(writeBuffer, 0, 1);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/* Called while holding the lock */
+
+	private void collect(byte[] b, int off, int len) throws IOException {
+		throwFlushError();
+
+		while (len > 0) {
+			int limit = c.cm.getCoalescingLimit(c, COALESCING_BUFFER_SIZE);
+
+			/* Nothing to gain for writes that fill a packet on their own */
+
+			if ((pendingLen == 0) && (len >= limit)) {
+				c.cm.sendData(c, b, off, len);
+				return;
+			}
 
-		write(writeBuffer, 0, 1);
+			if (pendingLen >= limit) {
+				sendPending();
+				continue;
+			}
+
+			if (pending == null)
+				pending = pool.acquire(COALESCING_BUFFER_SIZE);
+
+			int n = Math.min(len, limit - pendingLen);
+
+			System.arraycopy(b, off, pending, pendingLen, n);
+			pendingLen += n;
+			off += n;
+			len -= n;
+
+			if (pendingLen >= limit)
+				sendPending();
+		}
+
+		if ((pendingLen > 0) && !flushScheduled)
+			scheduleFlush(coalescingDelay);
+	}
+
+	/* Called while holding the lock */
+
+	private void sendPending() throws IOException {
+		throwFlushError();
+
+		if (pendingLen == 0)
+			return;
+
+		int len = pendingLen;
+
+		pendingLen = 0;
+
+		try {
+			c.cm.sendData(c, pending, 0, len);
+		} finally {
+			pool.release(pending);
+			pending = null;
+		}
+	}
+
+	private void throwFlushError() throws IOException {
+		if (flushError != null) {
+			IOException e = flushError;
+			flushError = null;
+			throw e;
+		}
+	}
+
+	private void scheduleFlush(long nanos) {
+		flushScheduled = true;
+		c.cm.scheduleFlush(deadlineFlush, nanos);
+	}
+
+	/**
+	 * Runs in the flusher thread of the connection. Does not wait for the
+	 * lock or for the remote window, it retries later instead. Handing the
+	 * data to the transport may block (e.g., on the socket), that only
+	 * delays the streams of this connection.
+	 */
+	private void flushOnDeadline() {
+		if (!lock.tryLock()) {
+			c.cm.scheduleFlush(deadlineFlush, Math.max(coalescingDelay,
+					FLUSH_RETRY_NANOS));
+			return;
+		}
+
+		try {
+			flushScheduled = false;
+
+			if ((pendingLen == 0) || isClosed)
+				return;
+
+			int sent = c.cm.trySendData(c, pending, 0, pendingLen);
+
+			pendingLen -= sent;
+
+			if (pendingLen == 0) {
+				pool.release(pending);
+				pending = null;
+				return;
+			}
+
+			System.arraycopy(pending, sent, pending, 0, pendingLen);
+			scheduleFlush(Math.max(coalescingDelay, FLUSH_RETRY_NANOS));
+		} catch (IOException e) {
+			/* Reported to the next write or flush */
+
+			flushError = e;
+			pendingLen = 0;
+			pool.release(pending);
+			pending = null;
+		} finally {
+			lock.unlock();
+		}
 	}
 }
@@ -0,0 +1,157 @@
+package com.trilead.ssh2.channel;
+
+import java.io.IOException;
+import java.util.Vector;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * ChannelTable. Maps local channel IDs to channels in constant time. A local
+ * ID consists of a slot index (lower 16 bits) and the generation of that slot
+ * (bits 16-30), which is incremented whenever a channel is removed. Hence a
+ * late message for a closed channel never reaches a newer channel that reuses
+ * the slot.
+ * <p>
+ * Lookups do not lock, so that the receive thread never has to wait for
+ * threads that open or close channels. Adding and removing channels is
+ * synchronized on the table.
+ *
+ * @version $Id$
+ */
+final class ChannelTable {
+	private static final int SLOT_BITS = 16;
+	private static final int SLOT_MASK = (1 << SLOT_BITS) - 1;
+	private static final int MAX_SLOTS = 1 << SLOT_BITS;
+	private static final int GENERATION_MASK = 0x7fff;
+
+	private volatile AtomicReferenceArray<Channel> slots = new AtomicReferenceArray<Channel>(
+			64);
+
+	/* The following fields are protected by the table's monitor */
+
+	private int[] generations = new int[64];
+	private int[] freeSlots = new int[64];
+	private int freeCount = 0;
+	private int usedSlots = 0; /* slots ever handed out */
+	private int size = 0;
+
+	/**
+	 * Assigns a local ID to the channel (<code>c.localID</code>) and makes it
+	 * visible to {@link #get(int)}.
+	 *
+	 * @return the new local ID.
+	 */
+	synchronized int add(Channel c) throws IOException {
+		int slot;
+
+		if (freeCount > 0) {
+			slot = freeSlots[--freeCount];
+		} else {
+			if (usedSlots == MAX_SLOTS)
+				throw new IOException("Too many open channels (" + size + ")");
+
+			if (usedSlots == slots.length())
+				grow();
+
+			slot = usedSlots++;
+		}
+
+		int id = (generations[slot] << SLOT_BITS) | slot;
+
+		c.localID = id;
+		slots.set(slot, c);
+		size++;
+
+		return id;
+	}
+
+	/**
+	 * @return the channel with the given local ID, or null.
+	 */
+	Channel get(int id) {
+		int slot = id & SLOT_MASK;
+
+		AtomicReferenceArray<Channel> s = slots;
+
+		if (slot >= s.length())
+			return null;
+
+		Channel c = s.get(slot);
+
+		if ((c != null) && (c.localID == id))
+			return c;
+
+		return null;
+	}
+
+	synchronized void remove(int id) {
+		int slot = id & SLOT_MASK;
+
+		if (slot >= usedSlots)
+			return;
+
+		Channel c = slots.get(slot);
+
+		if ((c == null) || (c.localID != id))
+			return;
+
+		slots.set(slot, null);
+		generations[slot] = (generations[slot] + 1) & GENERATION_MASK;
+
+		if (freeCount == freeSlots.length) {
+			int[] tmp = new int[freeSlots.length * 2];
+			System.arraycopy(freeSlots, 0, tmp, 0, freeCount);
+			freeSlots = tmp;
+		}
+
+		freeSlots[freeCount++] = slot;
+		size--;
+	}
+
+	synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * @return a copy of all channels currently in the table.
+	 */
+	synchronized Vector<Channel> snapshot() {
+		Vector<Channel> v = new Vector<Channel>(size);
+
+		for (int i = 0; i < usedSlots; i++) {
+			Channel c = slots.get(i);
+
+			if (c != null)
+				v.addElement(c);
+		}
+
+		return v;
+	}
+
+	/**
+	 * Removes all channels.
+	 */
+	synchronized void clear() {
+		for (int i = 0; i < usedSlots; i++) {
+			if (slots.get(i) != null)
+				remove(slots.get(i).localID);
+		}
+	}
+
+	/* Called with the monitor held */
+
+	private void grow() {
+		int newLength = Math.min(slots.length() * 2, MAX_SLOTS);
+
+		AtomicReferenceArray<Channel> tmp = new AtomicReferenceArray<Channel>(
+				newLength);
+
+		for (int i = 0; i < usedSlots; i++)
+			tmp.set(i, slots.get(i));
+
+		int[] gen = new int[newLength];
+		System.arraycopy(generations, 0, gen, 0, generations.length);
+		generations = gen;
+
+		slots = tmp;
+	}
+}
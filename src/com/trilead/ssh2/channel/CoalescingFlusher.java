@@ -0,0 +1,98 @@
+package com.trilead.ssh2.channel;
+
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+import com.trilead.ssh2.log.Logger;
+import com.trilead.ssh2.util.ThreadService;
+
+/**
+ * CoalescingFlusher. Sends the data collected by coalescing
+ * {@link ChannelOutputStream}s once their deadline has passed. There is one
+ * per ChannelManager: sending may block on the transport, and a stalled
+ * connection must not delay the streams of other connections.
+ * <p>
+ * The thread is started on demand and exits after IDLE_TIMEOUT without
+ * deadlines.
+ *
+ * @version $Id$
+ */
+final class CoalescingFlusher {
+	private static final class Deadline implements Delayed {
+		final Runnable flush;
+		final long due;
+
+		Deadline(Runnable flush, long due) {
+			this.flush = flush;
+			this.due = due;
+		}
+
+		@Override
+		public long getDelay(TimeUnit unit) {
+			return unit.convert(due - System.nanoTime(), TimeUnit.NANOSECONDS);
+		}
+
+		@Override
+		public int compareTo(Delayed o) {
+			long d = due - ((Deadline) o).due;
+
+			return (d < 0) ? -1 : ((d > 0) ? 1 : 0);
+		}
+	}
+
+	private static final Logger log = Logger.getLogger(CoalescingFlusher.class);
+
+	private static final long IDLE_TIMEOUT = 2000;
+
+	private final DelayQueue<Deadline> deadlines = new DelayQueue<Deadline>();
+
+	/* Protected by the monitor of this object */
+	private Thread thread = null;
+
+	/**
+	 * Runs <code>flush</code> in the flusher thread after the given delay.
+	 */
+	void schedule(Runnable flush, long nanos) {
+		synchronized (this) {
+			deadlines.add(new Deadline(flush, System.nanoTime() + nanos));
+
+			if (thread == null) {
+				thread = ThreadService.start(new Runnable() {
+					@Override
+					public void run() {
+						flushLoop();
+					}
+				}, "ChannelManager flusher");
+			}
+		}
+	}
+
+	private void flushLoop() {
+		while (true) {
+			Deadline d = null;
+
+			try {
+				d = deadlines.poll(IDLE_TIMEOUT, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+			}
+
+			if (d == null) {
+				synchronized (this) {
+					if (deadlines.size() == 0) {
+						thread = null;
+						return;
+					}
+				}
+				continue;
+			}
+
+			try {
+				d.flush.run();
+			} catch (RuntimeException e) {
+				if (log.isEnabled())
+					log.log(20, "Deadline flush failed: " + e.getMessage());
+			}
+		}
+	}
+}
@@ -28,6 +28,10 @@ import java.net.InetSocketAddress;
 import java.net.NoRouteToHostException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.HashMap;
+import java.util.Vector;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import net.sourceforge.jsocks.Proxy;
 import net.sourceforge.jsocks.ProxyMessage;
@@ -36,10 +40,14 @@ import net.sourceforge.jsocks.Socks5Message;
 import net.sourceforge.jsocks.SocksException;
 import net.sourceforge.jsocks.server.ServerAuthenticator;
 import net.sourceforge.jsocks.server.ServerAuthenticatorNone;
-import android.util.Log;
+
+import com.trilead.ssh2.transport.SendFlow;
+import com.trilead.ssh2.util.ThreadService;
 
 /**
- * DynamicAcceptThread.
+ * DynamicAcceptThread. Accepts SOCKS connections and hands them to a bounded
+ * pool of handshake threads. Connections beyond the configured limits are
+ * closed right away instead of stalling the accept loop.
  * 
  * @author Kenny Root
  * @version $Id$
@@ -54,11 +62,24 @@ public class DynamicAcceptThread extends Thread implements IChannelWorkerThread
 		private OutputStream out;
 		private ProxyMessage msg;
 
+		private final InetAddress client;
+		private final long queuedSince = System.nanoTime();
+
+		/* Set once the socket has been handed to the open listener */
+		private boolean forwarding = false;
+
+		/*
+		 * Outcome of the open request, set by the receive thread before the
+		 * runnable is queued again, see complete()
+		 */
+		private boolean openAnswered = false;
+		private Channel openedChannel = null;
+		private int openFailure = Proxy.SOCKS_FAILURE;
+
 		public DynamicAcceptRunnable(ServerAuthenticator auth, Socket sock) {
 			this.auth = auth;
 			this.sock = sock;
-
-			setName("DynamicAcceptRunnable");
+			this.client = sock.getInetAddress();
 		}
 
 		private void handleRequest(ProxyMessage msg) throws IOException {
@@ -75,11 +96,63 @@ public class DynamicAcceptThread extends Thread implements IChannelWorkerThread
 		}
 
 		private void onConnect(ProxyMessage msg) throws IOException {
+			String destHost = msg.host;
+			if (msg.ip != null)
+				destHost = msg.ip.getHostAddress();
+
+			/*
+			 * The reply to the client is deferred until the server has
+			 * answered the open request, so that the client learns the real
+			 * outcome. This thread does not wait for it. The listener runs on
+			 * the receive thread, so it only records the outcome; a handshake
+			 * worker talks to the client.
+			 */
+
+			ChannelManager target = (selector != null) ? selector
+					.selectChannelManager() : cm;
+
+			target.openDirectTCPIPChannelAsync(destHost, msg.port, "127.0.0.1", 0,
+					new ChannelOpenListener() {
+						@Override
+						public void channelOpened(Channel cn) {
+							openedChannel = cn;
+							openAnswered = true;
+							complete(DynamicAcceptRunnable.this);
+						}
+
+						@Override
+						public void channelOpenFailed(Channel cn,
+								String reason, int reasonCode) {
+							openFailure = socksErrorCode(reasonCode);
+							openAnswered = true;
+							complete(DynamicAcceptRunnable.this);
+						}
+					});
+
+			/* From now on the listener owns the socket */
+
+			forwarding = true;
+		}
+
+		/* Called by a handshake worker once the open request is answered */
+
+		private void finishConnect() {
+			if (openedChannel == null) {
+				sendErrorMessage(openFailure);
+				closeSocket();
+				return;
+			}
+
+			onChannelOpened(openedChannel);
+		}
+
+		private void onChannelOpened(Channel cn) {
 			ProxyMessage response = null;
-			Channel cn = null;
 			StreamForwarder r2l = null;
 			StreamForwarder l2r = null;
 
+			cn.setSendWeight(sendWeight);
+
 			if (msg instanceof Socks5Message) {
 				response = new Socks5Message(Proxy.SOCKS_SUCCESS,
 						(InetAddress) null, 0);
@@ -87,59 +160,53 @@ public class DynamicAcceptThread extends Thread implements IChannelWorkerThread
 				response = new Socks4Message(Socks4Message.REPLY_OK,
 						(InetAddress) null, 0);
 			}
-			response.write(out);
-
-			String destHost = msg.host;
-			if (msg.ip != null)
-				destHost = msg.ip.getHostAddress();
 
 			try {
-				/*
-				 * This may fail, e.g., if the remote port is closed (in
-				 * optimistic terms: not open yet)
-				 */
+				response.write(out);
 
-				cn = cm.openDirectTCPIPChannel(destHost, msg.port, "127.0.0.1",
-						0);
+				ForwardingEngine engine = cn.cm.getForwardingEngine();
 
-			} catch (IOException e) {
-				/*
-				 * Simply close the local socket and wait for the next incoming
-				 * connection
-				 */
-
-				try {
-					sock.close();
-				} catch (IOException ignore) {
+				if ((engine != null) && (sock.getChannel() != null)) {
+					engine.forward(cn, sock.getChannel());
+					return;
 				}
 
-				return;
-			}
-
-			try {
 				r2l = new StreamForwarder(cn, null, null, cn.stdoutStream, out,
 						"RemoteToLocal");
 				l2r = new StreamForwarder(cn, r2l, sock, in, cn.stdinStream,
 						"LocalToRemote");
 			} catch (IOException e) {
+				closeSocket();
+
 				try {
 					/*
 					 * This message is only visible during debugging, since we
 					 * discard the channel immediatelly
 					 */
-					cn.cm.closeChannel(cn,
-							"Weird error during creation of StreamForwarder ("
-									+ e.getMessage() + ")", true);
+					cn.cm.closeChannel(cn, "Cannot forward connection ("
+							+ e.getMessage() + ")", true);
 				} catch (IOException ignore) {
 				}
 
 				return;
 			}
 
-			r2l.setDaemon(true);
-			l2r.setDaemon(true);
-			r2l.start();
-			l2r.start();
+			r2l.startForwarding();
+			l2r.startForwarding();
+		}
+
+		/**
+		 * Maps an SSH_OPEN_* reason code to a SOCKS reply code.
+		 */
+		private int socksErrorCode(int reasonCode) {
+			switch (reasonCode) {
+			case 1: /* SSH_OPEN_ADMINISTRATIVELY_PROHIBITED */
+				return Proxy.SOCKS_BADCONNECT;
+			case 2: /* SSH_OPEN_CONNECT_FAILED */
+				return Proxy.SOCKS_CONNECTION_REFUSED;
+			default:
+				return Proxy.SOCKS_FAILURE;
+			}
 		}
 
 		private ProxyMessage readMsg(InputStream in) throws IOException {
@@ -166,6 +233,13 @@ public class DynamicAcceptThread extends Thread implements IChannelWorkerThread
 
 		@Override
 		public void run() {
+			if (openAnswered) {
+				finishConnect();
+				return;
+			}
+
+			handshakeStarted(this);
+
 			try {
 				startSession();
 			} catch (IOException ioe) {
@@ -186,13 +260,21 @@ public class DynamicAcceptThread extends Thread implements IChannelWorkerThread
 				}
 
 				sendErrorMessage(error_code);
-			} catch (Error e) {
-				// Force to GC here
-				System.gc();
 			} finally {
 				if (auth != null)
 					auth.endSession();
-				thread_num--;
+
+				if (!forwarding)
+					closeSocket();
+
+				handshakeFinished(this);
+			}
+		}
+
+		private void closeSocket() {
+			try {
+				sock.close();
+			} catch (IOException ignore) {
 			}
 		}
 
@@ -232,65 +314,401 @@ public class DynamicAcceptThread extends Thread implements IChannelWorkerThread
 			handleRequest(msg);
 		}
 	}
-	private volatile int thread_num = 0;
+
+	/**
+	 * Runs queued handshakes, and answers the clients whose open request has
+	 * been answered by the server. Exits once there has been nothing to do for
+	 * WORKER_IDLE_TIMEOUT, or if there are more workers than allowed, or once
+	 * the accept loop has stopped (after the pending answers).
+	 */
+	class HandshakeWorker implements Runnable {
+		@Override
+		public void run() {
+			while (true) {
+				DynamicAcceptRunnable dar;
+
+				synchronized (pending) {
+					if ((completions.size() == 0) && (pending.size() == 0)
+							&& !shutdown) {
+						idleWorkers++;
+
+						try {
+							pending.wait(WORKER_IDLE_TIMEOUT);
+						} catch (InterruptedException e) {
+						}
+
+						idleWorkers--;
+					}
+
+					if (completions.size() > 0) {
+						dar = completions.remove(0);
+					} else if ((pending.size() == 0) || shutdown
+							|| (workers > maxHandshakes)) {
+						workers--;
+						return;
+					} else {
+						dar = pending.remove(0);
+					}
+				}
+
+				dar.run();
+			}
+		}
+	}
+
+	/* Default limits, see the setters */
+
+	public static final int DEFAULT_MAX_HANDSHAKES = 8;
+	public static final int DEFAULT_MAX_QUEUED = 64;
+	public static final int DEFAULT_BACKLOG = 128;
+
 	private ChannelManager cm;
-	private final static int MAX_THREAD_COUNT = 2;
+	private ChannelManagerSelector selector;
 
 	private ServerSocket ss;
 
+	private static final long WORKER_IDLE_TIMEOUT = 60000;
+
+	/*
+	 * Connections waiting for a HandshakeWorker, which runs the SOCKS
+	 * handshake (and the opening of the channel). The queue is unbounded,
+	 * admission is decided before queueing. The following fields are
+	 * protected by its monitor.
+	 */
+	private final Vector<DynamicAcceptRunnable> pending = new Vector<DynamicAcceptRunnable>();
+
+	/*
+	 * Connections whose open request has been answered by the server. They
+	 * are served before new handshakes, also after the accept loop has
+	 * stopped, since their channel is open already.
+	 */
+	private final Vector<DynamicAcceptRunnable> completions = new Vector<DynamicAcceptRunnable>();
+
+	private int workers = 0;
+	private int idleWorkers = 0;
+	private boolean shutdown = false;
+
+	private volatile int maxHandshakes = DEFAULT_MAX_HANDSHAKES;
+
+	private volatile int maxQueued = DEFAULT_MAX_QUEUED;
+	private volatile int maxPerClient = 0;
+	private volatile int sendWeight = SendFlow.WEIGHT_DEFAULT;
+
+	/* Handshakes per client address (queued or active) */
+	private final HashMap<InetAddress, Integer> clients = new HashMap<InetAddress, Integer>();
+
+	private final AtomicInteger queued = new AtomicInteger(0);
+	private final AtomicInteger active = new AtomicInteger(0);
+	private final AtomicLong accepted = new AtomicLong(0);
+	private final AtomicLong rejected = new AtomicLong(0);
+	private final AtomicLong started = new AtomicLong(0);
+	private final AtomicLong totalQueueNanos = new AtomicLong(0);
+	private final AtomicLong maxQueueNanos = new AtomicLong(0);
+
 	public DynamicAcceptThread(ChannelManager cm, InetSocketAddress localAddress)
 			throws IOException {
-		this.cm = cm;
-
-		ss = new ServerSocket();
-		ss.bind(localAddress);
+		this(cm, localAddress, DEFAULT_BACKLOG);
 	}
 
 	public DynamicAcceptThread(ChannelManager cm, int local_port)
 			throws IOException {
+		this(cm, new InetSocketAddress(local_port), DEFAULT_BACKLOG);
+	}
+
+	/**
+	 * @param backlog
+	 *            length of the accept queue of the listening socket.
+	 */
+	public DynamicAcceptThread(ChannelManager cm,
+			InetSocketAddress localAddress, int backlog) throws IOException {
+		this(cm, null, localAddress, backlog);
+	}
+
+	/**
+	 * Opens each forwarded channel on the channel manager chosen by the
+	 * selector. The thread is not tied to a single connection, it has to be
+	 * stopped explicitly.
+	 */
+	public DynamicAcceptThread(ChannelManagerSelector selector,
+			InetSocketAddress localAddress, int backlog) throws IOException {
+		this(null, selector, localAddress, backlog);
+	}
+
+	private DynamicAcceptThread(ChannelManager cm,
+			ChannelManagerSelector selector, InetSocketAddress localAddress,
+			int backlog) throws IOException {
 		this.cm = cm;
+		this.selector = selector;
+
+		ss = ForwardingEngine.newServerSocket((cm == null)
+				|| (cm.getForwardingEngine() != null));
+		ss.bind(localAddress, backlog);
+	}
+
+	/**
+	 * Sets the number of SOCKS handshakes that are processed concurrently.
+	 */
+	public void setMaxHandshakes(int max) {
+		if (max < 1)
+			throw new IllegalArgumentException("Illegal number of handshakes "
+					+ max);
+
+		synchronized (pending) {
+			maxHandshakes = max;
 
-		setName("DynamicAcceptThread");
+			/* Surplus workers exit once they are idle */
 
-		ss = new ServerSocket(local_port);
+			pending.notifyAll();
+
+			while ((workers < max) && (pending.size() > idleWorkers))
+				startWorker();
+		}
+	}
+
+	/**
+	 * Sets the number of accepted connections that may wait for a handshake
+	 * thread. Connections beyond that are closed right away.
+	 */
+	public void setMaxQueued(int max) {
+		if (max < 0)
+			throw new IllegalArgumentException("Illegal queue size " + max);
+
+		maxQueued = max;
+	}
+
+	/**
+	 * Limits the queued and active handshakes per client address, so that a
+	 * single client cannot occupy all handshake threads. 0 means no limit
+	 * (the default, since most clients connect from the loopback address).
+	 */
+	public void setMaxPerClient(int max) {
+		if (max < 0)
+			throw new IllegalArgumentException("Illegal limit " + max);
+
+		maxPerClient = max;
+	}
+
+	/**
+	 * Sets the send weight of the channels opened from now on.
+	 * 
+	 * @see Channel#setSendWeight(int)
+	 */
+	public void setSendWeight(int weight) {
+		if ((weight < 1) || (weight > SendFlow.MAX_WEIGHT))
+			throw new IllegalArgumentException("Illegal weight " + weight);
+
+		sendWeight = weight;
+	}
+
+	/**
+	 * @return number of connections waiting for a handshake thread.
+	 */
+	public int getQueued() {
+		return queued.get();
+	}
+
+	/**
+	 * @return number of handshakes in progress.
+	 */
+	public int getActive() {
+		return active.get();
+	}
+
+	public long getAccepted() {
+		return accepted.get();
+	}
+
+	/**
+	 * @return number of connections closed because of the limits.
+	 */
+	public long getRejected() {
+		return rejected.get();
+	}
+
+	/**
+	 * @return average time a connection waited for a handshake thread, in
+	 *         nanoseconds.
+	 */
+	public long getAverageQueueNanos() {
+		long n = started.get();
+
+		return (n == 0) ? 0 : totalQueueNanos.get() / n;
+	}
+
+	/**
+	 * @return longest time a connection waited for a handshake thread, in
+	 *         nanoseconds.
+	 */
+	public long getMaxQueueNanos() {
+		return maxQueueNanos.get();
+	}
+
+	/**
+	 * Counts the connection as queued, if the limits allow it.
+	 */
+	private boolean admit(InetAddress client) {
+		synchronized (clients) {
+			int limit = maxHandshakes + maxQueued;
+
+			if (queued.get() + active.get() >= limit)
+				return false;
+
+			Integer count = clients.get(client);
+			int n = (count == null) ? 0 : count.intValue();
+
+			if ((maxPerClient > 0) && (n >= maxPerClient))
+				return false;
+
+			clients.put(client, Integer.valueOf(n + 1));
+			queued.incrementAndGet();
+		}
+
+		return true;
+	}
+
+	private void release(InetAddress client) {
+		synchronized (clients) {
+			Integer count = clients.get(client);
+
+			if ((count == null) || (count.intValue() <= 1))
+				clients.remove(client);
+			else
+				clients.put(client, Integer.valueOf(count.intValue() - 1));
+		}
+	}
+
+	private void handshakeStarted(DynamicAcceptRunnable dar) {
+		long waited = System.nanoTime() - dar.queuedSince;
+
+		queued.decrementAndGet();
+		active.incrementAndGet();
+		started.incrementAndGet();
+		totalQueueNanos.addAndGet(waited);
+
+		long max;
+
+		while (waited > (max = maxQueueNanos.get())) {
+			if (maxQueueNanos.compareAndSet(max, waited))
+				break;
+		}
+	}
+
+	private void handshakeFinished(DynamicAcceptRunnable dar) {
+		active.decrementAndGet();
+		release(dar.client);
+	}
+
+	/* Called while holding the monitor of "pending" */
+
+	private void startWorker() {
+		workers++;
+		ThreadService.start(new HandshakeWorker(), "DynamicAcceptRunnable");
+	}
+
+	/**
+	 * @return false if the accept loop has stopped.
+	 */
+	private boolean execute(DynamicAcceptRunnable dar) {
+		synchronized (pending) {
+			if (shutdown)
+				return false;
+
+			pending.addElement(dar);
+
+			if ((pending.size() > idleWorkers) && (workers < maxHandshakes))
+				startWorker();
+
+			pending.notify();
+		}
+
+		return true;
+	}
+
+	/**
+	 * Hands the outcome of an open request to a worker. Called by the receive
+	 * thread, never blocks. A worker is started even beyond the handshake
+	 * limit, so that slow handshakes cannot hold back the answers.
+	 */
+	private void complete(DynamicAcceptRunnable dar) {
+		synchronized (pending) {
+			completions.addElement(dar);
+
+			if (completions.size() > idleWorkers)
+				startWorker();
+
+			pending.notify();
+		}
+	}
+
+	private void reject(Socket sock) {
+		rejected.incrementAndGet();
+
+		try {
+			sock.close();
+		} catch (IOException ignore) {
+		}
 	}
 
 	@Override
 	public void run() {
 		try {
-			cm.registerThread(this);
+			if (cm != null)
+				cm.registerThread(this);
 		} catch (IOException e) {
 			stopWorking();
 			return;
 		}
 
-		while (true) {
-			Socket sock = null;
-
-			try {
-				sock = ss.accept();
-			} catch (IOException e) {
-				stopWorking();
-				return;
-			}
+		try {
+			while (true) {
+				Socket sock = null;
 
-			DynamicAcceptRunnable dar = new DynamicAcceptRunnable(
-					new ServerAuthenticatorNone(), sock);
-			Thread t = new Thread(dar);
-			t.setDaemon(true);
-			t.start();
-			
-			thread_num++;
-			while (thread_num > MAX_THREAD_COUNT) {
-				Log.d("SOCKSProxy", "Max thread number exceeded");
-				System.gc();
 				try {
-					Thread.sleep(2000);
-				} catch (InterruptedException ignore) {
-					// Nothing
+					sock = ss.accept();
+				} catch (IOException e) {
+					stopWorking();
+					return;
+				}
+
+				accepted.incrementAndGet();
+
+				if (!admit(sock.getInetAddress())) {
+					reject(sock);
+					continue;
 				}
+
+				DynamicAcceptRunnable dar = new DynamicAcceptRunnable(
+						new ServerAuthenticatorNone(), sock);
+
+				if (!execute(dar)) {
+					queued.decrementAndGet();
+					release(dar.client);
+					reject(sock);
+				}
+			}
+		} finally {
+			/*
+			 * Connections still waiting for a handshake are dropped. Running
+			 * handshakes are not interrupted: with a SocketChannel transport
+			 * an interrupted write would close the whole connection.
+			 */
+
+			Vector<DynamicAcceptRunnable> dropped;
+
+			synchronized (pending) {
+				shutdown = true;
+				dropped = new Vector<DynamicAcceptRunnable>(pending);
+				pending.removeAllElements();
+				pending.notifyAll();
 			}
 
+			for (int i = 0; i < dropped.size(); i++) {
+				DynamicAcceptRunnable dar = dropped.elementAt(i);
+
+				queued.decrementAndGet();
+				release(dar.client);
+				dar.closeSocket();
+			}
 		}
 	}
 
@@ -0,0 +1,442 @@
+package com.trilead.ssh2.channel;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.trilead.ssh2.log.Logger;
+import com.trilead.ssh2.util.BufferPool;
+
+/**
+ * ForwardingEngine. Forwards data between local sockets and SSH channels with
+ * a small number of selector threads, instead of two StreamForwarder threads
+ * per forwarded connection.
+ * <p>
+ * Each selector thread multiplexes the SocketChannels assigned to it. Data
+ * from a socket is only read while the remote window of the SSH channel has
+ * room for it, and data from the SSH channel is only taken out of the channel
+ * buffer once the socket accepted the previous chunk. Hence a slow peer on
+ * either side stalls just its own connection, the SSH flow control does the
+ * rest.
+ * <p>
+ * Channel events (data, EOF, window adjust, close) are delivered through a
+ * {@link ChannelListener} and queued for the selector thread.
+ *
+ * @version $Id$
+ */
+public class ForwardingEngine {
+	private static final Logger log = Logger.getLogger(ForwardingEngine.class);
+
+	/* Taken from the shared pool while data is in flight */
+
+	static final int BUFFER_SIZE = StreamForwarder.FORWARDER_BUFFER_SIZE;
+
+	/*
+	 * Max. number of buffers moved per direction before the next connection
+	 * gets its turn
+	 */
+	private static final int MAX_ROUNDS = 4;
+
+	private static final BufferPool pool = BufferPool.getShared();
+
+	private final SelectorLoop[] loops;
+	private final AtomicInteger nextLoop = new AtomicInteger(0);
+
+	/**
+	 * @param selectorThreads
+	 *            number of selector threads, at least one.
+	 */
+	public ForwardingEngine(int selectorThreads) throws IOException {
+		if (selectorThreads < 1)
+			throw new IllegalArgumentException(
+					"Illegal number of selector threads " + selectorThreads);
+
+		loops = new SelectorLoop[selectorThreads];
+
+		for (int i = 0; i < loops.length; i++) {
+			loops[i] = new SelectorLoop(Selector.open());
+			loops[i].setName("ForwardingEngine-" + i);
+			loops[i].setDaemon(true);
+			loops[i].start();
+		}
+	}
+
+	/**
+	 * Starts forwarding between an open channel and a connected socket. From
+	 * now on the engine owns both, it closes them once the forwarding is
+	 * finished.
+	 */
+	public void forward(Channel c, SocketChannel sc) throws IOException {
+		sc.configureBlocking(false);
+
+		int i = (nextLoop.getAndIncrement() & Integer.MAX_VALUE) % loops.length;
+
+		loops[i].add(new Forward(loops[i], c, sc));
+	}
+
+	/**
+	 * @return an unbound server socket for a port forwarding. If the channel
+	 *         manager has an engine, it is backed by a ServerSocketChannel, so
+	 *         that the accepted sockets can be handed to
+	 *         {@link #forward(Channel, SocketChannel)}.
+	 */
+	static ServerSocket newServerSocket(ChannelManager cm) throws IOException {
+		return newServerSocket(cm.getForwardingEngine() != null);
+	}
+
+	/**
+	 * @param channelBacked
+	 *            whether accepted sockets shall have a SocketChannel, e.g.,
+	 *            if the channel manager is chosen per connection.
+	 */
+	static ServerSocket newServerSocket(boolean channelBacked)
+			throws IOException {
+		if (channelBacked)
+			return ServerSocketChannel.open().socket();
+
+		return new ServerSocket();
+	}
+
+	/**
+	 * Stops all selector threads and closes all sockets and channels that are
+	 * still being forwarded.
+	 */
+	public void shutdown() {
+		for (int i = 0; i < loops.length; i++)
+			loops[i].shutdown();
+	}
+
+	/**
+	 * State of one forwarded connection. Only touched by its selector thread,
+	 * apart from the listener callback.
+	 */
+	private static final class Forward implements ChannelListener {
+		final SelectorLoop loop;
+		final Channel c;
+		final SocketChannel sc;
+		SelectionKey key;
+
+		/* Set while the forward is in the event queue of its loop */
+		final AtomicBoolean queued = new AtomicBoolean(false);
+
+		/* Local to remote data not yet accepted by the remote window */
+		byte[] l2r;
+		ByteBuffer l2rBuf;
+		int l2rOff;
+		int l2rLen;
+
+		/* Remote to local data not yet accepted by the socket */
+		byte[] r2l;
+		ByteBuffer r2lBuf;
+		int r2lOff;
+		int r2lLen;
+
+		boolean localEOF = false;
+		boolean remoteEOF = false;
+		boolean closed = false;
+
+		Forward(SelectorLoop loop, Channel c, SocketChannel sc) {
+			this.loop = loop;
+			this.c = c;
+			this.sc = sc;
+		}
+
+		@Override
+		public void channelEvent(Channel ch) {
+			loop.schedule(this);
+		}
+	}
+
+	private final class SelectorLoop extends Thread {
+		final Selector selector;
+
+		/* Forwards waiting to be registered with the selector */
+		final ConcurrentLinkedQueue<Forward> added = new ConcurrentLinkedQueue<Forward>();
+
+		/* Forwards with pending channel events */
+		final ConcurrentLinkedQueue<Forward> events = new ConcurrentLinkedQueue<Forward>();
+
+		/* Protected by the monitor of the loop */
+		private boolean shutdown = false;
+
+		SelectorLoop(Selector selector) {
+			this.selector = selector;
+		}
+
+		void add(Forward f) throws IOException {
+			synchronized (this) {
+				if (shutdown)
+					throw new IOException("The ForwardingEngine has been shut down");
+
+				added.add(f);
+			}
+
+			selector.wakeup();
+		}
+
+		void schedule(Forward f) {
+			if (f.queued.compareAndSet(false, true)) {
+				events.add(f);
+				selector.wakeup();
+			}
+		}
+
+		void shutdown() {
+			synchronized (this) {
+				shutdown = true;
+			}
+
+			selector.wakeup();
+		}
+
+		private synchronized boolean isShutdown() {
+			return shutdown;
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (!isShutdown()) {
+					if (events.isEmpty())
+						selector.select();
+					else
+						selector.selectNow();
+
+					Forward f;
+
+					while ((f = added.poll()) != null)
+						register(f);
+
+					Iterator<SelectionKey> it = selector.selectedKeys()
+							.iterator();
+
+					while (it.hasNext()) {
+						SelectionKey key = it.next();
+						it.remove();
+
+						if (key.isValid())
+							process((Forward) key.attachment());
+					}
+
+					while ((f = events.poll()) != null) {
+						f.queued.set(false);
+						process(f);
+					}
+				}
+			} catch (IOException e) {
+				if (log.isEnabled())
+					log.log(20, "Selector failed: " + e.getMessage());
+			} finally {
+				synchronized (this) {
+					shutdown = true;
+				}
+
+				Forward f;
+
+				while ((f = added.poll()) != null)
+					close(f, "The ForwardingEngine has been shut down");
+
+				Iterator<SelectionKey> it = selector.keys().iterator();
+
+				while (it.hasNext())
+					close((Forward) it.next().attachment(),
+							"The ForwardingEngine has been shut down");
+
+				try {
+					selector.close();
+				} catch (IOException ignore) {
+				}
+			}
+		}
+
+		private void register(Forward f) {
+			try {
+				f.key = f.sc.register(selector, SelectionKey.OP_READ, f);
+			} catch (IOException e) {
+				close(f, "Cannot register socket: " + e.getMessage());
+				return;
+			}
+
+			/* Data may have arrived before the listener was set */
+
+			f.c.listener = f;
+			process(f);
+		}
+
+		private void process(Forward f) {
+			if (f.closed)
+				return;
+
+			try {
+				boolean more = pumpLocalToRemote(f);
+
+				if (pumpRemoteToLocal(f))
+					more = true;
+
+				if (f.remoteEOF && (f.r2lLen == 0)) {
+					close(f, "Forwarding finished");
+					return;
+				}
+
+				int ops = 0;
+
+				if (!f.localEOF && (f.l2rLen == 0))
+					ops |= SelectionKey.OP_READ;
+
+				if (f.r2lLen > 0)
+					ops |= SelectionKey.OP_WRITE;
+
+				f.key.interestOps(ops);
+
+				if (more)
+					schedule(f);
+			} catch (IOException e) {
+				close(f, "Closed due to exception in ForwardingEngine: "
+						+ e.getMessage());
+			}
+		}
+
+		/**
+		 * @return true if there may be more to do right now.
+		 */
+		private boolean pumpLocalToRemote(Forward f) throws IOException {
+			for (int round = 0; round < MAX_ROUNDS; round++) {
+				if (f.l2rLen == 0) {
+					if (f.localEOF)
+						return false;
+
+					if (f.l2r == null) {
+						f.l2r = pool.acquire(BUFFER_SIZE);
+						f.l2rBuf = ByteBuffer.wrap(f.l2r);
+					}
+
+					f.l2rBuf.clear();
+
+					int len = f.sc.read(f.l2rBuf);
+
+					if (len <= 0) {
+						releaseL2R(f);
+
+						if (len < 0) {
+							f.localEOF = true;
+							f.c.cm.sendEOF(f.c);
+						}
+
+						return false;
+					}
+
+					f.l2rOff = 0;
+					f.l2rLen = len;
+				}
+
+				int sent = f.c.cm.trySendData(f.c, f.l2r, f.l2rOff, f.l2rLen);
+
+				f.l2rOff += sent;
+				f.l2rLen -= sent;
+
+				/* Remote window exhausted, wait for a window adjust */
+
+				if (f.l2rLen > 0)
+					return false;
+			}
+
+			return true;
+		}
+
+		/**
+		 * @return true if there may be more to do right now.
+		 */
+		private boolean pumpRemoteToLocal(Forward f) throws IOException {
+			for (int round = 0; round < MAX_ROUNDS; round++) {
+				if (f.r2lLen == 0) {
+					if (f.remoteEOF)
+						return false;
+
+					if (f.r2l == null) {
+						f.r2l = pool.acquire(BUFFER_SIZE);
+						f.r2lBuf = ByteBuffer.wrap(f.r2l);
+					}
+
+					int len = f.c.cm.pollChannelData(f.c, f.r2l, 0, f.r2l.length);
+
+					if (len <= 0) {
+						releaseR2L(f);
+
+						if (len < 0)
+							f.remoteEOF = true;
+
+						return false;
+					}
+
+					f.r2lOff = 0;
+					f.r2lLen = len;
+				}
+
+				f.r2lBuf.limit(f.r2lOff + f.r2lLen);
+				f.r2lBuf.position(f.r2lOff);
+
+				int written = f.sc.write(f.r2lBuf);
+
+				f.r2lOff += written;
+				f.r2lLen -= written;
+
+				/* Socket buffer full, wait for OP_WRITE */
+
+				if (f.r2lLen > 0)
+					return false;
+			}
+
+			return true;
+		}
+
+		private void close(Forward f, String reason) {
+			if (f.closed)
+				return;
+
+			f.closed = true;
+			f.c.listener = null;
+
+			if (f.key != null)
+				f.key.cancel();
+
+			try {
+				f.sc.close();
+			} catch (IOException ignore) {
+			}
+
+			f.l2rLen = 0;
+			f.r2lLen = 0;
+			releaseL2R(f);
+			releaseR2L(f);
+
+			try {
+				f.c.cm.closeChannel(f.c, reason, true);
+			} catch (IOException ignore) {
+			}
+		}
+
+		private void releaseL2R(Forward f) {
+			if (f.l2r != null) {
+				pool.release(f.l2r);
+				f.l2r = null;
+				f.l2rBuf = null;
+			}
+		}
+
+		private void releaseR2L(Forward f) {
+			if (f.r2l != null) {
+				pool.release(f.r2l);
+				f.r2l = null;
+				f.r2lBuf = null;
+			}
+		}
+	}
+}
@@ -5,6 +5,8 @@ import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 
+import com.trilead.ssh2.transport.SendFlow;
+
 /**
  * LocalAcceptThread.
  * 
@@ -13,18 +15,21 @@ import java.net.Socket;
  */
 public class LocalAcceptThread extends Thread implements IChannelWorkerThread {
 	ChannelManager cm;
+	ChannelManagerSelector selector;
 	String host_to_connect;
 	int port_to_connect;
 
 	final ServerSocket ss;
 
+	private volatile int sendWeight = SendFlow.WEIGHT_DEFAULT;
+
 	public LocalAcceptThread(ChannelManager cm, InetSocketAddress localAddress,
 			String host_to_connect, int port_to_connect) throws IOException {
 		this.cm = cm;
 		this.host_to_connect = host_to_connect;
 		this.port_to_connect = port_to_connect;
 
-		ss = new ServerSocket();
+		ss = ForwardingEngine.newServerSocket(cm);
 		ss.bind(localAddress);
 	}
 
@@ -34,13 +39,31 @@ public class LocalAcceptThread extends Thread implements IChannelWorkerThread {
 		this.host_to_connect = host_to_connect;
 		this.port_to_connect = port_to_connect;
 
-		ss = new ServerSocket(local_port);
+		ss = ForwardingEngine.newServerSocket(cm);
+		ss.bind(new InetSocketAddress(local_port));
+	}
+
+	/**
+	 * Opens each forwarded channel on the channel manager chosen by the
+	 * selector. The thread is not tied to a single connection, it has to be
+	 * stopped explicitly.
+	 */
+	public LocalAcceptThread(ChannelManagerSelector selector,
+			InetSocketAddress localAddress, String host_to_connect,
+			int port_to_connect) throws IOException {
+		this.selector = selector;
+		this.host_to_connect = host_to_connect;
+		this.port_to_connect = port_to_connect;
+
+		ss = ForwardingEngine.newServerSocket(true);
+		ss.bind(localAddress);
 	}
 
 	@Override
 	public void run() {
 		try {
-			cm.registerThread(this);
+			if (cm != null)
+				cm.registerThread(this);
 		} catch (IOException e) {
 			stopWorking();
 			return;
@@ -62,12 +85,18 @@ public class LocalAcceptThread extends Thread implements IChannelWorkerThread {
 
 			try {
 				/*
-				 * This may fail, e.g., if the remote port is closed (in
-				 * optimistic terms: not open yet)
+				 * Do not wait for the server, the next connection may already
+				 * be waiting. Data from the client is held back until the
+				 * channel is confirmed. If the server refuses, the forwarders
+				 * see EOF and close the socket.
 				 */
-				cn = cm.openDirectTCPIPChannel(host_to_connect,
+				ChannelManager target = (selector != null) ? selector
+						.selectChannelManager() : cm;
+
+				cn = target.openDirectTCPIPChannelAsync(host_to_connect,
 						port_to_connect, s.getInetAddress().getHostAddress(),
-						s.getPort());
+						s.getPort(), null);
+				cn.setSendWeight(sendWeight);
 			} catch (IOException e) {
 				/*
 				 * Simply close the local socket and wait for the next incoming
@@ -82,6 +111,27 @@ public class LocalAcceptThread extends Thread implements IChannelWorkerThread {
 				continue;
 			}
 
+			ForwardingEngine engine = cn.cm.getForwardingEngine();
+
+			if ((engine != null) && (s.getChannel() != null)) {
+				try {
+					engine.forward(cn, s.getChannel());
+				} catch (IOException e) {
+					try {
+						s.close();
+					} catch (IOException ignore) {
+					}
+
+					try {
+						cn.cm.closeChannel(cn, "Cannot forward connection ("
+								+ e.getMessage() + ")", true);
+					} catch (IOException ignore) {
+					}
+				}
+
+				continue;
+			}
+
 			try {
 				r2l = new StreamForwarder(cn, null, null, cn.stdoutStream,
 						s.getOutputStream(), "RemoteToLocal");
@@ -102,13 +152,23 @@ public class LocalAcceptThread extends Thread implements IChannelWorkerThread {
 				continue;
 			}
 
-			r2l.setDaemon(true);
-			l2r.setDaemon(true);
-			r2l.start();
-			l2r.start();
+			r2l.startForwarding();
+			l2r.startForwarding();
 		}
 	}
 
+	/**
+	 * Sets the send weight of the channels opened from now on.
+	 * 
+	 * @see Channel#setSendWeight(int)
+	 */
+	public void setSendWeight(int weight) {
+		if ((weight < 1) || (weight > SendFlow.MAX_WEIGHT))
+			throw new IllegalArgumentException("Illegal weight " + weight);
+
+		sendWeight = weight;
+	}
+
 	@Override
 	public void stopWorking() {
 		try {
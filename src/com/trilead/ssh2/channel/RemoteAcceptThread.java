@@ -61,16 +61,9 @@ public class RemoteAcceptThread extends Thread {
 			 * thread
 			 */
 
-			r2l.setDaemon(true);
-			r2l.start();
+			r2l.startForwarding();
 			l2r.run();
-
-			while (r2l.isAlive()) {
-				try {
-					r2l.join();
-				} catch (InterruptedException e) {
-				}
-			}
+			r2l.awaitFinished();
 
 			/* If the channel is already closed, then this is a no-op */
 
@@ -149,9 +149,12 @@ public class RemoteX11AcceptThread extends Thread {
 			 * register our connection
 			 */
 
-			synchronized (c) {
+			c.lock.lock();
+			try {
 				/* Please read the comment in Channel.java */
 				c.hexX11FakeCookie = hexEncodedFakeCookie;
+			} finally {
+				c.lock.unlock();
 			}
 
 			/*
@@ -210,16 +213,9 @@ public class RemoteX11AcceptThread extends Thread {
 			 * thread
 			 */
 
-			r2l.setDaemon(true);
-			r2l.start();
+			r2l.startForwarding();
 			l2r.run();
-
-			while (r2l.isAlive()) {
-				try {
-					r2l.join();
-				} catch (InterruptedException e) {
-				}
-			}
+			r2l.awaitFinished();
 
 			/* If the channel is already closed, then this is a no-op */
 
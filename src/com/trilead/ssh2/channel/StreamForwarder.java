@@ -4,6 +4,10 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+
+import com.trilead.ssh2.util.BufferPool;
+import com.trilead.ssh2.util.ThreadService;
 
 /**
  * A StreamForwarder forwards data between two given streams. If two
@@ -15,14 +19,19 @@ import java.net.Socket;
  * @version $Id: StreamForwarder.java,v 1.1 2007/10/15 12:49:56 cplattne Exp $
  */
 public class StreamForwarder extends Thread {
+	/* Taken from the shared pool while the forwarder is running */
+
+	static final int FORWARDER_BUFFER_SIZE = 16384;
+
 	OutputStream os;
 	InputStream is;
-	byte[] buffer = new byte[Channel.CHANNEL_BUFFER_SIZE];
 	Channel c;
 	StreamForwarder sibling;
 	Socket s;
 	String mode;
 
+	private final CountDownLatch finished = new CountDownLatch(1);
+
 	StreamForwarder(Channel c, StreamForwarder sibling, Socket s,
 			InputStream is, OutputStream os, String mode) throws IOException {
 		this.is = is;
@@ -33,15 +42,43 @@ public class StreamForwarder extends Thread {
 		this.s = s;
 	}
 
+	/**
+	 * Runs the forwarder in a new thread, see {@link ThreadService}. This
+	 * object is not started itself, use {@link #awaitFinished()} instead of
+	 * {@link Thread#join()}.
+	 */
+	void startForwarding() {
+		ThreadService.start(this, "StreamForwarder (" + mode + ")");
+	}
+
+	/**
+	 * Waits until {@link #run()} has returned.
+	 */
+	void awaitFinished() {
+		while (true) {
+			try {
+				finished.await();
+				return;
+			} catch (InterruptedException e) {
+			}
+		}
+	}
+
 	@Override
 	public void run() {
+		byte[] buffer = BufferPool.getShared().acquire(FORWARDER_BUFFER_SIZE);
+
 		try {
 			while (true) {
 				int len = is.read(buffer);
 				if (len <= 0)
 					break;
 				os.write(buffer, 0, len);
-				os.flush();
+
+				/* Lets a coalescing channel stream combine back to back reads */
+
+				if (is.available() == 0)
+					os.flush();
 			}
 		} catch (IOException ignore) {
 			try {
@@ -51,6 +88,8 @@ public class StreamForwarder extends Thread {
 			} catch (IOException e) {
 			}
 		} finally {
+			BufferPool.getShared().release(buffer);
+
 			try {
 				os.close();
 			} catch (IOException e1) {
@@ -61,12 +100,7 @@ public class StreamForwarder extends Thread {
 			}
 
 			if (sibling != null) {
-				while (sibling.isAlive()) {
-					try {
-						sibling.join();
-					} catch (InterruptedException e) {
-					}
-				}
+				sibling.awaitFinished();
 
 				try {
 					c.cm.closeChannel(c, "StreamForwarder (" + mode
@@ -80,6 +114,8 @@ public class StreamForwarder extends Thread {
 				} catch (IOException e1) {
 				}
 			}
+
+			finished.countDown();
 		}
 	}
 }
\ No newline at end of file
@@ -15,6 +15,9 @@ public class KeyMaterial {
 			byte[] H, byte type, byte[] SessionID, int keyLength) {
 		byte[] res = new byte[keyLength];
 
+		if (keyLength == 0)
+			return res;
+
 		int dglen = sh.getDigestLength();
 		int numRounds = (keyLength + dglen - 1) / dglen;
 
@@ -0,0 +1,52 @@
+package com.trilead.ssh2.crypto.cipher;
+
+/**
+ * An authenticated encryption mode that protects whole SSH-2 binary packets
+ * (e.g., aes128-gcm@openssh.com). It replaces the combination of a
+ * {@link BlockCipher} and a {@link com.trilead.ssh2.crypto.digest.MAC}.
+ * <p>
+ * A packet is passed as <code>len</code> bytes starting with the 4 byte
+ * packet length field, followed by <code>getTagSize()</code> bytes for the
+ * authentication tag.
+ * 
+ * @version $Id$
+ */
+public interface AEADCipher {
+	/**
+	 * @return the block size the packet (without the length field) has to be
+	 *         padded to.
+	 */
+	public int getBlockSize();
+
+	/**
+	 * @return the size of the authentication tag appended to each packet.
+	 */
+	public int getTagSize();
+
+	/**
+	 * Decodes the packet length field of an incoming packet without modifying
+	 * the buffer.
+	 * 
+	 * @param seqnr
+	 *            sequence number of the packet.
+	 * @param src
+	 *            the first 4 bytes of the packet as received.
+	 * @return the packet length.
+	 */
+	public int getPacketLength(int seqnr, byte[] src, int off);
+
+	/**
+	 * Encrypts an assembled packet in place and writes the authentication tag
+	 * to <code>packet[off + len]</code>.
+	 */
+	public void seal(int seqnr, byte[] packet, int off, int len);
+
+	/**
+	 * Verifies the authentication tag at <code>packet[off + len]</code> and
+	 * decrypts the packet in place. The length field is left as received.
+	 * 
+	 * @return false if the packet failed authentication, in this case the
+	 *         buffer contents are undefined.
+	 */
+	public boolean open(int seqnr, byte[] packet, int off, int len);
+}
@@ -901,6 +901,38 @@ public class AES implements BlockCipher {
 		processBlock(src, srcoff, dst, dstoff);
 	}
 
+	@Override
+	public final void transformBlocks(byte[] src, int srcoff, byte[] dst,
+			int dstoff, int len) {
+		if (WorkingKey == null) {
+			throw new IllegalStateException("AES engine not initialised");
+		}
+
+		if ((srcoff + len) > src.length) {
+			throw new IllegalArgumentException("input buffer too short");
+		}
+
+		if ((dstoff + len) > dst.length) {
+			throw new IllegalArgumentException("output buffer too short");
+		}
+
+		final int[][] KW = WorkingKey;
+
+		if (doEncrypt) {
+			for (int i = 0; i < len; i += BLOCK_SIZE) {
+				unpackBlock(src, srcoff + i);
+				encryptBlock(KW);
+				packBlock(dst, dstoff + i);
+			}
+		} else {
+			for (int i = 0; i < len; i += BLOCK_SIZE) {
+				unpackBlock(src, srcoff + i);
+				decryptBlock(KW);
+				packBlock(dst, dstoff + i);
+			}
+		}
+	}
+
 	private final void unpackBlock(byte[] bytes, int off) {
 		int index = off;
 
@@ -12,4 +12,11 @@ public interface BlockCipher {
 	public void init(boolean forEncryption, byte[] key);
 
 	public void transformBlock(byte[] src, int srcoff, byte[] dst, int dstoff);
+
+	/**
+	 * Transforms <code>len</code> bytes (a multiple of the block size) in one
+	 * call. Source and destination may be the same region.
+	 */
+	public void transformBlocks(byte[] src, int srcoff, byte[] dst,
+			int dstoff, int len);
 }
@@ -15,68 +15,271 @@ public class BlockCipherFactory {
 		int blocksize;
 		int keysize;
 		String cipherClass;
+		String jceAlgorithm;
+		int ivsize;
+		int authlen;
 
 		public CipherEntry(String type, int blockSize, int keySize,
-				String cipherClass) {
+				String cipherClass, String jceAlgorithm) {
+			this(type, blockSize, keySize, cipherClass, jceAlgorithm,
+					blockSize, 0);
+		}
+
+		public CipherEntry(String type, int blockSize, int keySize,
+				String cipherClass, String jceAlgorithm, int ivSize,
+				int authLen) {
 			this.type = type;
 			this.blocksize = blockSize;
 			this.keysize = keySize;
 			this.cipherClass = cipherClass;
+			this.jceAlgorithm = jceAlgorithm;
+			this.ivsize = ivSize;
+			this.authlen = authLen;
+		}
+	}
+
+	/**
+	 * The pure-Java implementations shipped with this library. They are always
+	 * the last resort.
+	 */
+	static class BuiltinCipherProvider implements BlockCipherProvider {
+		@Override
+		public BlockCipher createCipher(String type, boolean encrypt,
+				byte[] key, byte[] iv) {
+			try {
+				CipherEntry ce = getEntry(type);
+				Class cc = Class.forName(ce.cipherClass);
+				BlockCipher bc = (BlockCipher) cc.newInstance();
+
+				if (type.endsWith("-cbc")) {
+					bc.init(encrypt, key);
+					return new CBCMode(bc, iv, encrypt);
+				} else if (type.endsWith("-ctr")) {
+					bc.init(true, key);
+					return new CTRMode(bc, iv, encrypt);
+				}
+				throw new IllegalArgumentException("Cannot instantiate " + type);
+			} catch (Exception e) {
+				throw new IllegalArgumentException("Cannot instantiate " + type);
+			}
+		}
+
+		@Override
+		public AEADCipher createAEADCipher(String type, boolean encrypt,
+				byte[] key, byte[] iv) {
+			if (type.equals("chacha20-poly1305@openssh.com"))
+				return new ChaCha20Poly1305(key);
+
+			throw new IllegalArgumentException("Cannot instantiate " + type);
+		}
+
+		@Override
+		public String getName() {
+			return "builtin";
+		}
+
+		@Override
+		public boolean supports(String type) {
+			return getEntry(type).cipherClass != null;
 		}
 	}
 
 	static Vector<CipherEntry> ciphers = new Vector<CipherEntry>();
 
+	static final BlockCipherProvider builtinProvider = new BuiltinCipherProvider();
+
+	/* Higher Priority First, builtinProvider is implicitly the last one */
+	static Vector<BlockCipherProvider> providers = new Vector<BlockCipherProvider>();
+
 	static {
 		/* Higher Priority First */
 
+		ciphers.addElement(new CipherEntry("aes128-gcm@openssh.com", 16, 16,
+				null, "AES", 12, 16));
+		ciphers.addElement(new CipherEntry("aes256-gcm@openssh.com", 16, 32,
+				null, "AES", 12, 16));
+		ciphers.addElement(new CipherEntry("chacha20-poly1305@openssh.com", 8,
+				64, "com.trilead.ssh2.crypto.cipher.ChaCha20Poly1305", null, 0,
+				16));
+
 		ciphers.addElement(new CipherEntry("aes256-cbc", 16, 32,
-				"com.trilead.ssh2.crypto.cipher.AES"));
+				"com.trilead.ssh2.crypto.cipher.AES", "AES"));
 		ciphers.addElement(new CipherEntry("aes192-cbc", 16, 24,
-				"com.trilead.ssh2.crypto.cipher.AES"));
+				"com.trilead.ssh2.crypto.cipher.AES", "AES"));
 		ciphers.addElement(new CipherEntry("aes128-cbc", 16, 16,
-				"com.trilead.ssh2.crypto.cipher.AES"));
+				"com.trilead.ssh2.crypto.cipher.AES", "AES"));
 		ciphers.addElement(new CipherEntry("blowfish-cbc", 8, 16,
-				"com.trilead.ssh2.crypto.cipher.BlowFish"));
+				"com.trilead.ssh2.crypto.cipher.BlowFish", "Blowfish"));
 		
 		ciphers.addElement(new CipherEntry("aes256-ctr", 16, 32,
-				"com.trilead.ssh2.crypto.cipher.AES"));
+				"com.trilead.ssh2.crypto.cipher.AES", "AES"));
 		ciphers.addElement(new CipherEntry("aes192-ctr", 16, 24,
-				"com.trilead.ssh2.crypto.cipher.AES"));
+				"com.trilead.ssh2.crypto.cipher.AES", "AES"));
 		ciphers.addElement(new CipherEntry("aes128-ctr", 16, 16,
-				"com.trilead.ssh2.crypto.cipher.AES"));
+				"com.trilead.ssh2.crypto.cipher.AES", "AES"));
 		ciphers.addElement(new CipherEntry("blowfish-ctr", 8, 16,
-				"com.trilead.ssh2.crypto.cipher.BlowFish"));
+				"com.trilead.ssh2.crypto.cipher.BlowFish", "Blowfish"));
 
 		ciphers.addElement(new CipherEntry("3des-ctr", 8, 24,
-				"com.trilead.ssh2.crypto.cipher.DESede"));
+				"com.trilead.ssh2.crypto.cipher.DESede", "DESede"));
 		ciphers.addElement(new CipherEntry("3des-cbc", 8, 24,
-				"com.trilead.ssh2.crypto.cipher.DESede"));
+				"com.trilead.ssh2.crypto.cipher.DESede", "DESede"));
+
+		providers.addElement(new JceCipherProvider());
+	}
+
+	/**
+	 * Registers an additional provider. It is consulted before all previously
+	 * registered providers.
+	 */
+	public static void addProvider(BlockCipherProvider provider) {
+		if (provider == null)
+			throw new IllegalArgumentException("provider may not be null");
+
+		providers.insertElementAt(provider, 0);
+	}
+
+	/**
+	 * Enables or disables the use of <code>javax.crypto</code> ciphers. If
+	 * disabled, only the pure-Java implementations are used. Enabled by
+	 * default. Only affects connections that perform a key exchange after
+	 * the call.
+	 */
+	public static void setJceEnabled(boolean enabled) {
+		synchronized (providers) {
+			for (int i = 0; i < providers.size(); i++) {
+				if (providers.elementAt(i) instanceof JceCipherProvider)
+					providers.removeElementAt(i--);
+			}
+
+			if (enabled)
+				providers.addElement(new JceCipherProvider());
+		}
+	}
+
+	/**
+	 * @return the first registered provider that supports the given cipher,
+	 *         falling back to the built-in implementations.
+	 * @throws IllegalArgumentException
+	 *             if no provider supports the cipher.
+	 */
+	public static BlockCipherProvider getProvider(String type) {
+		synchronized (providers) {
+			for (int i = 0; i < providers.size(); i++) {
+				BlockCipherProvider p = providers.elementAt(i);
+				if (p.supports(type))
+					return p;
+			}
+		}
+
+		if (builtinProvider.supports(type))
+			return builtinProvider;
+
+		throw new IllegalArgumentException("No provider for " + type);
+	}
+
+	private static boolean isAvailable(String type) {
+		try {
+			getProvider(type);
+			return true;
+		} catch (IllegalArgumentException e) {
+			return false;
+		}
 	}
 
 	public static void checkCipherList(String[] cipherCandidates) {
 		for (int i = 0; i < cipherCandidates.length; i++)
-			getEntry(cipherCandidates[i]);
+			getProvider(cipherCandidates[i]);
+	}
+
+	/**
+	 * @return all providers that support the given cipher, in order of
+	 *         priority, the built-in implementations last.
+	 */
+	private static Vector<BlockCipherProvider> getProviders(String type) {
+		Vector<BlockCipherProvider> v = new Vector<BlockCipherProvider>();
+
+		synchronized (providers) {
+			for (int i = 0; i < providers.size(); i++) {
+				BlockCipherProvider p = providers.elementAt(i);
+				if (p.supports(type))
+					v.addElement(p);
+			}
+		}
+
+		if (builtinProvider.supports(type))
+			v.addElement(builtinProvider);
+
+		if (v.size() == 0)
+			throw new IllegalArgumentException("No provider for " + type);
+
+		return v;
 	}
 
 	public static BlockCipher createCipher(String type, boolean encrypt,
 			byte[] key, byte[] iv) {
-		try {
-			CipherEntry ce = getEntry(type);
-			Class cc = Class.forName(ce.cipherClass);
-			BlockCipher bc = (BlockCipher) cc.newInstance();
-
-			if (type.endsWith("-cbc")) {
-				bc.init(encrypt, key);
-				return new CBCMode(bc, iv, encrypt);
-			} else if (type.endsWith("-ctr")) {
-				bc.init(true, key);
-				return new CTRMode(bc, iv, encrypt);
+		return createCipher(type, encrypt, key, iv, null);
+	}
+
+	/**
+	 * Creates the cipher with the first provider that manages to, e.g., a
+	 * JCE provider may still refuse the key at this point.
+	 * 
+	 * @param used
+	 *            if not <code>null</code>, receives the provider that
+	 *            created the cipher in <code>used[0]</code>.
+	 */
+	public static BlockCipher createCipher(String type, boolean encrypt,
+			byte[] key, byte[] iv, BlockCipherProvider[] used) {
+		Vector<BlockCipherProvider> v = getProviders(type);
+		IllegalArgumentException failure = null;
+
+		for (int i = 0; i < v.size(); i++) {
+			BlockCipherProvider p = v.elementAt(i);
+
+			try {
+				BlockCipher bc = p.createCipher(type, encrypt, key, iv);
+
+				if (used != null)
+					used[0] = p;
+				return bc;
+			} catch (IllegalArgumentException e) {
+				failure = e;
 			}
-			throw new IllegalArgumentException("Cannot instantiate " + type);
-		} catch (Exception e) {
-			throw new IllegalArgumentException("Cannot instantiate " + type);
 		}
+
+		throw failure;
+	}
+
+	public static AEADCipher createAEADCipher(String type, boolean encrypt,
+			byte[] key, byte[] iv) {
+		return createAEADCipher(type, encrypt, key, iv, null);
+	}
+
+	/**
+	 * @see #createCipher(String, boolean, byte[], byte[],
+	 *      BlockCipherProvider[])
+	 */
+	public static AEADCipher createAEADCipher(String type, boolean encrypt,
+			byte[] key, byte[] iv, BlockCipherProvider[] used) {
+		Vector<BlockCipherProvider> v = getProviders(type);
+		IllegalArgumentException failure = null;
+
+		for (int i = 0; i < v.size(); i++) {
+			BlockCipherProvider p = v.elementAt(i);
+
+			try {
+				AEADCipher aead = p.createAEADCipher(type, encrypt, key, iv);
+
+				if (used != null)
+					used[0] = p;
+				return aead;
+			} catch (IllegalArgumentException e) {
+				failure = e;
+			}
+		}
+
+		throw failure;
 	}
 
 	public static int getBlockSize(String type) {
@@ -84,16 +287,39 @@ public class BlockCipherFactory {
 		return ce.blocksize;
 	}
 
+	/**
+	 * @return the length of the initial IV that has to be derived during key
+	 *         exchange.
+	 */
+	public static int getIVSize(String type) {
+		CipherEntry ce = getEntry(type);
+		return ce.ivsize;
+	}
+
+	/**
+	 * @return whether the cipher is an authenticated encryption mode (to be
+	 *         created with {@link #createAEADCipher}), in which case no MAC
+	 *         is negotiated.
+	 */
+	public static boolean isAEAD(String type) {
+		CipherEntry ce = getEntry(type);
+		return ce.authlen != 0;
+	}
+
+	/**
+	 * @return all ciphers for which a provider is available on this platform.
+	 */
 	public static String[] getDefaultCipherList() {
-		String list[] = new String[ciphers.size()];
+		Vector<String> list = new Vector<String>();
 		for (int i = 0; i < ciphers.size(); i++) {
 			CipherEntry ce = ciphers.elementAt(i);
-			list[i] = new String(ce.type);
+			if (isAvailable(ce.type))
+				list.addElement(new String(ce.type));
 		}
-		return list;
+		return list.toArray(new String[list.size()]);
 	}
 
-	private static CipherEntry getEntry(String type) {
+	static CipherEntry getEntry(String type) {
 		for (int i = 0; i < ciphers.size(); i++) {
 			CipherEntry ce = ciphers.elementAt(i);
 			if (ce.type.equals(type))
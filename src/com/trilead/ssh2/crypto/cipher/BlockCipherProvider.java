@@ -0,0 +1,41 @@
+package com.trilead.ssh2.crypto.cipher;
+
+/**
+ * A source of {@link BlockCipher} implementations. The
+ * {@link BlockCipherFactory} asks its registered providers in order and uses
+ * the first one that supports the negotiated algorithm.
+ * 
+ * @version $Id$
+ */
+public interface BlockCipherProvider {
+	/**
+	 * @return a short name of this provider, reported in
+	 *         {@link com.trilead.ssh2.ConnectionInfo}.
+	 */
+	public String getName();
+
+	/**
+	 * @param type
+	 *            SSH-2 cipher name, e.g., "aes128-ctr".
+	 * @return whether this provider can instantiate the given cipher.
+	 */
+	public boolean supports(String type);
+
+	/**
+	 * @return a ready to use cipher in the requested mode, including the
+	 *         CBC/CTR wrapping.
+	 * @throws IllegalArgumentException
+	 *             if the cipher cannot be instantiated.
+	 */
+	public BlockCipher createCipher(String type, boolean encrypt, byte[] key,
+			byte[] iv);
+
+	/**
+	 * @return a ready to use authenticated cipher, for the types where
+	 *         {@link BlockCipherFactory#isAEAD(String)} is true.
+	 * @throws IllegalArgumentException
+	 *             if the cipher cannot be instantiated.
+	 */
+	public AEADCipher createAEADCipher(String type, boolean encrypt,
+			byte[] key, byte[] iv);
+}
@@ -472,4 +472,19 @@ public class BlowFish implements BlockCipher {
 		}
 	}
 
+	@Override
+	public final void transformBlocks(byte[] in, int inOff, byte[] out,
+			int outOff, int len) {
+		if (workingKey == null) {
+			throw new IllegalStateException("Blowfish not initialised");
+		}
+
+		if (doEncrypt) {
+			for (int i = 0; i < len; i += BLOCK_SIZE)
+				encryptBlock(in, inOff + i, out, outOff + i);
+		} else {
+			for (int i = 0; i < len; i += BLOCK_SIZE)
+				decryptBlock(in, inOff + i, out, outOff + i);
+		}
+	}
 }
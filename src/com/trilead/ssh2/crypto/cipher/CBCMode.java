@@ -14,6 +14,9 @@ public class CBCMode implements BlockCipher {
 	byte[] cbc_vector;
 	byte[] tmp_vector;
 
+	/* Copy of the ciphertext during bulk decryption */
+	byte[] chunk_buffer;
+
 	public CBCMode(BlockCipher tc, byte[] iv, boolean doEncrypt)
 			throws IllegalArgumentException {
 		this.tc = tc;
@@ -26,6 +29,7 @@ public class CBCMode implements BlockCipher {
 
 		this.cbc_vector = new byte[blockSize];
 		this.tmp_vector = new byte[blockSize];
+		this.chunk_buffer = new byte[blockSize * 128];
 		System.arraycopy(iv, 0, cbc_vector, 0, blockSize);
 	}
 
@@ -71,4 +75,44 @@ public class CBCMode implements BlockCipher {
 		else
 			decryptBlock(src, srcoff, dst, dstoff);
 	}
+
+	@Override
+	public void transformBlocks(byte[] src, int srcoff, byte[] dst,
+			int dstoff, int len) {
+		if (doEncrypt) {
+			/* CBC encryption is inherently sequential */
+
+			for (int i = 0; i < len; i += blockSize)
+				encryptBlock(src, srcoff + i, dst, dstoff + i);
+
+			return;
+		}
+
+		final byte[] cbuf = chunk_buffer;
+
+		while (len > 0) {
+			int chunk = (len > cbuf.length) ? cbuf.length : len;
+
+			/*
+			 * Keep a copy of the ciphertext, src and dst may overlap and we
+			 * need the previous ciphertext block for the XOR step.
+			 */
+
+			System.arraycopy(src, srcoff, cbuf, 0, chunk);
+
+			tc.transformBlocks(cbuf, 0, dst, dstoff, chunk);
+
+			for (int i = 0; i < blockSize; i++)
+				dst[dstoff + i] ^= cbc_vector[i];
+
+			for (int i = blockSize; i < chunk; i++)
+				dst[dstoff + i] ^= cbuf[i - blockSize];
+
+			System.arraycopy(cbuf, chunk - blockSize, cbc_vector, 0, blockSize);
+
+			srcoff += chunk;
+			dstoff += chunk;
+			len -= chunk;
+		}
+	}
 }
@@ -16,6 +16,9 @@ public class CTRMode implements BlockCipher {
 
 	int count = 0;
 
+	/* Counter blocks for bulk operation, encrypted in place to key stream */
+	byte[] keystream;
+
 	public CTRMode(BlockCipher tc, byte[] iv, boolean doEnc)
 			throws IllegalArgumentException {
 		bc = tc;
@@ -28,6 +31,7 @@ public class CTRMode implements BlockCipher {
 
 		X = new byte[blockSize];
 		Xenc = new byte[blockSize];
+		keystream = new byte[blockSize * 64];
 
 		System.arraycopy(iv, 0, X, 0, blockSize);
 	}
@@ -50,11 +54,38 @@ public class CTRMode implements BlockCipher {
 			dst[dstoff + i] = (byte) (src[srcoff + i] ^ Xenc[i]);
 		}
 
+		incrementCounter();
+	}
+
+	@Override
+	public final void transformBlocks(byte[] src, int srcoff, byte[] dst,
+			int dstoff, int len) {
+		final byte[] ks = keystream;
+
+		while (len > 0) {
+			int chunk = (len > ks.length) ? ks.length : len;
+
+			for (int k = 0; k < chunk; k += blockSize) {
+				System.arraycopy(X, 0, ks, k, blockSize);
+				incrementCounter();
+			}
+
+			bc.transformBlocks(ks, 0, ks, 0, chunk);
+
+			for (int i = 0; i < chunk; i++)
+				dst[dstoff + i] = (byte) (src[srcoff + i] ^ ks[i]);
+
+			srcoff += chunk;
+			dstoff += chunk;
+			len -= chunk;
+		}
+	}
+
+	private final void incrementCounter() {
 		for (int i = (blockSize - 1); i >= 0; i--) {
 			X[i]++;
 			if (X[i] != 0)
 				break;
-
 		}
 	}
 }
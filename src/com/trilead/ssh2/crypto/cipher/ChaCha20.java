@@ -0,0 +1,107 @@
+package com.trilead.ssh2.crypto.cipher;
+
+/**
+ * The ChaCha20 stream cipher in its original form (64 bit nonce, 64 bit block
+ * counter) as used by chacha20-poly1305@openssh.com. Does not allocate any
+ * memory after construction.
+ * 
+ * @version $Id$
+ */
+final class ChaCha20 {
+	private final int[] state = new int[16];
+	private final int[] x = new int[16];
+
+	ChaCha20() {
+		state[0] = 0x61707865;
+		state[1] = 0x3320646e;
+		state[2] = 0x79622d32;
+		state[3] = 0x6b206574;
+	}
+
+	private static int le32(byte[] b, int off) {
+		return (b[off] & 0xff) | ((b[off + 1] & 0xff) << 8)
+				| ((b[off + 2] & 0xff) << 16) | ((b[off + 3] & 0xff) << 24);
+	}
+
+	void setKey(byte[] key, int off) {
+		for (int i = 0; i < 8; i++)
+			state[4 + i] = le32(key, off + 4 * i);
+	}
+
+	/**
+	 * Sets the nonce to the SSH-2 packet sequence number (encoded as 64 bit
+	 * big-endian value) and the block counter.
+	 */
+	void setNonce(int seqnr, long counter) {
+		state[12] = (int) counter;
+		state[13] = (int) (counter >>> 32);
+		state[14] = 0;
+		state[15] = Integer.reverseBytes(seqnr);
+	}
+
+	private void block() {
+		final int[] x = this.x;
+
+		System.arraycopy(state, 0, x, 0, 16);
+
+		for (int i = 0; i < 10; i++) {
+			quarterRound(x, 0, 4, 8, 12);
+			quarterRound(x, 1, 5, 9, 13);
+			quarterRound(x, 2, 6, 10, 14);
+			quarterRound(x, 3, 7, 11, 15);
+			quarterRound(x, 0, 5, 10, 15);
+			quarterRound(x, 1, 6, 11, 12);
+			quarterRound(x, 2, 7, 8, 13);
+			quarterRound(x, 3, 4, 9, 14);
+		}
+
+		for (int i = 0; i < 16; i++)
+			x[i] += state[i];
+
+		if (++state[12] == 0)
+			state[13]++;
+	}
+
+	private static void quarterRound(int[] x, int a, int b, int c, int d) {
+		x[a] += x[b];
+		x[d] = Integer.rotateLeft(x[d] ^ x[a], 16);
+		x[c] += x[d];
+		x[b] = Integer.rotateLeft(x[b] ^ x[c], 12);
+		x[a] += x[b];
+		x[d] = Integer.rotateLeft(x[d] ^ x[a], 8);
+		x[c] += x[d];
+		x[b] = Integer.rotateLeft(x[b] ^ x[c], 7);
+	}
+
+	/**
+	 * XORs <code>len</code> bytes with the key stream, starting at the
+	 * current block counter. <code>src</code> and <code>dst</code> may be the
+	 * same region.
+	 */
+	void crypt(byte[] src, int srcoff, byte[] dst, int dstoff, int len) {
+		while (len > 0) {
+			block();
+
+			int n = (len < 64) ? len : 64;
+
+			if (n == 64) {
+				for (int i = 0; i < 16; i++) {
+					int k = x[i];
+					int s = srcoff + 4 * i;
+					int d = dstoff + 4 * i;
+					dst[d] = (byte) (src[s] ^ k);
+					dst[d + 1] = (byte) (src[s + 1] ^ (k >>> 8));
+					dst[d + 2] = (byte) (src[s + 2] ^ (k >>> 16));
+					dst[d + 3] = (byte) (src[s + 3] ^ (k >>> 24));
+				}
+			} else {
+				for (int i = 0; i < n; i++)
+					dst[dstoff + i] = (byte) (src[srcoff + i] ^ (x[i >> 2] >>> ((i & 3) << 3)));
+			}
+
+			srcoff += n;
+			dstoff += n;
+			len -= n;
+		}
+	}
+}
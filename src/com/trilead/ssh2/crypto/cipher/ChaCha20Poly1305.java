@@ -0,0 +1,88 @@
+package com.trilead.ssh2.crypto.cipher;
+
+/**
+ * chacha20-poly1305@openssh.com. The 64 byte key consists of the main key
+ * (first half, used for the payload) and the header key (second half, used
+ * for the packet length). Both use the packet sequence number as nonce. The
+ * Poly1305 key is taken from the first main key stream block, the payload is
+ * encrypted starting with block counter 1. The tag covers the encrypted
+ * length and the encrypted payload.
+ * 
+ * @version $Id$
+ */
+public class ChaCha20Poly1305 implements AEADCipher {
+	private final ChaCha20 main = new ChaCha20();
+	private final ChaCha20 header = new ChaCha20();
+
+	private final byte[] poly_key = new byte[32];
+	private final byte[] tag = new byte[Poly1305.TAG_SIZE];
+	private final byte[] length_buffer = new byte[4];
+
+	public ChaCha20Poly1305(byte[] key) {
+		if (key.length != 64)
+			throw new IllegalArgumentException(
+					"chacha20-poly1305 needs a 64 byte key");
+
+		main.setKey(key, 0);
+		header.setKey(key, 32);
+	}
+
+	@Override
+	public int getBlockSize() {
+		return 8;
+	}
+
+	@Override
+	public int getTagSize() {
+		return Poly1305.TAG_SIZE;
+	}
+
+	@Override
+	public int getPacketLength(int seqnr, byte[] src, int off) {
+		header.setNonce(seqnr, 0);
+		header.crypt(src, off, length_buffer, 0, 4);
+
+		return ((length_buffer[0] & 0xff) << 24)
+				| ((length_buffer[1] & 0xff) << 16)
+				| ((length_buffer[2] & 0xff) << 8) | (length_buffer[3] & 0xff);
+	}
+
+	private void initPolyKey(int seqnr) {
+		for (int i = 0; i < poly_key.length; i++)
+			poly_key[i] = 0;
+
+		main.setNonce(seqnr, 0);
+		main.crypt(poly_key, 0, poly_key, 0, poly_key.length);
+	}
+
+	@Override
+	public void seal(int seqnr, byte[] packet, int off, int len) {
+		header.setNonce(seqnr, 0);
+		header.crypt(packet, off, packet, off, 4);
+
+		main.setNonce(seqnr, 1);
+		main.crypt(packet, off + 4, packet, off + 4, len - 4);
+
+		initPolyKey(seqnr);
+		Poly1305.mac(poly_key, 0, packet, off, len, packet, off + len);
+	}
+
+	@Override
+	public boolean open(int seqnr, byte[] packet, int off, int len) {
+		initPolyKey(seqnr);
+		Poly1305.mac(poly_key, 0, packet, off, len, tag, 0);
+
+		int diff = 0;
+
+		for (int i = 0; i < tag.length; i++)
+			diff |= tag[i] ^ packet[off + len + i];
+
+		if (diff != 0)
+			return false;
+
+		main.setNonce(seqnr, 1);
+		main.crypt(packet, off + 4, packet, off + 4, len - 4);
+
+		return true;
+	}
+}
@@ -68,6 +68,11 @@ public class CipherInputStream {
 			return -1;
 
 		if (input_buffer_pos >= input_buffer_size) {
+			/* Large reads bypass the buffer */
+
+			if (len >= BUFF_SIZE)
+				return bi.read(b, off, len);
+
 			if (fill_buffer() <= 0)
 				return -1;
 		}
@@ -110,6 +115,48 @@ public class CipherInputStream {
 		return count;
 	}
 
+	/**
+	 * Reads <code>len</code> bytes (a multiple of the block size) and decrypts
+	 * them in place with a single bulk call.
+	 */
+	public void readBlocks(byte[] dst, int off, int len) throws IOException {
+		if (pos != blockSize)
+			throw new IOException(
+					"Cannot read blocks since crypto buffer is not aligned.");
+
+		if ((len % blockSize) != 0)
+			throw new IOException("Cannot read " + len
+					+ " bytes, not a multiple of the block size (" + blockSize
+					+ ").");
+
+		readPlain(dst, off, len);
+
+		try {
+			currentCipher.transformBlocks(dst, off, dst, off, len);
+		} catch (Exception e) {
+			throw (IOException) new IOException("Error while decrypting block.")
+					.initCause(e);
+		}
+	}
+
+	/**
+	 * Decrypts <code>len</code> bytes (a multiple of the block size) that have
+	 * previously been read with {@link #readPlain(byte[], int, int)} in place.
+	 */
+	public void decryptBlocks(byte[] b, int off, int len) throws IOException {
+		if ((len % blockSize) != 0)
+			throw new IOException("Cannot decrypt " + len
+					+ " bytes, not a multiple of the block size (" + blockSize
+					+ ").");
+
+		try {
+			currentCipher.transformBlocks(b, off, b, off, len);
+		} catch (Exception e) {
+			throw (IOException) new IOException("Error while decrypting block.")
+					.initCause(e);
+		}
+	}
+
 	public int readPlain(byte[] b, int off, int len) throws IOException {
 		if (pos != blockSize)
 			throw new IOException(
@@ -112,6 +112,60 @@ public class CipherOutputStream {
 		pos = 0;
 	}
 
+	/**
+	 * Encrypts the first <code>encLen</code> bytes of a fully assembled packet
+	 * in place and hands the whole packet (including any trailing plain bytes,
+	 * e.g., the MAC) to the underlying stream with a single write.
+	 * <p>
+	 * <code>encLen</code> must be a multiple of the cipher block size and the
+	 * crypto buffer must be aligned.
+	 */
+	public void writePacket(byte[] packet, int off, int encLen, int totalLen)
+			throws IOException {
+		if (pos != 0)
+			throw new IOException(
+					"Cannot write packet since crypto buffer is not aligned.");
+
+		if ((encLen % blockSize) != 0)
+			throw new IOException("Cannot write packet, " + encLen
+					+ " is not a multiple of the block size (" + blockSize
+					+ ").");
+
+		try {
+			currentCipher.transformBlocks(packet, off, packet, off, encLen);
+		} catch (Exception e) {
+			throw (IOException) new IOException("Error while encrypting block.")
+					.initCause(e);
+		}
+
+		if (out_buffer_pos > 0) {
+			bo.write(out_buffer, 0, out_buffer_pos);
+			out_buffer_pos = 0;
+		}
+
+		bo.write(packet, off, totalLen);
+	}
+
+	/**
+	 * Encrypts <code>len</code> bytes (a multiple of the block size) in place
+	 * without writing them, e.g., for encrypt-then-MAC packets whose MAC has to
+	 * be computed over the ciphertext before the packet can be sent with
+	 * {@link #writePacket(byte[], int, int, int)}.
+	 */
+	public void encryptBlocks(byte[] b, int off, int len) throws IOException {
+		if ((len % blockSize) != 0)
+			throw new IOException("Cannot encrypt " + len
+					+ " bytes, not a multiple of the block size (" + blockSize
+					+ ").");
+
+		try {
+			currentCipher.transformBlocks(b, off, b, off, len);
+		} catch (Exception e) {
+			throw (IOException) new IOException("Error while encrypting block.")
+					.initCause(e);
+		}
+	}
+
 	public void writePlain(byte[] b, int off, int len) throws IOException {
 		if (pos != 0)
 			throw new IOException(
@@ -391,4 +391,11 @@ public class DES implements BlockCipher {
 
 		desFunc(workingKey, in, inOff, out, outOff);
 	}
+
+	@Override
+	public void transformBlocks(byte[] in, int inOff, byte[] out, int outOff,
+			int len) {
+		for (int i = 0; i < len; i += 8)
+			transformBlock(in, inOff + i, out, outOff + i);
+	}
 }
@@ -0,0 +1,68 @@
+package com.trilead.ssh2.crypto.cipher;
+
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+import javax.crypto.ShortBufferException;
+
+/**
+ * A {@link BlockCipher} backed by a <code>javax.crypto.Cipher</code> that has
+ * been initialized in a streaming mode (CBC or CTR without padding). This
+ * allows the JVM to use its intrinsics (e.g., AES-NI) for the bulk of the
+ * work.
+ * 
+ * @version $Id$
+ */
+public class JceBlockCipher implements BlockCipher {
+	private final Cipher cipher;
+	private final int blockSize;
+
+	JceBlockCipher(Cipher cipher) {
+		this.cipher = cipher;
+		this.blockSize = cipher.getBlockSize();
+	}
+
+	@Override
+	public int getBlockSize() {
+		return blockSize;
+	}
+
+	/**
+	 * @return the name of the JCE provider doing the actual work.
+	 */
+	public String getProviderName() {
+		return cipher.getProvider().getName();
+	}
+
+	@Override
+	public void init(boolean forEncryption, byte[] key) {
+		/* The wrapped cipher is initialized by the JceCipherProvider */
+	}
+
+	@Override
+	public void transformBlock(byte[] src, int srcoff, byte[] dst, int dstoff) {
+		transformBlocks(src, srcoff, dst, dstoff, blockSize);
+	}
+
+	@Override
+	public void transformBlocks(byte[] src, int srcoff, byte[] dst,
+			int dstoff, int len) {
+		try {
+			if (cipher.update(src, srcoff, len, dst, dstoff) != len)
+				throw new IllegalStateException(
+						"JCE cipher did not process all blocks");
+		} catch (ShortBufferException e) {
+			throw new IllegalArgumentException("output buffer too short");
+		}
+	}
+
+	static JceBlockCipher create(String transformation, String keyAlgorithm,
+			boolean encrypt, byte[] key, byte[] iv)
+			throws GeneralSecurityException {
+		Cipher c = Cipher.getInstance(transformation);
+		c.init(encrypt ? Cipher.ENCRYPT_MODE : Cipher.DECRYPT_MODE,
+				new javax.crypto.spec.SecretKeySpec(key, keyAlgorithm),
+				new javax.crypto.spec.IvParameterSpec(iv));
+		return new JceBlockCipher(c);
+	}
+}
@@ -0,0 +1,124 @@
+package com.trilead.ssh2.crypto.cipher;
+
+import java.security.GeneralSecurityException;
+import java.util.HashMap;
+
+import javax.crypto.Cipher;
+
+import com.trilead.ssh2.log.Logger;
+
+/**
+ * JceCipherProvider. Instantiates ciphers through
+ * <code>javax.crypto.Cipher</code>, if the running JVM offers the needed
+ * transformation.
+ * 
+ * @version $Id$
+ */
+public class JceCipherProvider implements BlockCipherProvider {
+	private static final Logger log = Logger.getLogger(JceCipherProvider.class);
+
+	/* Cache of cipher type -> Boolean (available or not) */
+	private final HashMap<String, Boolean> available = new HashMap<String, Boolean>();
+
+	private static String getTransformation(BlockCipherFactory.CipherEntry ce) {
+		if (ce.jceAlgorithm == null)
+			return null;
+
+		if (ce.type.endsWith("-cbc"))
+			return ce.jceAlgorithm + "/CBC/NoPadding";
+
+		if (ce.type.endsWith("-ctr"))
+			return ce.jceAlgorithm + "/CTR/NoPadding";
+
+		if (ce.type.endsWith("-gcm@openssh.com"))
+			return ce.jceAlgorithm + "/GCM/NoPadding";
+
+		return null;
+	}
+
+	@Override
+	public BlockCipher createCipher(String type, boolean encrypt, byte[] key,
+			byte[] iv) {
+		BlockCipherFactory.CipherEntry ce = BlockCipherFactory.getEntry(type);
+		String transformation = getTransformation(ce);
+
+		if (transformation == null || ce.authlen != 0)
+			throw new IllegalArgumentException("Cannot instantiate " + type);
+
+		try {
+			return JceBlockCipher.create(transformation, ce.jceAlgorithm,
+					encrypt, key, iv);
+		} catch (GeneralSecurityException e) {
+			throw (IllegalArgumentException) new IllegalArgumentException(
+					"Cannot instantiate " + type).initCause(e);
+		}
+	}
+
+	@Override
+	public AEADCipher createAEADCipher(String type, boolean encrypt,
+			byte[] key, byte[] iv) {
+		BlockCipherFactory.CipherEntry ce = BlockCipherFactory.getEntry(type);
+		String transformation = getTransformation(ce);
+
+		if (transformation == null || ce.authlen == 0)
+			throw new IllegalArgumentException("Cannot instantiate " + type);
+
+		try {
+			return new JceGCMCipher(transformation, encrypt, key, iv);
+		} catch (GeneralSecurityException e) {
+			throw (IllegalArgumentException) new IllegalArgumentException(
+					"Cannot instantiate " + type).initCause(e);
+		}
+	}
+
+	@Override
+	public String getName() {
+		return "jce";
+	}
+
+	@Override
+	public boolean supports(String type) {
+		BlockCipherFactory.CipherEntry ce = BlockCipherFactory.getEntry(type);
+		String transformation = getTransformation(ce);
+
+		if (transformation == null)
+			return false;
+
+		synchronized (available) {
+			Boolean b = available.get(type);
+
+			if (b == null) {
+				try {
+					Cipher.getInstance(transformation);
+
+					/* GCMParameterSpec is missing on older platforms */
+					if (transformation.indexOf("/GCM/") != -1)
+						Class.forName("javax.crypto.spec.GCMParameterSpec");
+
+					/*
+					 * A restrictive crypto policy limits the key size, the
+					 * built-in implementation has to step in then
+					 */
+					b = Boolean.valueOf(Cipher
+							.getMaxAllowedKeyLength(transformation) >= ce.keysize * 8);
+				} catch (GeneralSecurityException e) {
+					b = Boolean.FALSE;
+				} catch (ClassNotFoundException e) {
+					b = Boolean.FALSE;
+				} catch (RuntimeException e) {
+					b = Boolean.FALSE;
+				}
+
+				if (log.isEnabled())
+					log.log(50, "JCE transformation " + transformation + " ("
+							+ type + ")"
+							+ (b.booleanValue() ? " is" : " is not")
+							+ " available");
+
+				available.put(type, b);
+			}
+
+			return b.booleanValue();
+		}
+	}
+}
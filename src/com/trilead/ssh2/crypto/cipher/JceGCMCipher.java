@@ -0,0 +1,109 @@
+package com.trilead.ssh2.crypto.cipher;
+
+import java.security.GeneralSecurityException;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * AES-GCM as specified for aes128-gcm@openssh.com and aes256-gcm@openssh.com
+ * (RFC 5647), implemented on top of <code>javax.crypto.Cipher</code>. The
+ * unencrypted packet length is the additional authenticated data, the 12 byte
+ * nonce consists of a fixed field and a 64 bit invocation counter that is
+ * incremented after each packet.
+ * 
+ * @version $Id$
+ */
+public class JceGCMCipher implements AEADCipher {
+	static final int TAG_SIZE = 16;
+
+	private final Cipher cipher;
+	private final SecretKeySpec key;
+	private final byte[] iv;
+	private final boolean encrypt;
+
+	JceGCMCipher(String transformation, boolean encrypt, byte[] key, byte[] iv)
+			throws GeneralSecurityException {
+		if (iv.length != 12)
+			throw new IllegalArgumentException("GCM needs a 12 byte IV");
+
+		this.cipher = Cipher.getInstance(transformation);
+		this.key = new SecretKeySpec(key, "AES");
+		this.iv = iv.clone();
+		this.encrypt = encrypt;
+
+		/*
+		 * The cipher is initialized per packet. Let a refused key show up
+		 * now, so that the factory can fall back to another provider.
+		 * Decrypt mode, since GCM does not allow an IV to be used twice for
+		 * encryption.
+		 */
+		cipher.init(Cipher.DECRYPT_MODE, this.key, new GCMParameterSpec(
+				TAG_SIZE * 8, this.iv));
+	}
+
+	@Override
+	public int getBlockSize() {
+		return 16;
+	}
+
+	@Override
+	public int getTagSize() {
+		return TAG_SIZE;
+	}
+
+	@Override
+	public int getPacketLength(int seqnr, byte[] src, int off) {
+		return ((src[off] & 0xff) << 24) | ((src[off + 1] & 0xff) << 16)
+				| ((src[off + 2] & 0xff) << 8) | (src[off + 3] & 0xff);
+	}
+
+	private void incrementInvocationCounter() {
+		for (int i = 11; i >= 4; i--) {
+			if (++iv[i] != 0)
+				break;
+		}
+	}
+
+	@Override
+	public void seal(int seqnr, byte[] packet, int off, int len) {
+		if (!encrypt)
+			throw new IllegalStateException("cipher is not in encrypt mode");
+
+		try {
+			cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(
+					TAG_SIZE * 8, iv));
+			cipher.updateAAD(packet, off, 4);
+			cipher.doFinal(packet, off + 4, len - 4, packet, off + 4);
+		} catch (GeneralSecurityException e) {
+			throw (IllegalStateException) new IllegalStateException(
+					"AES-GCM encryption failed").initCause(e);
+		}
+
+		incrementInvocationCounter();
+	}
+
+	@Override
+	public boolean open(int seqnr, byte[] packet, int off, int len) {
+		if (encrypt)
+			throw new IllegalStateException("cipher is not in decrypt mode");
+
+		try {
+			cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(
+					TAG_SIZE * 8, iv));
+			cipher.updateAAD(packet, off, 4);
+			cipher.doFinal(packet, off + 4, len - 4 + TAG_SIZE, packet,
+					off + 4);
+		} catch (AEADBadTagException e) {
+			return false;
+		} catch (GeneralSecurityException e) {
+			throw (IllegalStateException) new IllegalStateException(
+					"AES-GCM decryption failed").initCause(e);
+		}
+
+		incrementInvocationCounter();
+		return true;
+	}
+}
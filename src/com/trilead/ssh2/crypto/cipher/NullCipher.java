@@ -29,4 +29,11 @@ public class NullCipher implements BlockCipher {
 	public void transformBlock(byte[] src, int srcoff, byte[] dst, int dstoff) {
 		System.arraycopy(src, srcoff, dst, dstoff, blockSize);
 	}
+
+	@Override
+	public void transformBlocks(byte[] src, int srcoff, byte[] dst,
+			int dstoff, int len) {
+		if ((src != dst) || (srcoff != dstoff))
+			System.arraycopy(src, srcoff, dst, dstoff, len);
+	}
 }
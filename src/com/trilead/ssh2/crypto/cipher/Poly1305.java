@@ -0,0 +1,178 @@
+package com.trilead.ssh2.crypto.cipher;
+
+/**
+ * The Poly1305 one-time authenticator (RFC 7539), computed over a contiguous
+ * buffer with 26 bit limbs. Does not allocate any memory.
+ * 
+ * @version $Id$
+ */
+final class Poly1305 {
+	static final int TAG_SIZE = 16;
+
+	private static final long MASK26 = 0x3ffffff;
+
+	private Poly1305() {
+	}
+
+	private static long le32(byte[] b, int off) {
+		return ((b[off] & 0xff) | ((b[off + 1] & 0xff) << 8)
+				| ((b[off + 2] & 0xff) << 16) | ((b[off + 3] & 0xff) << 24)) & 0xffffffffL;
+	}
+
+	/**
+	 * Computes the tag of <code>msg[off..off+len)</code> with the 32 byte
+	 * one-time key and writes it to <code>out[outoff]</code>.
+	 */
+	static void mac(byte[] key, int keyoff, byte[] msg, int off, int len,
+			byte[] out, int outoff) {
+		final long r0 = le32(key, keyoff) & 0x3ffffff;
+		final long r1 = (le32(key, keyoff + 3) >>> 2) & 0x3ffff03;
+		final long r2 = (le32(key, keyoff + 6) >>> 4) & 0x3ffc0ff;
+		final long r3 = (le32(key, keyoff + 9) >>> 6) & 0x3f03fff;
+		final long r4 = (le32(key, keyoff + 12) >>> 8) & 0x00fffff;
+
+		final long s1 = r1 * 5;
+		final long s2 = r2 * 5;
+		final long s3 = r3 * 5;
+		final long s4 = r4 * 5;
+
+		long h0 = 0, h1 = 0, h2 = 0, h3 = 0, h4 = 0;
+
+		/* The final partial block is padded with 0x01 and zeros */
+
+		long t0, t1, t2, t3, hibit;
+
+		while (len > 0) {
+			if (len >= 16) {
+				t0 = le32(msg, off);
+				t1 = le32(msg, off + 4);
+				t2 = le32(msg, off + 8);
+				t3 = le32(msg, off + 12);
+				hibit = 1L << 24;
+				off += 16;
+				len -= 16;
+			} else {
+				long w0 = 0, w1 = 0, w2 = 0, w3 = 0;
+
+				for (int i = 0; i <= len; i++) {
+					long b = (i < len) ? (msg[off + i] & 0xff) : 1;
+					int shift = (i & 3) << 3;
+					switch (i >> 2) {
+					case 0:
+						w0 |= b << shift;
+						break;
+					case 1:
+						w1 |= b << shift;
+						break;
+					case 2:
+						w2 |= b << shift;
+						break;
+					default:
+						w3 |= b << shift;
+						break;
+					}
+				}
+
+				t0 = w0;
+				t1 = w1;
+				t2 = w2;
+				t3 = w3;
+				hibit = 0;
+				len = 0;
+			}
+
+			h0 += t0 & MASK26;
+			h1 += ((t0 >>> 26) | (t1 << 6)) & MASK26;
+			h2 += ((t1 >>> 20) | (t2 << 12)) & MASK26;
+			h3 += ((t2 >>> 14) | (t3 << 18)) & MASK26;
+			h4 += (t3 >>> 8) | hibit;
+
+			long d0 = h0 * r0 + h1 * s4 + h2 * s3 + h3 * s2 + h4 * s1;
+			long d1 = h0 * r1 + h1 * r0 + h2 * s4 + h3 * s3 + h4 * s2;
+			long d2 = h0 * r2 + h1 * r1 + h2 * r0 + h3 * s4 + h4 * s3;
+			long d3 = h0 * r3 + h1 * r2 + h2 * r1 + h3 * r0 + h4 * s4;
+			long d4 = h0 * r4 + h1 * r3 + h2 * r2 + h3 * r1 + h4 * r0;
+
+			long c = d0 >>> 26;
+			h0 = d0 & MASK26;
+			d1 += c;
+			c = d1 >>> 26;
+			h1 = d1 & MASK26;
+			d2 += c;
+			c = d2 >>> 26;
+			h2 = d2 & MASK26;
+			d3 += c;
+			c = d3 >>> 26;
+			h3 = d3 & MASK26;
+			d4 += c;
+			c = d4 >>> 26;
+			h4 = d4 & MASK26;
+			h0 += c * 5;
+			c = h0 >>> 26;
+			h0 &= MASK26;
+			h1 += c;
+		}
+
+		/* Full carry and reduction modulo 2^130 - 5 */
+
+		long c = h1 >>> 26;
+		h1 &= MASK26;
+		h2 += c;
+		c = h2 >>> 26;
+		h2 &= MASK26;
+		h3 += c;
+		c = h3 >>> 26;
+		h3 &= MASK26;
+		h4 += c;
+		c = h4 >>> 26;
+		h4 &= MASK26;
+		h0 += c * 5;
+		c = h0 >>> 26;
+		h0 &= MASK26;
+		h1 += c;
+
+		long g0 = h0 + 5;
+		c = g0 >>> 26;
+		g0 &= MASK26;
+		long g1 = h1 + c;
+		c = g1 >>> 26;
+		g1 &= MASK26;
+		long g2 = h2 + c;
+		c = g2 >>> 26;
+		g2 &= MASK26;
+		long g3 = h3 + c;
+		c = g3 >>> 26;
+		g3 &= MASK26;
+		long g4 = h4 + c - (1L << 26);
+
+		/* Select h if h < 2^130 - 5, g otherwise (constant time) */
+
+		long mask = (g4 >>> 63) - 1;
+		h0 = (h0 & ~mask) | (g0 & mask);
+		h1 = (h1 & ~mask) | (g1 & mask);
+		h2 = (h2 & ~mask) | (g2 & mask);
+		h3 = (h3 & ~mask) | (g3 & mask);
+		h4 = (h4 & ~mask) | (g4 & mask);
+
+		h0 = (h0 | (h1 << 26)) & 0xffffffffL;
+		h1 = ((h1 >>> 6) | (h2 << 20)) & 0xffffffffL;
+		h2 = ((h2 >>> 12) | (h3 << 14)) & 0xffffffffL;
+		h3 = ((h3 >>> 18) | (h4 << 8)) & 0xffffffffL;
+
+		long f = h0 + le32(key, keyoff + 16);
+		putLe32(out, outoff, f);
+		f = h1 + le32(key, keyoff + 20) + (f >>> 32);
+		putLe32(out, outoff + 4, f);
+		f = h2 + le32(key, keyoff + 24) + (f >>> 32);
+		putLe32(out, outoff + 8, f);
+		f = h3 + le32(key, keyoff + 28) + (f >>> 32);
+		putLe32(out, outoff + 12, f);
+	}
+
+	private static void putLe32(byte[] b, int off, long v) {
+		b[off] = (byte) v;
+		b[off + 1] = (byte) (v >>> 8);
+		b[off + 2] = (byte) (v >>> 16);
+		b[off + 3] = (byte) (v >>> 24);
+	}
+}
@@ -117,9 +117,12 @@ public class DhExchange {
 		else
 			throw new IllegalArgumentException("Unknown DH group " + group);
 
-		x = new BigInteger(p.bitLength() - 1, rnd);
+		/* Usually precomputed in the background */
 
-		e = g.modPow(x, p);
+		BigInteger[] pair = DhKeyPairPool.take(p, g, rnd);
+
+		x = pair[0];
+		e = pair[1];
 	}
 
 	/**
@@ -84,8 +84,12 @@ public class DhGroupExchange {
 	public void init(SecureRandom rnd) {
 		k = null;
 
-		x = new BigInteger(p.bitLength() - 1, rnd);
-		e = g.modPow(x, p);
+		/* Precomputed if the server has chosen this group before */
+
+		BigInteger[] pair = DhKeyPairPool.take(p, g, rnd);
+
+		x = pair[0];
+		e = pair[1];
 	}
 
 	/**
@@ -0,0 +1,255 @@
+package com.trilead.ssh2.crypto.dh;
+
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.Vector;
+import java.util.WeakHashMap;
+
+import com.trilead.ssh2.util.ThreadService;
+
+/**
+ * DhKeyPairPool. Keeps a few precomputed client key pairs (x, e = g^x mod p)
+ * per Diffie-Hellman group, so that a key exchange does not have to wait for
+ * the modular exponentiation. The pool is refilled by a low priority
+ * background thread, which exits once all groups are full.
+ * <p>
+ * Pairs are kept per SecureRandom: every pair is handed out at most once, and
+ * only to a caller that passes the same SecureRandom the pair was generated
+ * with. Pairs of a SecureRandom that is no longer referenced are dropped by the
+ * garbage collector. If there is no pair, the caller computes one itself, as
+ * without the pool.
+ * <p>
+ * The fixed groups 1 and 14 are refilled after every use. A server may choose a
+ * different group for every group exchange (OpenSSH picks one of its moduli
+ * at random), so a group from a group exchange is only filled once it has
+ * been seen a second time. At most MAX_GEX_GROUPS of these are remembered,
+ * the least recently used one is forgotten first.
+ *
+ * @version $Id$
+ */
+public class DhKeyPairPool {
+	private static final class Group {
+		final BigInteger p;
+		final BigInteger g;
+		final boolean fixed;
+
+		/* The following fields are protected by the monitor of "groups" */
+
+		int uses = 0;
+
+		/* Unused pairs, by the SecureRandom they were generated with */
+		final WeakHashMap<SecureRandom, Vector<BigInteger[]>> pairs = new WeakHashMap<SecureRandom, Vector<BigInteger[]>>();
+
+		Group(BigInteger p, BigInteger g, boolean fixed) {
+			this.p = p;
+			this.g = g;
+			this.fixed = fixed;
+		}
+
+		boolean wanted() {
+			return fixed || (uses > 1);
+		}
+
+		Vector<BigInteger[]> pairsOf(SecureRandom random) {
+			Vector<BigInteger[]> v = pairs.get(random);
+
+			if (v == null) {
+				v = new Vector<BigInteger[]>();
+				pairs.put(random, v);
+			}
+
+			return v;
+		}
+	}
+
+	static final int MAX_GEX_GROUPS = 4;
+
+	/* Least recently used group first. Also used for locking purposes */
+	private static final Vector<Group> groups = new Vector<Group>();
+
+	private static int poolSize = 1;
+
+	private static Thread refillThread = null;
+
+	static {
+		groups.addElement(new Group(DhExchange.p1, DhExchange.g, true));
+		groups.addElement(new Group(DhExchange.p14, DhExchange.g, true));
+	}
+
+	/**
+	 * Sets the number of pairs kept per group and SecureRandom. 0 disables
+	 * the pool (pairs that are already there are dropped).
+	 *
+	 * @param pairs
+	 *            the default is 1, enough for the first key exchange of a
+	 *            connection and for the next rekey.
+	 */
+	public static void setPoolSize(int pairs) {
+		if (pairs < 0)
+			throw new IllegalArgumentException("Illegal pool size " + pairs);
+
+		synchronized (groups) {
+			poolSize = pairs;
+
+			for (int i = 0; i < groups.size(); i++) {
+				for (Vector<BigInteger[]> v : groups.elementAt(i).pairs.values()) {
+					while (v.size() > pairs)
+						v.removeElementAt(v.size() - 1);
+				}
+			}
+
+			startRefill();
+		}
+	}
+
+	/**
+	 * Starts filling the pool for group 14 in the background.
+	 *
+	 * @param random
+	 *            the SecureRandom that will be passed to
+	 *            {@link #take(BigInteger, BigInteger, SecureRandom)}.
+	 */
+	public static void prefill(SecureRandom random) {
+		synchronized (groups) {
+			lookup(DhExchange.p14, DhExchange.g).pairsOf(random);
+			startRefill();
+		}
+	}
+
+	/**
+	 * @return a pair { x, e } for the given group that has never been handed
+	 *         out before and has been generated with <code>random</code>.
+	 *         Computed by the caller's thread if the pool has none.
+	 */
+	public static BigInteger[] take(BigInteger p, BigInteger g,
+			SecureRandom random) {
+		BigInteger[] pair = null;
+
+		synchronized (groups) {
+			Group grp = lookup(p, g);
+
+			Vector<BigInteger[]> v = grp.pairsOf(random);
+
+			grp.uses++;
+
+			if (v.size() > 0)
+				pair = v.remove(0);
+
+			startRefill();
+		}
+
+		if (pair == null)
+			pair = generate(p, g, random);
+
+		return pair;
+	}
+
+	private static BigInteger[] generate(BigInteger p, BigInteger g,
+			SecureRandom random) {
+		BigInteger x = new BigInteger(p.bitLength() - 1, random);
+
+		return new BigInteger[] { x, g.modPow(x, p) };
+	}
+
+	/* The following methods are called while holding the monitor of "groups" */
+
+	private static Group lookup(BigInteger p, BigInteger g) {
+		for (int i = 0; i < groups.size(); i++) {
+			Group grp = groups.elementAt(i);
+
+			if (grp.p.equals(p) && grp.g.equals(g)) {
+				/* Move to the end, it is the most recently used one now */
+
+				groups.removeElementAt(i);
+				groups.addElement(grp);
+				return grp;
+			}
+		}
+
+		Group grp = new Group(p, g, false);
+
+		groups.addElement(grp);
+
+		int gexGroups = 0;
+
+		for (int i = groups.size() - 1; i >= 0; i--) {
+			if (groups.elementAt(i).fixed)
+				continue;
+
+			if (++gexGroups > MAX_GEX_GROUPS)
+				groups.removeElementAt(i);
+		}
+
+		return grp;
+	}
+
+	/**
+	 * @return a SecureRandom that lacks pairs for <code>grp</code>, or
+	 *         <code>null</code>.
+	 */
+	private static SecureRandom generatorToFill(Group grp) {
+		if (!grp.wanted())
+			return null;
+
+		for (Map.Entry<SecureRandom, Vector<BigInteger[]>> e : grp.pairs
+				.entrySet()) {
+			if (e.getValue().size() < poolSize)
+				return e.getKey();
+		}
+
+		return null;
+	}
+
+	private static Group nextGroupToFill() {
+		/* Most recently used groups first */
+
+		for (int i = groups.size() - 1; i >= 0; i--) {
+			Group grp = groups.elementAt(i);
+
+			if (generatorToFill(grp) != null)
+				return grp;
+		}
+
+		return null;
+	}
+
+	private static void startRefill() {
+		if ((refillThread != null) || (nextGroupToFill() == null))
+			return;
+
+		refillThread = ThreadService.newThread(new Runnable() {
+			@Override
+			public void run() {
+				while (true) {
+					Group grp;
+					SecureRandom random;
+
+					synchronized (groups) {
+						grp = nextGroupToFill();
+
+						if (grp == null) {
+							refillThread = null;
+							return;
+						}
+
+						random = generatorToFill(grp);
+					}
+
+					BigInteger[] pair = generate(grp.p, grp.g, random);
+
+					synchronized (groups) {
+						Vector<BigInteger[]> v = grp.pairs.get(random);
+
+						if (groups.contains(grp) && (v != null)
+								&& (v.size() < poolSize))
+							v.addElement(pair);
+					}
+				}
+			}
+		}, "DhKeyPairPool refill");
+
+		refillThread.setPriority(Thread.MIN_PRIORITY);
+		refillThread.start();
+	}
+}
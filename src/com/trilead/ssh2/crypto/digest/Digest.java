@@ -20,4 +20,16 @@ public interface Digest {
 	public void update(byte b[], int off, int len);
 
 	public void update(byte[] b);
+
+	/**
+	 * @return a new digest of the same type holding a copy of the current
+	 *         internal state, to be used with {@link #restoreState(Digest)}.
+	 */
+	public Digest saveState();
+
+	/**
+	 * Continues from a state obtained by {@link #saveState()} on a digest of
+	 * the same type. Does not allocate any memory.
+	 */
+	public void restoreState(Digest state);
 }
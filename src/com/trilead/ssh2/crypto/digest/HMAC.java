@@ -1,30 +1,41 @@
 package com.trilead.ssh2.crypto.digest;
 
 /**
- * HMAC.
+ * HMAC. The digest states after processing the inner and outer padded key are
+ * computed once and restored for every message, which saves two compression
+ * function runs per MAC.
  * 
  * @author Christian Plattner, plattner@trilead.com
  * @version $Id: HMAC.java,v 1.1 2007/10/15 12:49:57 cplattne Exp $
  */
 public final class HMAC implements Digest {
 	Digest md;
-	byte[] k_xor_ipad;
-	byte[] k_xor_opad;
+	Digest ipad_state;
+	Digest opad_state;
 
 	byte[] tmp;
 
 	int size;
 
 	public HMAC(Digest md, byte[] key, int size) {
+		this(md, key, size, 64);
+	}
+
+	/**
+	 * @param blockSize
+	 *            the block size of the underlying hash function in bytes (64
+	 *            for MD5, SHA-1 and SHA-256; 128 for SHA-512).
+	 */
+	public HMAC(Digest md, byte[] key, int size, int blockSize) {
 		this.md = md;
 		this.size = size;
 
 		tmp = new byte[md.getDigestLength()];
 
-		final int BLOCKSIZE = 64;
+		final int BLOCKSIZE = blockSize;
 
-		k_xor_ipad = new byte[BLOCKSIZE];
-		k_xor_opad = new byte[BLOCKSIZE];
+		byte[] k_xor_ipad = new byte[BLOCKSIZE];
+		byte[] k_xor_opad = new byte[BLOCKSIZE];
 
 		if (key.length > BLOCKSIZE) {
 			md.reset();
@@ -40,7 +51,22 @@ public final class HMAC implements Digest {
 			k_xor_ipad[i] ^= 0x36;
 			k_xor_opad[i] ^= 0x5C;
 		}
+
+		md.reset();
+		md.update(k_xor_opad);
+		opad_state = md.saveState();
+
+		md.reset();
 		md.update(k_xor_ipad);
+		ipad_state = md.saveState();
+	}
+
+	private HMAC(HMAC other) {
+		this.md = other.md.saveState();
+		this.ipad_state = other.ipad_state;
+		this.opad_state = other.opad_state;
+		this.tmp = new byte[other.tmp.length];
+		this.size = other.size;
 	}
 
 	@Override
@@ -52,14 +78,14 @@ public final class HMAC implements Digest {
 	public final void digest(byte[] out, int off) {
 		md.digest(tmp);
 
-		md.update(k_xor_opad);
+		md.restoreState(opad_state);
 		md.update(tmp);
 
 		md.digest(tmp);
 
 		System.arraycopy(tmp, 0, out, off, size);
 
-		md.update(k_xor_ipad);
+		md.restoreState(ipad_state);
 	}
 
 	@Override
@@ -69,8 +95,17 @@ public final class HMAC implements Digest {
 
 	@Override
 	public final void reset() {
-		md.reset();
-		md.update(k_xor_ipad);
+		md.restoreState(ipad_state);
+	}
+
+	@Override
+	public final Digest saveState() {
+		return new HMAC(this);
+	}
+
+	@Override
+	public final void restoreState(Digest state) {
+		md.restoreState(((HMAC) state).md);
 	}
 
 	@Override
@@ -12,6 +12,14 @@ public final class MAC {
 			getKeyLen(macs[i]);
 	}
 	public final static int getKeyLen(String type) {
+		if (type.equals("hmac-sha2-256")
+				|| type.equals("hmac-sha2-256-etm@openssh.com"))
+			return 32;
+		if (type.equals("hmac-sha2-512")
+				|| type.equals("hmac-sha2-512-etm@openssh.com"))
+			return 64;
+		if (type.equals("hmac-sha1-etm@openssh.com"))
+			return 20;
 		if (type.equals("hmac-sha1"))
 			return 20;
 		if (type.equals("hmac-sha1-96"))
@@ -26,16 +34,37 @@ public final class MAC {
 	public final static String[] getMacList() {
 		/* Higher Priority First */
 
-		return new String[] { "hmac-sha1-96", "hmac-sha1", "hmac-md5-96",
-				"hmac-md5" };
+		return new String[] { "hmac-sha2-256-etm@openssh.com",
+				"hmac-sha2-512-etm@openssh.com", "hmac-sha2-256",
+				"hmac-sha2-512", "hmac-sha1-etm@openssh.com", "hmac-sha1-96",
+				"hmac-sha1", "hmac-md5-96", "hmac-md5" };
+	}
+
+	/**
+	 * @return whether the MAC is computed over the encrypted packet (with the
+	 *         packet length sent in the clear) instead of the plaintext.
+	 */
+	public final static boolean isEncryptThenMac(String type) {
+		return type.endsWith("-etm@openssh.com");
 	}
 
 	Digest mac;
 
 	int size;
 
+	boolean etm;
+
 	public MAC(String type, byte[] key) {
-		if (type.equals("hmac-sha1")) {
+		etm = isEncryptThenMac(type);
+
+		if (type.equals("hmac-sha2-256")
+				|| type.equals("hmac-sha2-256-etm@openssh.com")) {
+			mac = new HMAC(new SHA256(), key, 32);
+		} else if (type.equals("hmac-sha2-512")
+				|| type.equals("hmac-sha2-512-etm@openssh.com")) {
+			mac = new HMAC(new SHA512(), key, 64, 128);
+		} else if (type.equals("hmac-sha1")
+				|| type.equals("hmac-sha1-etm@openssh.com")) {
 			mac = new HMAC(new SHA1(), key, 20);
 		} else if (type.equals("hmac-sha1-96")) {
 			mac = new HMAC(new SHA1(), key, 12);
@@ -61,6 +90,10 @@ public final class MAC {
 		mac.update((byte) (seq));
 	}
 
+	public final boolean isEncryptThenMac() {
+		return etm;
+	}
+
 	public final int size() {
 		return size;
 	}
@@ -104,6 +104,27 @@ public final class MD5 implements Digest {
 		return 16;
 	}
 
+	@Override
+	public final Digest saveState() {
+		MD5 copy = new MD5();
+		copy.restoreState(this);
+		return copy;
+	}
+
+	@Override
+	public final void restoreState(Digest state) {
+		MD5 s = (MD5) state;
+
+		state0 = s.state0;
+		state1 = s.state1;
+		state2 = s.state2;
+		state3 = s.state3;
+
+		count = s.count;
+
+		System.arraycopy(s.block, 0, block, 0, (int) count & 0x3f);
+	}
+
 	@Override
 	public final void reset() {
 		count = 0;
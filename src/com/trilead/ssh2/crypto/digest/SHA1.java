@@ -136,6 +136,31 @@ public final class SHA1 implements Digest {
 		return 20;
 	}
 
+	@Override
+	public final Digest saveState() {
+		SHA1 copy = new SHA1();
+		copy.restoreState(this);
+		return copy;
+	}
+
+	@Override
+	public final void restoreState(Digest state) {
+		SHA1 s = (SHA1) state;
+
+		H0 = s.H0;
+		H1 = s.H1;
+		H2 = s.H2;
+		H3 = s.H3;
+		H4 = s.H4;
+
+		/* Only the first 16 words may hold buffered input */
+
+		System.arraycopy(s.w, 0, w, 0, 16);
+
+		currentPos = s.currentPos;
+		currentLen = s.currentLen;
+	}
+
 	private final void perform() {
 		for (int t = 16; t < 80; t++) {
 			int x = w[t - 3] ^ w[t - 8] ^ w[t - 14] ^ w[t - 16];
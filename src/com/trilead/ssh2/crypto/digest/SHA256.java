@@ -0,0 +1,222 @@
+package com.trilead.ssh2.crypto.digest;
+
+/**
+ * SHA-256 implementation based on FIPS PUB 180-4.
+ * <p>
+ * (http://csrc.nist.gov/publications/fips/fips180-4/fips-180-4.pdf)
+ * 
+ * @version $Id$
+ */
+public final class SHA256 implements Digest {
+	private static final int[] K = { 0x428a2f98, 0x71374491, 0xb5c0fbcf,
+			0xe9b5dba5, 0x3956c25b, 0x59f111f1, 0x923f82a4, 0xab1c5ed5,
+			0xd807aa98, 0x12835b01, 0x243185be, 0x550c7dc3, 0x72be5d74,
+			0x80deb1fe, 0x9bdc06a7, 0xc19bf174, 0xe49b69c1, 0xefbe4786,
+			0x0fc19dc6, 0x240ca1cc, 0x2de92c6f, 0x4a7484aa, 0x5cb0a9dc,
+			0x76f988da, 0x983e5152, 0xa831c66d, 0xb00327c8, 0xbf597fc7,
+			0xc6e00bf3, 0xd5a79147, 0x06ca6351, 0x14292967, 0x27b70a85,
+			0x2e1b2138, 0x4d2c6dfc, 0x53380d13, 0x650a7354, 0x766a0abb,
+			0x81c2c92e, 0x92722c85, 0xa2bfe8a1, 0xa81a664b, 0xc24b8b70,
+			0xc76c51a3, 0xd192e819, 0xd6990624, 0xf40e3585, 0x106aa070,
+			0x19a4c116, 0x1e376c08, 0x2748774c, 0x34b0bcb5, 0x391c0cb3,
+			0x4ed8aa4a, 0x5b9cca4f, 0x682e6ff3, 0x748f82ee, 0x78a5636f,
+			0x84c87814, 0x8cc70208, 0x90befffa, 0xa4506ceb, 0xbef9a3f7,
+			0xc67178f2 };
+
+	private static final byte[] padding = new byte[64];
+
+	static {
+		padding[0] = (byte) 0x80;
+	}
+
+	private int H0, H1, H2, H3, H4, H5, H6, H7;
+
+	private long count;
+
+	private final byte[] block = new byte[64];
+
+	private final byte[] bits = new byte[8];
+
+	private final int[] w = new int[64];
+
+	public SHA256() {
+		reset();
+	}
+
+	private static final void putInt(byte[] b, int pos, int val) {
+		b[pos] = (byte) (val >> 24);
+		b[pos + 1] = (byte) (val >> 16);
+		b[pos + 2] = (byte) (val >> 8);
+		b[pos + 3] = (byte) val;
+	}
+
+	@Override
+	public final void digest(byte[] out) {
+		digest(out, 0);
+	}
+
+	@Override
+	public final void digest(byte[] out, int off) {
+		long bitLen = count << 3;
+
+		putInt(bits, 0, (int) (bitLen >>> 32));
+		putInt(bits, 4, (int) bitLen);
+
+		int idx = (int) count & 0x3f;
+		int padLen = (idx < 56) ? (56 - idx) : (120 - idx);
+
+		update(padding, 0, padLen);
+		update(bits, 0, 8);
+
+		putInt(out, off, H0);
+		putInt(out, off + 4, H1);
+		putInt(out, off + 8, H2);
+		putInt(out, off + 12, H3);
+		putInt(out, off + 16, H4);
+		putInt(out, off + 20, H5);
+		putInt(out, off + 24, H6);
+		putInt(out, off + 28, H7);
+
+		reset();
+	}
+
+	@Override
+	public final int getDigestLength() {
+		return 32;
+	}
+
+	@Override
+	public final Digest saveState() {
+		SHA256 copy = new SHA256();
+		copy.restoreState(this);
+		return copy;
+	}
+
+	@Override
+	public final void restoreState(Digest state) {
+		SHA256 s = (SHA256) state;
+
+		H0 = s.H0;
+		H1 = s.H1;
+		H2 = s.H2;
+		H3 = s.H3;
+		H4 = s.H4;
+		H5 = s.H5;
+		H6 = s.H6;
+		H7 = s.H7;
+
+		count = s.count;
+
+		System.arraycopy(s.block, 0, block, 0, (int) count & 0x3f);
+	}
+
+	@Override
+	public final void reset() {
+		count = 0;
+
+		H0 = 0x6a09e667;
+		H1 = 0xbb67ae85;
+		H2 = 0x3c6ef372;
+		H3 = 0xa54ff53a;
+		H4 = 0x510e527f;
+		H5 = 0x9b05688c;
+		H6 = 0x1f83d9ab;
+		H7 = 0x5be0cd19;
+	}
+
+	private final void transform(byte[] src, int pos) {
+		final int[] w = this.w;
+
+		for (int t = 0; t < 16; t++, pos += 4)
+			w[t] = ((src[pos] & 0xff) << 24) | ((src[pos + 1] & 0xff) << 16)
+					| ((src[pos + 2] & 0xff) << 8) | (src[pos + 3] & 0xff);
+
+		for (int t = 16; t < 64; t++) {
+			int x = w[t - 15];
+			int y = w[t - 2];
+			int s0 = ((x >>> 7) | (x << 25)) ^ ((x >>> 18) | (x << 14))
+					^ (x >>> 3);
+			int s1 = ((y >>> 17) | (y << 15)) ^ ((y >>> 19) | (y << 13))
+					^ (y >>> 10);
+			w[t] = w[t - 16] + s0 + w[t - 7] + s1;
+		}
+
+		int a = H0;
+		int b = H1;
+		int c = H2;
+		int d = H3;
+		int e = H4;
+		int f = H5;
+		int g = H6;
+		int h = H7;
+
+		for (int t = 0; t < 64; t++) {
+			int S1 = ((e >>> 6) | (e << 26)) ^ ((e >>> 11) | (e << 21))
+					^ ((e >>> 25) | (e << 7));
+			int t1 = h + S1 + ((e & f) ^ (~e & g)) + K[t] + w[t];
+			int S0 = ((a >>> 2) | (a << 30)) ^ ((a >>> 13) | (a << 19))
+					^ ((a >>> 22) | (a << 10));
+			int t2 = S0 + ((a & b) ^ (a & c) ^ (b & c));
+
+			h = g;
+			g = f;
+			f = e;
+			e = d + t1;
+			d = c;
+			c = b;
+			b = a;
+			a = t1 + t2;
+		}
+
+		H0 += a;
+		H1 += b;
+		H2 += c;
+		H3 += d;
+		H4 += e;
+		H5 += f;
+		H6 += g;
+		H7 += h;
+	}
+
+	@Override
+	public final void update(byte b) {
+		final int space = 64 - ((int) (count & 0x3f));
+
+		count++;
+
+		block[64 - space] = b;
+
+		if (space == 1)
+			transform(block, 0);
+	}
+
+	@Override
+	public final void update(byte[] b) {
+		update(b, 0, b.length);
+	}
+
+	@Override
+	public final void update(byte[] buff, int pos, int len) {
+		int space = 64 - ((int) (count & 0x3f));
+
+		count += len;
+
+		while (len > 0) {
+			if (len < space) {
+				System.arraycopy(buff, pos, block, 64 - space, len);
+				break;
+			}
+
+			if (space == 64) {
+				transform(buff, pos);
+			} else {
+				System.arraycopy(buff, pos, block, 64 - space, space);
+				transform(block, 0);
+			}
+
+			pos += space;
+			len -= space;
+			space = 64;
+		}
+	}
+}
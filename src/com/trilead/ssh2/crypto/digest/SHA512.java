@@ -0,0 +1,239 @@
+package com.trilead.ssh2.crypto.digest;
+
+/**
+ * SHA-512 implementation based on FIPS PUB 180-4.
+ * <p>
+ * (http://csrc.nist.gov/publications/fips/fips180-4/fips-180-4.pdf)
+ * 
+ * @version $Id$
+ */
+public final class SHA512 implements Digest {
+	private static final long[] K = { 0x428a2f98d728ae22L,
+			0x7137449123ef65cdL, 0xb5c0fbcfec4d3b2fL, 0xe9b5dba58189dbbcL,
+			0x3956c25bf348b538L, 0x59f111f1b605d019L, 0x923f82a4af194f9bL,
+			0xab1c5ed5da6d8118L, 0xd807aa98a3030242L, 0x12835b0145706fbeL,
+			0x243185be4ee4b28cL, 0x550c7dc3d5ffb4e2L, 0x72be5d74f27b896fL,
+			0x80deb1fe3b1696b1L, 0x9bdc06a725c71235L, 0xc19bf174cf692694L,
+			0xe49b69c19ef14ad2L, 0xefbe4786384f25e3L, 0x0fc19dc68b8cd5b5L,
+			0x240ca1cc77ac9c65L, 0x2de92c6f592b0275L, 0x4a7484aa6ea6e483L,
+			0x5cb0a9dcbd41fbd4L, 0x76f988da831153b5L, 0x983e5152ee66dfabL,
+			0xa831c66d2db43210L, 0xb00327c898fb213fL, 0xbf597fc7beef0ee4L,
+			0xc6e00bf33da88fc2L, 0xd5a79147930aa725L, 0x06ca6351e003826fL,
+			0x142929670a0e6e70L, 0x27b70a8546d22ffcL, 0x2e1b21385c26c926L,
+			0x4d2c6dfc5ac42aedL, 0x53380d139d95b3dfL, 0x650a73548baf63deL,
+			0x766a0abb3c77b2a8L, 0x81c2c92e47edaee6L, 0x92722c851482353bL,
+			0xa2bfe8a14cf10364L, 0xa81a664bbc423001L, 0xc24b8b70d0f89791L,
+			0xc76c51a30654be30L, 0xd192e819d6ef5218L, 0xd69906245565a910L,
+			0xf40e35855771202aL, 0x106aa07032bbd1b8L, 0x19a4c116b8d2d0c8L,
+			0x1e376c085141ab53L, 0x2748774cdf8eeb99L, 0x34b0bcb5e19b48a8L,
+			0x391c0cb3c5c95a63L, 0x4ed8aa4ae3418acbL, 0x5b9cca4f7763e373L,
+			0x682e6ff3d6b2b8a3L, 0x748f82ee5defb2fcL, 0x78a5636f43172f60L,
+			0x84c87814a1f0ab72L, 0x8cc702081a6439ecL, 0x90befffa23631e28L,
+			0xa4506cebde82bde9L, 0xbef9a3f7b2c67915L, 0xc67178f2e372532bL,
+			0xca273eceea26619cL, 0xd186b8c721c0c207L, 0xeada7dd6cde0eb1eL,
+			0xf57d4f7fee6ed178L, 0x06f067aa72176fbaL, 0x0a637dc5a2c898a6L,
+			0x113f9804bef90daeL, 0x1b710b35131c471bL, 0x28db77f523047d84L,
+			0x32caab7b40c72493L, 0x3c9ebe0a15c9bebcL, 0x431d67c49c100d4cL,
+			0x4cc5d4becb3e42b6L, 0x597f299cfc657e2aL, 0x5fcb6fab3ad6faecL,
+			0x6c44198c4a475817L };
+
+	private static final byte[] padding = new byte[128];
+
+	static {
+		padding[0] = (byte) 0x80;
+	}
+
+	private long H0, H1, H2, H3, H4, H5, H6, H7;
+
+	/* Message length in bytes, messages longer than 2^61 bytes are not supported */
+
+	private long count;
+
+	private final byte[] block = new byte[128];
+
+	private final byte[] bits = new byte[16];
+
+	private final long[] w = new long[80];
+
+	public SHA512() {
+		reset();
+	}
+
+	private static final void putLong(byte[] b, int pos, long val) {
+		for (int i = 7; i >= 0; i--) {
+			b[pos + i] = (byte) val;
+			val >>>= 8;
+		}
+	}
+
+	@Override
+	public final void digest(byte[] out) {
+		digest(out, 0);
+	}
+
+	@Override
+	public final void digest(byte[] out, int off) {
+		putLong(bits, 0, count >>> 61);
+		putLong(bits, 8, count << 3);
+
+		int idx = (int) count & 0x7f;
+		int padLen = (idx < 112) ? (112 - idx) : (240 - idx);
+
+		update(padding, 0, padLen);
+		update(bits, 0, 16);
+
+		putLong(out, off, H0);
+		putLong(out, off + 8, H1);
+		putLong(out, off + 16, H2);
+		putLong(out, off + 24, H3);
+		putLong(out, off + 32, H4);
+		putLong(out, off + 40, H5);
+		putLong(out, off + 48, H6);
+		putLong(out, off + 56, H7);
+
+		reset();
+	}
+
+	@Override
+	public final int getDigestLength() {
+		return 64;
+	}
+
+	@Override
+	public final Digest saveState() {
+		SHA512 copy = new SHA512();
+		copy.restoreState(this);
+		return copy;
+	}
+
+	@Override
+	public final void restoreState(Digest state) {
+		SHA512 s = (SHA512) state;
+
+		H0 = s.H0;
+		H1 = s.H1;
+		H2 = s.H2;
+		H3 = s.H3;
+		H4 = s.H4;
+		H5 = s.H5;
+		H6 = s.H6;
+		H7 = s.H7;
+
+		count = s.count;
+
+		System.arraycopy(s.block, 0, block, 0, (int) count & 0x7f);
+	}
+
+	@Override
+	public final void reset() {
+		count = 0;
+
+		H0 = 0x6a09e667f3bcc908L;
+		H1 = 0xbb67ae8584caa73bL;
+		H2 = 0x3c6ef372fe94f82bL;
+		H3 = 0xa54ff53a5f1d36f1L;
+		H4 = 0x510e527fade682d1L;
+		H5 = 0x9b05688c2b3e6c1fL;
+		H6 = 0x1f83d9abfb41bd6bL;
+		H7 = 0x5be0cd19137e2179L;
+	}
+
+	private final void transform(byte[] src, int pos) {
+		final long[] w = this.w;
+
+		for (int t = 0; t < 16; t++, pos += 8) {
+			long v = 0;
+			for (int i = 0; i < 8; i++)
+				v = (v << 8) | (src[pos + i] & 0xff);
+			w[t] = v;
+		}
+
+		for (int t = 16; t < 80; t++) {
+			long x = w[t - 15];
+			long y = w[t - 2];
+			long s0 = ((x >>> 1) | (x << 63)) ^ ((x >>> 8) | (x << 56))
+					^ (x >>> 7);
+			long s1 = ((y >>> 19) | (y << 45)) ^ ((y >>> 61) | (y << 3))
+					^ (y >>> 6);
+			w[t] = w[t - 16] + s0 + w[t - 7] + s1;
+		}
+
+		long a = H0;
+		long b = H1;
+		long c = H2;
+		long d = H3;
+		long e = H4;
+		long f = H5;
+		long g = H6;
+		long h = H7;
+
+		for (int t = 0; t < 80; t++) {
+			long S1 = ((e >>> 14) | (e << 50)) ^ ((e >>> 18) | (e << 46))
+					^ ((e >>> 41) | (e << 23));
+			long t1 = h + S1 + ((e & f) ^ (~e & g)) + K[t] + w[t];
+			long S0 = ((a >>> 28) | (a << 36)) ^ ((a >>> 34) | (a << 30))
+					^ ((a >>> 39) | (a << 25));
+			long t2 = S0 + ((a & b) ^ (a & c) ^ (b & c));
+
+			h = g;
+			g = f;
+			f = e;
+			e = d + t1;
+			d = c;
+			c = b;
+			b = a;
+			a = t1 + t2;
+		}
+
+		H0 += a;
+		H1 += b;
+		H2 += c;
+		H3 += d;
+		H4 += e;
+		H5 += f;
+		H6 += g;
+		H7 += h;
+	}
+
+	@Override
+	public final void update(byte b) {
+		final int space = 128 - ((int) (count & 0x7f));
+
+		count++;
+
+		block[128 - space] = b;
+
+		if (space == 1)
+			transform(block, 0);
+	}
+
+	@Override
+	public final void update(byte[] b) {
+		update(b, 0, b.length);
+	}
+
+	@Override
+	public final void update(byte[] buff, int pos, int len) {
+		int space = 128 - ((int) (count & 0x7f));
+
+		count += len;
+
+		while (len > 0) {
+			if (len < space) {
+				System.arraycopy(buff, pos, block, 128 - space, len);
+				break;
+			}
+
+			if (space == 128) {
+				transform(buff, pos);
+			} else {
+				System.arraycopy(buff, pos, block, 128 - space, space);
+				transform(block, 0);
+			}
+
+			pos += space;
+			len -= space;
+			space = 128;
+		}
+	}
+}
@@ -10,8 +10,10 @@ import com.trilead.ssh2.compression.CompressionFactory;
 import com.trilead.ssh2.compression.ICompressor;
 import com.trilead.ssh2.crypto.CryptoWishList;
 import com.trilead.ssh2.crypto.KeyMaterial;
+import com.trilead.ssh2.crypto.cipher.AEADCipher;
 import com.trilead.ssh2.crypto.cipher.BlockCipher;
 import com.trilead.ssh2.crypto.cipher.BlockCipherFactory;
+import com.trilead.ssh2.crypto.cipher.BlockCipherProvider;
 import com.trilead.ssh2.crypto.dh.DhExchange;
 import com.trilead.ssh2.crypto.dh.DhGroupExchange;
 import com.trilead.ssh2.crypto.digest.MAC;
@@ -32,6 +34,7 @@ import com.trilead.ssh2.signature.DSASignature;
 import com.trilead.ssh2.signature.RSAPublicKey;
 import com.trilead.ssh2.signature.RSASHA1Verify;
 import com.trilead.ssh2.signature.RSASignature;
+import com.trilead.ssh2.util.ThreadService;
 
 /**
  * KexManager.
@@ -99,6 +102,13 @@ public class KexManager {
 
 	final SecureRandom rnd;
 
+	/*
+	 * Set while a worker thread handles a KEX message, protected by the
+	 * monitor of this object
+	 */
+
+	boolean workerBusy = false;
+
 	public KexManager(TransportManager tm, ClientServerHello csh,
 			CryptoWishList initialCwl, String hostname, int port,
 			ServerHostKeyVerifier keyVerifier, SecureRandom rnd) {
@@ -127,23 +137,23 @@ public class KexManager {
 
 	private boolean establishKeyMaterial() {
 		try {
-			int mac_cs_key_len = MAC
-					.getKeyLen(kxs.np.mac_algo_client_to_server);
+			int mac_cs_key_len = (kxs.np.mac_algo_client_to_server != null) ? MAC
+					.getKeyLen(kxs.np.mac_algo_client_to_server) : 0;
 			int enc_cs_key_len = BlockCipherFactory
 					.getKeySize(kxs.np.enc_algo_client_to_server);
-			int enc_cs_block_len = BlockCipherFactory
-					.getBlockSize(kxs.np.enc_algo_client_to_server);
+			int enc_cs_iv_len = BlockCipherFactory
+					.getIVSize(kxs.np.enc_algo_client_to_server);
 
-			int mac_sc_key_len = MAC
-					.getKeyLen(kxs.np.mac_algo_server_to_client);
+			int mac_sc_key_len = (kxs.np.mac_algo_server_to_client != null) ? MAC
+					.getKeyLen(kxs.np.mac_algo_server_to_client) : 0;
 			int enc_sc_key_len = BlockCipherFactory
 					.getKeySize(kxs.np.enc_algo_server_to_client);
-			int enc_sc_block_len = BlockCipherFactory
-					.getBlockSize(kxs.np.enc_algo_server_to_client);
+			int enc_sc_iv_len = BlockCipherFactory
+					.getIVSize(kxs.np.enc_algo_server_to_client);
 
 			km = KeyMaterial.create("SHA1", kxs.H, kxs.K, sessionId,
-					enc_cs_key_len, enc_cs_block_len, mac_cs_key_len,
-					enc_sc_key_len, enc_sc_block_len, mac_sc_key_len);
+					enc_cs_key_len, enc_cs_iv_len, mac_cs_key_len,
+					enc_sc_key_len, enc_sc_iv_len, mac_sc_key_len);
 		} catch (IllegalArgumentException e) {
 			return false;
 		}
@@ -161,18 +171,30 @@ public class KexManager {
 		PacketNewKeys ign = new PacketNewKeys();
 		tm.sendKexMessage(ign.getPayload());
 
-		BlockCipher cbc;
-		MAC mac;
+		BlockCipher cbc = null;
+		AEADCipher aead = null;
+		MAC mac = null;
 		ICompressor comp;
 
 		try {
-			cbc = BlockCipherFactory
-					.createCipher(kxs.np.enc_algo_client_to_server, true,
-							km.enc_key_client_to_server,
-							km.initial_iv_client_to_server);
+			BlockCipherProvider[] used = new BlockCipherProvider[1];
+
+			if (BlockCipherFactory.isAEAD(kxs.np.enc_algo_client_to_server)) {
+				aead = BlockCipherFactory.createAEADCipher(
+						kxs.np.enc_algo_client_to_server, true,
+						km.enc_key_client_to_server,
+						km.initial_iv_client_to_server, used);
+			} else {
+				cbc = BlockCipherFactory.createCipher(
+						kxs.np.enc_algo_client_to_server, true,
+						km.enc_key_client_to_server,
+						km.initial_iv_client_to_server, used);
+
+				mac = new MAC(kxs.np.mac_algo_client_to_server,
+						km.integrity_key_client_to_server);
+			}
 
-			mac = new MAC(kxs.np.mac_algo_client_to_server,
-					km.integrity_key_client_to_server);
+			kxs.enc_provider_client_to_server = used[0].getName();
 
 			comp = CompressionFactory
 					.createCompressor(kxs.np.comp_algo_client_to_server);
@@ -181,7 +203,10 @@ public class KexManager {
 			throw new IOException("Fatal error during MAC startup!");
 		}
 
-		tm.changeSendCipher(cbc, mac);
+		if (aead != null)
+			tm.changeSendCipher(aead);
+		else
+			tm.changeSendCipher(cbc, mac);
 		tm.changeSendCompression(comp);
 		tm.kexFinished();
 	}
@@ -224,10 +249,16 @@ public class KexManager {
 		}
 	}
 
+	/**
+	 * Called by the receive thread. Messages that involve modular
+	 * exponentiations or signature checks (everything but SSH_MSG_NEWKEYS)
+	 * are handled by a worker thread, so that the receive thread is not held
+	 * up by them. The next KEX message waits for the worker; in particular,
+	 * SSH_MSG_NEWKEYS is handled in the receive thread once the key material
+	 * is ready, so that the next packet is read with the new keys.
+	 */
 	public synchronized void handleMessage(byte[] msg, int msglen)
 			throws IOException {
-		PacketKexInit kip;
-
 		if (msg == null) {
 			synchronized (accessLock) {
 				connectionClosed = true;
@@ -236,6 +267,61 @@ public class KexManager {
 			}
 		}
 
+		waitForWorker();
+
+		if (msg[0] == Packets.SSH_MSG_NEWKEYS) {
+			handleKexMessage(msg, msglen);
+			return;
+		}
+
+		/* The receive buffer is reused for the next packet */
+
+		final byte[] copy = new byte[msglen];
+		final int len = msglen;
+
+		System.arraycopy(msg, 0, copy, 0, msglen);
+
+		workerBusy = true;
+
+		ThreadService.start(new Runnable() {
+			@Override
+			public void run() {
+				synchronized (KexManager.this) {
+					try {
+						handleKexMessage(copy, len);
+					} catch (Exception e) {
+						IOException ioe = (e instanceof IOException) ? (IOException) e
+								: (IOException) new IOException("KEX error.")
+										.initCause(e);
+
+						if (log.isEnabled())
+							log.log(10, "Key exchange failed: "
+									+ ioe.getMessage());
+
+						tm.close(ioe, false);
+					} finally {
+						workerBusy = false;
+						KexManager.this.notifyAll();
+					}
+				}
+			}
+		}, "KexManager worker");
+	}
+
+	/* Called while holding the monitor of this object */
+
+	private void waitForWorker() throws IOException {
+		while (workerBusy) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+			}
+		}
+	}
+
+	private void handleKexMessage(byte[] msg, int msglen) throws IOException {
+		PacketKexInit kip;
+
 		if ((kxs == null) && (msg[0] != Packets.SSH_MSG_KEXINIT))
 			throw new IOException("Unexpected KEX message (type " + msg[0]
 					+ ")");
@@ -321,18 +407,28 @@ public class KexManager {
 				throw new IOException(
 						"Peer sent SSH_MSG_NEWKEYS, but I have no key material ready!");
 
-			BlockCipher cbc;
-			MAC mac;
+			BlockCipher cbc = null;
+			AEADCipher aead = null;
+			BlockCipherProvider[] used = new BlockCipherProvider[1];
+			MAC mac = null;
 			ICompressor comp;
 
 			try {
-				cbc = BlockCipherFactory.createCipher(
-						kxs.np.enc_algo_server_to_client, false,
-						km.enc_key_server_to_client,
-						km.initial_iv_server_to_client);
+				if (BlockCipherFactory
+						.isAEAD(kxs.np.enc_algo_server_to_client)) {
+					aead = BlockCipherFactory.createAEADCipher(
+							kxs.np.enc_algo_server_to_client, false,
+							km.enc_key_server_to_client,
+							km.initial_iv_server_to_client, used);
+				} else {
+					cbc = BlockCipherFactory.createCipher(
+							kxs.np.enc_algo_server_to_client, false,
+							km.enc_key_server_to_client,
+							km.initial_iv_server_to_client, used);
 
-				mac = new MAC(kxs.np.mac_algo_server_to_client,
-						km.integrity_key_server_to_client);
+					mac = new MAC(kxs.np.mac_algo_server_to_client,
+							km.integrity_key_server_to_client);
+				}
 
 				comp = CompressionFactory
 						.createCompressor(kxs.np.comp_algo_server_to_client);
@@ -340,7 +436,10 @@ public class KexManager {
 				throw new IOException("Fatal error during MAC startup!");
 			}
 
-			tm.changeRecvCipher(cbc, mac);
+			if (aead != null)
+				tm.changeRecvCipher(aead);
+			else
+				tm.changeRecvCipher(cbc, mac);
 			tm.changeRecvCompression(comp);
 
 			ConnectionInfo sci = new ConnectionInfo();
@@ -351,6 +450,8 @@ public class KexManager {
 			sci.keyExchangeCounter = kexCount;
 			sci.clientToServerCryptoAlgorithm = kxs.np.enc_algo_client_to_server;
 			sci.serverToClientCryptoAlgorithm = kxs.np.enc_algo_server_to_client;
+			sci.clientToServerCryptoProvider = kxs.enc_provider_client_to_server;
+			sci.serverToClientCryptoProvider = used[0].getName();
 			sci.clientToServerMACAlgorithm = kxs.np.mac_algo_client_to_server;
 			sci.serverToClientMACAlgorithm = kxs.np.mac_algo_server_to_client;
 			sci.serverHostKeyAlgorithm = kxs.np.server_host_key_algo;
@@ -487,6 +588,14 @@ public class KexManager {
 				+ kxs.np.kex_algo + ")");
 	}
 
+	/**
+	 * Starts a key exchange with the parameters of the last one, unless one
+	 * is already running.
+	 */
+	public synchronized void initiateKEX() throws IOException {
+		initiateKEX(nextKEXcryptoWishList, nextKEXdhgexParameters);
+	}
+
 	public synchronized void initiateKEX(CryptoWishList cwl,
 			DHGexParameters dhgex) throws IOException {
 		nextKEXcryptoWishList = cwl;
@@ -552,12 +661,16 @@ public class KexManager {
 			log.log(20, "enc_algo_server_to_client="
 					+ np.enc_algo_server_to_client);
 
-			np.mac_algo_client_to_server = getFirstMatch(
-					client.mac_algorithms_client_to_server,
-					server.mac_algorithms_client_to_server);
-			np.mac_algo_server_to_client = getFirstMatch(
-					client.mac_algorithms_server_to_client,
-					server.mac_algorithms_server_to_client);
+			/* AEAD ciphers provide integrity themselves, no MAC is used */
+
+			if (!BlockCipherFactory.isAEAD(np.enc_algo_client_to_server))
+				np.mac_algo_client_to_server = getFirstMatch(
+						client.mac_algorithms_client_to_server,
+						server.mac_algorithms_client_to_server);
+			if (!BlockCipherFactory.isAEAD(np.enc_algo_server_to_client))
+				np.mac_algo_server_to_client = getFirstMatch(
+						client.mac_algorithms_server_to_client,
+						server.mac_algorithms_server_to_client);
 
 			log.log(20, "mac_algo_client_to_server="
 					+ np.mac_algo_client_to_server);
@@ -27,4 +27,6 @@ public class KexState {
 	public DhExchange dhx;
 	public DhGroupExchange dhgx;
 	public DHGexParameters dhgexParameters;
+
+	public String enc_provider_client_to_server;
 }
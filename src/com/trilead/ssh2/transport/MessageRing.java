@@ -0,0 +1,127 @@
+package com.trilead.ssh2.transport;
+
+import java.io.IOException;
+
+/**
+ * A bounded single-producer/single-consumer ring of message buffers that
+ * connects the two stages of the pipelined receive path. The producer
+ * receives directly into the next free slot, the consumer dispatches from
+ * the oldest filled slot, so no message is copied in between. Slot buffers
+ * are allocated on first use and then reused.
+ * 
+ * @version $Id$
+ */
+public class MessageRing {
+	private final byte[][] slots;
+	private final int[] lengths;
+	private final int bufferSize;
+
+	private int head = 0; /* next slot to read */
+	private int tail = 0; /* next slot to write */
+	private int count = 0;
+
+	private boolean producerDone = false;
+	private boolean consumerDone = false;
+
+	public MessageRing(int size, int bufferSize) {
+		this.slots = new byte[size][];
+		this.lengths = new int[size];
+		this.bufferSize = bufferSize;
+	}
+
+	/**
+	 * Producer: waits for a free slot.
+	 * 
+	 * @return the buffer of the next free slot, it becomes visible to the
+	 *         consumer with {@link #commit(int)}.
+	 * @throws IOException
+	 *             if the consumer has stopped.
+	 */
+	public byte[] nextWriteBuffer() throws IOException {
+		synchronized (this) {
+			while ((count == slots.length) && (consumerDone == false)) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+				}
+			}
+
+			if (consumerDone)
+				throw new IOException("The message dispatcher has stopped.");
+		}
+
+		/* Only the producer touches the slot at "tail" */
+
+		if (slots[tail] == null)
+			slots[tail] = new byte[bufferSize];
+
+		return slots[tail];
+	}
+
+	/**
+	 * Producer: hands the slot returned by {@link #nextWriteBuffer()} over to
+	 * the consumer.
+	 */
+	public synchronized void commit(int length) {
+		lengths[tail] = length;
+		tail = (tail + 1) % slots.length;
+
+		if (count++ == 0)
+			notifyAll();
+	}
+
+	/**
+	 * Producer: no more messages will be committed.
+	 */
+	public synchronized void producerDone() {
+		producerDone = true;
+		notifyAll();
+	}
+
+	/**
+	 * Consumer: waits for the next message.
+	 * 
+	 * @return the buffer of the oldest message, or <code>null</code> if the
+	 *         producer is done and all messages have been consumed.
+	 */
+	public synchronized byte[] nextReadBuffer() {
+		while ((count == 0) && (producerDone == false)) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+			}
+		}
+
+		if (count == 0)
+			return null;
+
+		return slots[head];
+	}
+
+	/**
+	 * Consumer: the length of the message returned by
+	 * {@link #nextReadBuffer()}.
+	 */
+	public synchronized int readLength() {
+		return lengths[head];
+	}
+
+	/**
+	 * Consumer: returns the slot returned by {@link #nextReadBuffer()} to the
+	 * producer.
+	 */
+	public synchronized void release() {
+		head = (head + 1) % slots.length;
+
+		if (count-- == slots.length)
+			notifyAll();
+	}
+
+	/**
+	 * Consumer: no more messages will be consumed, a waiting producer fails.
+	 */
+	public synchronized void consumerDone() {
+		consumerDone = true;
+		notifyAll();
+	}
+}
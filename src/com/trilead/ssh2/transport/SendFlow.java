@@ -0,0 +1,51 @@
+package com.trilead.ssh2.transport;
+
+/**
+ * SendFlow. The outgoing messages of one channel, as seen by the send
+ * scheduler of the writer thread. Flows are served by deficit round robin:
+ * per round, each flow with queued messages may send about
+ * <code>weight * SendScheduler.QUANTUM</code> bytes.
+ * <p>
+ * The queue and the round robin state are protected by the connection
+ * semaphore of the transport manager.
+ *
+ * @version $Id$
+ */
+public final class SendFlow {
+	/** Bulk transfers that should not delay anything else. */
+	public static final int WEIGHT_BULK = 1;
+
+	/** The weight of new flows. */
+	public static final int WEIGHT_DEFAULT = 4;
+
+	/** Interactive sessions and small request/response traffic, e.g., DNS. */
+	public static final int WEIGHT_INTERACTIVE = 16;
+
+	public static final int MAX_WEIGHT = 64;
+
+	private volatile int weight = WEIGHT_DEFAULT;
+
+	/* Scheduler state, protected by connectionSemaphore */
+
+	final SendScheduler.MessageQueue queue = new SendScheduler.MessageQueue();
+	int deficit = 0;
+	boolean credited = false;
+	boolean active = false;
+	SendFlow next;
+
+	/**
+	 * @param weight
+	 *            1 - MAX_WEIGHT, see WEIGHT_BULK, WEIGHT_DEFAULT and
+	 *            WEIGHT_INTERACTIVE.
+	 */
+	public void setWeight(int weight) {
+		if ((weight < 1) || (weight > MAX_WEIGHT))
+			throw new IllegalArgumentException("Illegal weight " + weight);
+
+		this.weight = weight;
+	}
+
+	public int getWeight() {
+		return weight;
+	}
+}
@@ -0,0 +1,210 @@
+package com.trilead.ssh2.transport;
+
+/**
+ * SendScheduler. Decides the order in which the writer thread sends queued
+ * messages.
+ * <p>
+ * Messages without a flow (window adjusts, global requests, ...) go into the
+ * priority lane and are always sent first. Control messages of a channel
+ * (EOF, close, requests) use the priority lane as well, unless data of the
+ * same channel is still queued; they must not overtake that data.
+ * <p>
+ * Channel data is queued per {@link SendFlow}. The flows with queued data
+ * are served by deficit round robin, so one bulk transfer cannot starve the
+ * other channels, and each channel gets a share of the bandwidth that is
+ * proportional to its weight.
+ * <p>
+ * Not thread safe, all methods have to be called while holding the
+ * connection semaphore.
+ *
+ * @version $Id$
+ */
+final class SendScheduler {
+	/* Bytes per round and weight unit */
+
+	static final int QUANTUM = 4096;
+
+	/**
+	 * FIFO of pooled message buffers and their lengths.
+	 */
+	static final class MessageQueue {
+		private byte[][] buffers = new byte[8][];
+		private int[] lengths = new int[8];
+		private int head = 0;
+		private int count = 0;
+
+		int size() {
+			return count;
+		}
+
+		void add(byte[] buf, int len) {
+			if (count == buffers.length)
+				grow();
+
+			int tail = (head + count) % buffers.length;
+
+			buffers[tail] = buf;
+			lengths[tail] = len;
+			count++;
+		}
+
+		int peekLength() {
+			return lengths[head];
+		}
+
+		byte[] remove() {
+			byte[] buf = buffers[head];
+
+			buffers[head] = null;
+			head = (head + 1) % buffers.length;
+			count--;
+
+			if (count == 0)
+				head = 0;
+
+			return buf;
+		}
+
+		private void grow() {
+			byte[][] b = new byte[buffers.length * 2][];
+			int[] l = new int[buffers.length * 2];
+
+			for (int i = 0; i < count; i++) {
+				b[i] = buffers[(head + i) % buffers.length];
+				l[i] = lengths[(head + i) % buffers.length];
+			}
+
+			buffers = b;
+			lengths = l;
+			head = 0;
+		}
+	}
+
+	private final MessageQueue priority = new MessageQueue();
+
+	/* Flows with queued messages, in round robin order */
+
+	private SendFlow activeHead = null;
+	private SendFlow activeTail = null;
+
+	private int size = 0;
+	private int dataSize = 0;
+
+	/**
+	 * @return the number of queued messages.
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * @return the number of messages queued on flows.
+	 */
+	int dataSize() {
+		return dataSize;
+	}
+
+	void addPriority(byte[] buf, int len) {
+		priority.add(buf, len);
+		size++;
+	}
+
+	/**
+	 * Queues a control message of a flow, see the class comment.
+	 */
+	void addControl(SendFlow f, byte[] buf, int len) {
+		if ((f == null) || (f.queue.size() == 0))
+			addPriority(buf, len);
+		else
+			add(f, buf, len);
+	}
+
+	void add(SendFlow f, byte[] buf, int len) {
+		f.queue.add(buf, len);
+		size++;
+		dataSize++;
+
+		if (!f.active) {
+			f.active = true;
+			f.deficit = 0;
+			f.credited = false;
+			f.next = null;
+
+			if (activeTail == null)
+				activeHead = f;
+			else
+				activeTail.next = f;
+
+			activeTail = f;
+		}
+	}
+
+	/**
+	 * Takes the next messages, priority lane first.
+	 *
+	 * @param maxBytes
+	 *            stop taking flow messages after this many bytes, so that new
+	 *            priority messages do not wait for a huge batch. The priority
+	 *            lane is not limited.
+	 * @return the number of messages stored in <code>batch</code>.
+	 */
+	int next(byte[][] batch, int[] batchLength, long maxBytes) {
+		int n = 0;
+		long bytes = 0;
+
+		while ((n < batch.length) && (priority.size() > 0)) {
+			batchLength[n] = priority.peekLength();
+			batch[n++] = priority.remove();
+			size--;
+		}
+
+		while ((n < batch.length) && (bytes < maxBytes) && (activeHead != null)) {
+			SendFlow f = activeHead;
+
+			if (!f.credited) {
+				f.deficit += f.getWeight() * QUANTUM;
+				f.credited = true;
+			}
+
+			int len = f.queue.peekLength();
+
+			if (len > f.deficit) {
+				/* Used up its quantum, next flow */
+
+				f.credited = false;
+
+				if (f.next != null) {
+					activeHead = f.next;
+					f.next = null;
+					activeTail.next = f;
+					activeTail = f;
+				}
+
+				continue;
+			}
+
+			batchLength[n] = len;
+			batch[n++] = f.queue.remove();
+			f.deficit -= len;
+			bytes += len;
+			size--;
+			dataSize--;
+
+			if (f.queue.size() == 0) {
+				/* Idle flows do not save up credit */
+
+				f.active = false;
+				f.deficit = 0;
+				f.credited = false;
+
+				activeHead = f.next;
+				f.next = null;
+
+				if (activeHead == null)
+					activeTail = null;
+			}
+		}
+
+		return n;
+	}
+}
@@ -0,0 +1,75 @@
+package com.trilead.ssh2.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * An <code>InputStream</code> on top of a blocking <code>SocketChannel</code>.
+ * Reads from the socket into a large direct buffer, so that a single system
+ * call can fetch many packets, and byte-wise reads (e.g., during the version
+ * exchange) do not hit the socket at all.
+ * 
+ * @version $Id$
+ */
+public class SocketChannelInputStream extends InputStream {
+	private final SocketChannel channel;
+
+	/* Always kept ready for reading: [position, limit) is buffered data */
+
+	private final ByteBuffer buffer;
+
+	public SocketChannelInputStream(SocketChannel channel, int bufferSize) {
+		this.channel = channel;
+		this.buffer = ByteBuffer.allocateDirect(bufferSize);
+		this.buffer.flip();
+	}
+
+	private boolean fill() throws IOException {
+		buffer.clear();
+
+		int n = channel.read(buffer);
+
+		buffer.flip();
+
+		return (n > 0);
+	}
+
+	@Override
+	public int available() throws IOException {
+		return buffer.remaining();
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (buffer.hasRemaining() == false) {
+			if (fill() == false)
+				return -1;
+		}
+
+		return buffer.get() & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0)
+			return 0;
+
+		if (buffer.hasRemaining() == false) {
+			if (fill() == false)
+				return -1;
+		}
+
+		int n = Math.min(len, buffer.remaining());
+
+		buffer.get(b, off, n);
+
+		return n;
+	}
+}
@@ -0,0 +1,68 @@
+package com.trilead.ssh2.transport;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * An <code>OutputStream</code> on top of a blocking <code>SocketChannel</code>.
+ * Data is collected in a large direct buffer and only written to the socket
+ * when the buffer is full or on {@link #flush()}.
+ * 
+ * @version $Id$
+ */
+public class SocketChannelOutputStream extends OutputStream {
+	private final SocketChannel channel;
+
+	private final ByteBuffer buffer;
+
+	public SocketChannelOutputStream(SocketChannel channel, int bufferSize) {
+		this.channel = channel;
+		this.buffer = ByteBuffer.allocateDirect(bufferSize);
+	}
+
+	private void drain() throws IOException {
+		buffer.flip();
+
+		try {
+			while (buffer.hasRemaining())
+				channel.write(buffer);
+		} finally {
+			buffer.clear();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	@Override
+	public void flush() throws IOException {
+		if (buffer.position() > 0)
+			drain();
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			if (buffer.hasRemaining() == false)
+				drain();
+
+			int n = Math.min(len, buffer.remaining());
+
+			buffer.put(b, off, n);
+			off += n;
+			len -= n;
+		}
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if (buffer.hasRemaining() == false)
+			drain();
+
+		buffer.put((byte) b);
+	}
+}
@@ -6,6 +6,7 @@ import java.io.OutputStream;
 import java.security.SecureRandom;
 
 import com.trilead.ssh2.compression.ICompressor;
+import com.trilead.ssh2.crypto.cipher.AEADCipher;
 import com.trilead.ssh2.crypto.cipher.BlockCipher;
 import com.trilead.ssh2.crypto.cipher.CipherInputStream;
 import com.trilead.ssh2.crypto.cipher.CipherOutputStream;
@@ -29,6 +30,16 @@ public class TransportConnection {
 
 	int recv_seq_number = 0;
 
+	/* Traffic under the current keys, reset whenever the cipher changes */
+
+	long send_packets = 0;
+
+	long send_bytes = 0;
+
+	long recv_packets = 0;
+
+	long recv_bytes = 0;
+
 	CipherInputStream cis;
 
 	CipherOutputStream cos;
@@ -51,6 +62,18 @@ public class TransportConnection {
 
 	int recv_padd_blocksize = 8;
 
+	/* Replace cipher and MAC if an AEAD mode is in use */
+
+	AEADCipher send_aead;
+
+	AEADCipher recv_aead;
+
+	/* Encrypt-then-MAC: the packet length is sent in the clear */
+
+	boolean send_etm = false;
+
+	boolean recv_etm = false;
+
 	ICompressor recv_comp = null;
 
 	ICompressor send_comp = null;
@@ -63,15 +86,24 @@ public class TransportConnection {
 
 	byte[] send_comp_buffer;
 
-	/* won't change */
+	byte[] send_comp_input = new byte[0];
+
+	/*
+	 * Largest packet_length we accept. RFC 4253 only asks for 35000, we allow
+	 * more so that channels can advertise a larger maximum packet size.
+	 */
+
+	public static final int MAX_PACKET_LENGTH = 70000;
+
+	/* Reused for every outgoing packet, grows on demand */
 
-	final byte[] send_padding_buffer = new byte[256];
+	byte[] send_packet_buffer = new byte[2048];
 
-	final byte[] send_packet_header_buffer = new byte[5];
+	byte[] recv_packet_buffer = new byte[2048];
 
-	final byte[] recv_padding_buffer = new byte[256];
+	int recv_packet_length;
 
-	final byte[] recv_packet_header_buffer = new byte[5];
+	/* won't change */
 
 	boolean recv_packet_header_present = false;
 
@@ -86,7 +118,12 @@ public class TransportConnection {
 	}
 
 	public void changeRecvCipher(BlockCipher bc, MAC mac) {
+		recv_packets = 0;
+		recv_bytes = 0;
+
 		cis.changeCipher(bc);
+		recv_aead = null;
+		recv_etm = (mac != null) && mac.isEncryptThenMac();
 		recv_mac = mac;
 		recv_mac_buffer = (mac != null) ? new byte[mac.size()] : null;
 		recv_mac_buffer_cmp = (mac != null) ? new byte[mac.size()] : null;
@@ -95,6 +132,21 @@ public class TransportConnection {
 			recv_padd_blocksize = 8;
 	}
 
+	public void changeRecvCipher(AEADCipher aead) {
+		recv_packets = 0;
+		recv_bytes = 0;
+
+		cis.changeCipher(new NullCipher());
+		recv_aead = aead;
+		recv_etm = false;
+		recv_mac = null;
+		recv_mac_buffer = null;
+		recv_mac_buffer_cmp = null;
+		recv_padd_blocksize = aead.getBlockSize();
+		if (recv_padd_blocksize < 8)
+			recv_padd_blocksize = 8;
+	}
+
 	public void changeRecvCompression(ICompressor comp) {
 		recv_comp = comp;
 
@@ -105,6 +157,9 @@ public class TransportConnection {
 	}
 
 	public void changeSendCipher(BlockCipher bc, MAC mac) {
+		send_packets = 0;
+		send_bytes = 0;
+
 		if ((bc instanceof NullCipher) == false) {
 			/* Only use zero byte padding for the first few packets */
 			useRandomPadding = true;
@@ -112,6 +167,8 @@ public class TransportConnection {
 		}
 
 		cos.changeCipher(bc);
+		send_aead = null;
+		send_etm = (mac != null) && mac.isEncryptThenMac();
 		send_mac = mac;
 		send_mac_buffer = (mac != null) ? new byte[mac.size()] : null;
 		send_padd_blocksize = bc.getBlockSize();
@@ -119,6 +176,22 @@ public class TransportConnection {
 			send_padd_blocksize = 8;
 	}
 
+	public void changeSendCipher(AEADCipher aead) {
+		send_packets = 0;
+		send_bytes = 0;
+
+		useRandomPadding = true;
+
+		cos.changeCipher(new NullCipher());
+		send_aead = aead;
+		send_etm = false;
+		send_mac = null;
+		send_mac_buffer = new byte[aead.getTagSize()];
+		send_padd_blocksize = aead.getBlockSize();
+		if (send_padd_blocksize < 8)
+			send_padd_blocksize = 8;
+	}
+
 	public void changeSendCompression(ICompressor comp) {
 		send_comp = comp;
 
@@ -128,6 +201,36 @@ public class TransportConnection {
 		}
 	}
 
+	/**
+	 * @return number of packets sent with the current keys.
+	 */
+	public long getSentPackets() {
+		return send_packets;
+	}
+
+	/**
+	 * @return number of bytes (packet length, without MAC) sent with the
+	 *         current keys.
+	 */
+	public long getSentBytes() {
+		return send_bytes;
+	}
+
+	/**
+	 * @return number of packets received with the current keys.
+	 */
+	public long getReceivedPackets() {
+		return recv_packets;
+	}
+
+	/**
+	 * @return number of bytes (packet length, without MAC) received with the
+	 *         current keys.
+	 */
+	public long getReceivedBytes() {
+		return recv_bytes;
+	}
+
 	public int getPacketOverheadEstimate() {
 		// return an estimate for the paket overhead (for send operations)
 		return 5 + 4 + (send_padd_blocksize - 1) + send_mac_buffer.length;
@@ -135,21 +238,43 @@ public class TransportConnection {
 
 	public int peekNextMessageLength() throws IOException {
 		if (recv_packet_header_present == false) {
-			cis.read(recv_packet_header_buffer, 0, 5);
+			readPacketHeader();
 			recv_packet_header_present = true;
 		}
 
-		int packet_length = ((recv_packet_header_buffer[0] & 0xff) << 24)
-				| ((recv_packet_header_buffer[1] & 0xff) << 16)
-				| ((recv_packet_header_buffer[2] & 0xff) << 8)
-				| ((recv_packet_header_buffer[3] & 0xff));
+		return recv_packet_length - (recv_packet_buffer[4] & 0xff) - 1;
+	}
+
+	/**
+	 * Reads and decrypts the first cipher block of the next packet into
+	 * <code>recv_packet_buffer</code> and checks the packet length. With an
+	 * AEAD cipher the padding length is encrypted along with the rest of the
+	 * packet, hence the whole packet is read and opened here. The same holds
+	 * for encrypt-then-MAC, where the MAC is checked before decrypting.
+	 */
+	private void readPacketHeader() throws IOException {
+		if (recv_aead != null || recv_etm) {
+			readClearLengthPacket();
+			return;
+		}
+
+		cis.readBlocks(recv_packet_buffer, 0, recv_padd_blocksize);
+
+		int packet_length = ((recv_packet_buffer[0] & 0xff) << 24)
+				| ((recv_packet_buffer[1] & 0xff) << 16)
+				| ((recv_packet_buffer[2] & 0xff) << 8)
+				| ((recv_packet_buffer[3] & 0xff));
 
-		int padding_length = recv_packet_header_buffer[4] & 0xff;
+		int padding_length = recv_packet_buffer[4] & 0xff;
 
-		if (packet_length > 35000 || packet_length < 12)
+		if (packet_length > MAX_PACKET_LENGTH || packet_length < 12)
 			throw new IOException("Illegal packet size! (" + packet_length
 					+ ")");
 
+		if (((packet_length + 4) % recv_padd_blocksize) != 0)
+			throw new IOException("Illegal packet size! (" + packet_length
+					+ " is not aligned to the block size)");
+
 		int payload_length = packet_length - padding_length - 1;
 
 		if (payload_length < 0)
@@ -157,48 +282,107 @@ public class TransportConnection {
 					"Illegal padding_length in packet from remote ("
 							+ padding_length + ")");
 
-		return payload_length;
+		recv_packet_length = packet_length;
 	}
 
-	public int receiveMessage(byte buffer[], int off, int len)
-			throws IOException {
-		if (recv_packet_header_present == false) {
-			cis.read(recv_packet_header_buffer, 0, 5);
-		} else
-			recv_packet_header_present = false;
+	private void readClearLengthPacket() throws IOException {
+		cis.readPlain(recv_packet_buffer, 0, 4);
 
-		int packet_length = ((recv_packet_header_buffer[0] & 0xff) << 24)
-				| ((recv_packet_header_buffer[1] & 0xff) << 16)
-				| ((recv_packet_header_buffer[2] & 0xff) << 8)
-				| ((recv_packet_header_buffer[3] & 0xff));
+		int packet_length;
 
-		int padding_length = recv_packet_header_buffer[4] & 0xff;
+		if (recv_aead != null)
+			packet_length = recv_aead.getPacketLength(recv_seq_number,
+					recv_packet_buffer, 0);
+		else
+			packet_length = ((recv_packet_buffer[0] & 0xff) << 24)
+					| ((recv_packet_buffer[1] & 0xff) << 16)
+					| ((recv_packet_buffer[2] & 0xff) << 8)
+					| ((recv_packet_buffer[3] & 0xff));
 
-		if (packet_length > 35000 || packet_length < 12)
+		if (packet_length > MAX_PACKET_LENGTH || packet_length < 12)
 			throw new IOException("Illegal packet size! (" + packet_length
 					+ ")");
 
-		int payload_length = packet_length - padding_length - 1;
+		if ((packet_length % recv_padd_blocksize) != 0)
+			throw new IOException("Illegal packet size! (" + packet_length
+					+ " is not aligned to the block size)");
 
-		if (payload_length < 0)
+		int tag_len = (recv_aead != null) ? recv_aead.getTagSize()
+				: recv_mac_buffer.length;
+
+		if (recv_packet_buffer.length < packet_length + 4 + tag_len) {
+			byte[] tmp = new byte[packet_length + 4 + tag_len];
+			System.arraycopy(recv_packet_buffer, 0, tmp, 0, 4);
+			recv_packet_buffer = tmp;
+		}
+
+		cis.readPlain(recv_packet_buffer, 4, packet_length + tag_len);
+
+		if (recv_aead != null) {
+			if (recv_aead.open(recv_seq_number, recv_packet_buffer, 0,
+					packet_length + 4) == false)
+				throw new IOException("Remote sent corrupt MAC.");
+		} else {
+			/* Reject forged packets before spending any decryption work */
+
+			recv_mac.initMac(recv_seq_number);
+			recv_mac.update(recv_packet_buffer, 0, packet_length + 4);
+			recv_mac.getMac(recv_mac_buffer_cmp, 0);
+
+			int mac_off = packet_length + 4;
+
+			for (int i = 0; i < tag_len; i++) {
+				if (recv_packet_buffer[mac_off + i] != recv_mac_buffer_cmp[i])
+					throw new IOException("Remote sent corrupt MAC.");
+			}
+
+			cis.decryptBlocks(recv_packet_buffer, 4, packet_length);
+		}
+
+		int padding_length = recv_packet_buffer[4] & 0xff;
+
+		if (packet_length - padding_length - 1 < 0)
 			throw new IOException(
 					"Illegal padding_length in packet from remote ("
 							+ padding_length + ")");
 
+		recv_packet_length = packet_length;
+	}
+
+	public int receiveMessage(byte buffer[], int off, int len)
+			throws IOException {
+		if (recv_packet_header_present == false) {
+			readPacketHeader();
+		} else
+			recv_packet_header_present = false;
+
+		int packet_length = recv_packet_length;
+		int padding_length = recv_packet_buffer[4] & 0xff;
+		int payload_length = packet_length - padding_length - 1;
+
 		if (payload_length >= len)
 			throw new IOException("Receive buffer too small (" + len
 					+ ", need " + payload_length + ")");
 
-		cis.read(buffer, off, payload_length);
-		cis.read(recv_padding_buffer, 0, padding_length);
+		if (recv_aead == null && !recv_etm) {
+			if (recv_packet_buffer.length < packet_length + 4) {
+				byte[] tmp = new byte[packet_length + 4];
+				System.arraycopy(recv_packet_buffer, 0, tmp, 0,
+						recv_padd_blocksize);
+				recv_packet_buffer = tmp;
+			}
+
+			/* Decrypt the remainder of the packet with one bulk call */
+
+			cis.readBlocks(recv_packet_buffer, recv_padd_blocksize,
+					packet_length + 4 - recv_padd_blocksize);
+		}
 
-		if (recv_mac != null) {
+		if (recv_mac != null && !recv_etm) {
 			cis.readPlain(recv_mac_buffer, 0, recv_mac_buffer.length);
 
 			recv_mac.initMac(recv_seq_number);
-			recv_mac.update(recv_packet_header_buffer, 0, 5);
-			recv_mac.update(buffer, off, payload_length);
-			recv_mac.update(recv_padding_buffer, 0, padding_length);
+			recv_mac.update(recv_packet_buffer, 0, packet_length + 4);
 			recv_mac.getMac(recv_mac_buffer_cmp, 0);
 
 			for (int i = 0; i < recv_mac_buffer.length; i++) {
@@ -207,7 +391,11 @@ public class TransportConnection {
 			}
 		}
 
+		System.arraycopy(recv_packet_buffer, 5, buffer, off, payload_length);
+
 		recv_seq_number++;
+		recv_packets++;
+		recv_bytes += packet_length + 4;
 
 		if (log.isEnabled()) {
 			log.log(90,
@@ -240,30 +428,111 @@ public class TransportConnection {
 
 	public void sendMessage(byte[] message, int off, int len, int padd)
 			throws IOException {
+		sendMessage(message, off, len, padd, true);
+	}
+
+	/**
+	 * @param flush
+	 *            if false, the packet may stay in the output buffer until the
+	 *            next call to {@link #flush()}.
+	 */
+	public void sendMessage(byte[] message, int off, int len, int padd,
+			boolean flush) throws IOException {
+		sendMessage(null, 0, message, off, len, padd, flush);
+	}
+
+	/**
+	 * Sends a message that is split into a header (e.g., the fixed fields of
+	 * a SSH_MSG_CHANNEL_DATA message) and a payload. Both parts are copied
+	 * straight into the packet buffer, so callers do not have to assemble the
+	 * message themselves.
+	 * 
+	 * @param header
+	 *            may be null if <code>headerLen</code> is 0.
+	 * @param flush
+	 *            if false, the packet may stay in the output buffer until the
+	 *            next call to {@link #flush()}.
+	 */
+	public void sendMessage(byte[] header, int headerLen, byte[] message,
+			int off, int len, int padd, boolean flush) throws IOException {
 		if (padd < 4)
 			padd = 4;
 		else if (padd > 64)
 			padd = 64;
 
 		if (send_comp != null && can_send_compress) {
+			if (headerLen > 0) {
+				/* The compressor needs the message in one piece */
+
+				if (send_comp_input.length < headerLen + len)
+					send_comp_input = new byte[headerLen + len];
+
+				System.arraycopy(header, 0, send_comp_input, 0, headerLen);
+				System.arraycopy(message, off, send_comp_input, headerLen, len);
+
+				message = send_comp_input;
+				off = 0;
+				len = headerLen + len;
+				headerLen = 0;
+			}
+
 			if (send_comp_buffer.length < message.length + 1024)
 				send_comp_buffer = new byte[message.length + 1024];
 			len = send_comp.compress(message, off, len, send_comp_buffer);
 			message = send_comp_buffer;
+			off = 0;
 		}
 
-		int packet_len = 5 + len + padd; /* Minimum allowed padding is 4 */
+		final int type = (headerLen > 0) ? (header[0] & 0xff)
+				: (message[off] & 0xff);
+
+		final int payload_len = headerLen + len;
+
+		/* Minimum allowed padding is 4 */
+
+		int packet_len = 5 + payload_len + padd;
+
+		/* AEAD and ETM modes do not encrypt (or pad) the length field */
+
+		int aad_len = (send_aead != null || send_etm) ? 4 : 0;
 
-		int slack = packet_len % send_padd_blocksize;
+		int slack = (packet_len - aad_len) % send_padd_blocksize;
 
 		if (slack != 0) {
 			packet_len += (send_padd_blocksize - slack);
 		}
 
-		if (packet_len < 16)
-			packet_len = 16;
+		while (packet_len < 16)
+			packet_len += send_padd_blocksize;
 
-		int padd_len = packet_len - (5 + len);
+		int padd_len = packet_len - (5 + payload_len);
+
+		int mac_len = (send_mac != null || send_aead != null) ? send_mac_buffer.length
+				: 0;
+
+		/*
+		 * The complete packet (header, payload, padding and MAC) is assembled
+		 * in one reusable buffer. The padding loop below may write up to 3
+		 * bytes beyond the padding, hence the additional slack.
+		 */
+
+		if (send_packet_buffer.length < packet_len + mac_len + 3)
+			send_packet_buffer = new byte[packet_len + mac_len + 3];
+
+		final byte[] packet = send_packet_buffer;
+
+		packet[0] = (byte) ((packet_len - 4) >> 24);
+		packet[1] = (byte) ((packet_len - 4) >> 16);
+		packet[2] = (byte) ((packet_len - 4) >> 8);
+		packet[3] = (byte) ((packet_len - 4));
+		packet[4] = (byte) padd_len;
+
+		if (headerLen > 0)
+			System.arraycopy(header, 0, packet, 5, headerLen);
+
+		System.arraycopy(message, off, packet, 5 + headerLen, len);
+
+		final int padd_off = 5 + payload_len;
 
 		if (useRandomPadding) {
 			for (int i = 0; i < padd_len; i = i + 4) {
@@ -271,56 +540,58 @@ public class TransportConnection {
 				 * don't waste calls to rnd.nextInt() (by using only 8bit of the
 				 * output). just believe me: even though we may write here up to
 				 * 3 bytes which won't be used, there is no "buffer overflow"
-				 * (i.e., arrayindexoutofbounds). the padding buffer is big
-				 * enough =) (256 bytes, and that is bigger than any current
-				 * cipher block size + 64).
+				 * (i.e., arrayindexoutofbounds). the packet buffer has enough
+				 * slack, and the surplus bytes are overwritten by the MAC.
 				 */
 
 				int r = rnd.nextInt();
-				send_padding_buffer[i] = (byte) r;
-				send_padding_buffer[i + 1] = (byte) (r >> 8);
-				send_padding_buffer[i + 2] = (byte) (r >> 16);
-				send_padding_buffer[i + 3] = (byte) (r >> 24);
+				packet[padd_off + i] = (byte) r;
+				packet[padd_off + i + 1] = (byte) (r >> 8);
+				packet[padd_off + i + 2] = (byte) (r >> 16);
+				packet[padd_off + i + 3] = (byte) (r >> 24);
 			}
 		} else {
 			/* use zero padding for unencrypted traffic */
 			for (int i = 0; i < padd_len; i++)
-				send_padding_buffer[i] = 0;
-			/*
-			 * Actually this code is paranoid: we never filled any bytes into
-			 * the padding buffer so far, therefore it should consist of zeros
-			 * only.
-			 */
+				packet[padd_off + i] = 0;
 		}
 
-		send_packet_header_buffer[0] = (byte) ((packet_len - 4) >> 24);
-		send_packet_header_buffer[1] = (byte) ((packet_len - 4) >> 16);
-		send_packet_header_buffer[2] = (byte) ((packet_len - 4) >> 8);
-		send_packet_header_buffer[3] = (byte) ((packet_len - 4));
-		send_packet_header_buffer[4] = (byte) padd_len;
+		if (send_aead != null) {
+			send_aead.seal(send_seq_number, packet, 0, packet_len);
+			cos.writePacket(packet, 0, 0, packet_len + mac_len);
+		} else if (send_etm) {
+			cos.encryptBlocks(packet, 4, packet_len - 4);
 
-		cos.write(send_packet_header_buffer, 0, 5);
-		cos.write(message, off, len);
-		cos.write(send_padding_buffer, 0, padd_len);
-
-		if (send_mac != null) {
 			send_mac.initMac(send_seq_number);
-			send_mac.update(send_packet_header_buffer, 0, 5);
-			send_mac.update(message, off, len);
-			send_mac.update(send_padding_buffer, 0, padd_len);
+			send_mac.update(packet, 0, packet_len);
+			send_mac.getMac(packet, packet_len);
+
+			cos.writePacket(packet, 0, 0, packet_len + mac_len);
+		} else {
+			if (send_mac != null) {
+				send_mac.initMac(send_seq_number);
+				send_mac.update(packet, 0, packet_len);
+				send_mac.getMac(packet, packet_len);
+			}
 
-			send_mac.getMac(send_mac_buffer, 0);
-			cos.writePlain(send_mac_buffer, 0, send_mac_buffer.length);
+			cos.writePacket(packet, 0, packet_len, packet_len + mac_len);
 		}
 
-		cos.flush();
+		if (flush)
+			cos.flush();
 
 		if (log.isEnabled()) {
-			log.log(90, "Sent " + Packets.getMessageName(message[off] & 0xff)
-					+ " " + len + " bytes payload");
+			log.log(90, "Sent " + Packets.getMessageName(type) + " "
+					+ payload_len + " bytes payload");
 		}
 
 		send_seq_number++;
+		send_packets++;
+		send_bytes += packet_len;
+	}
+
+	public void flush() throws IOException {
+		cos.flush();
 	}
 
 	/**
@@ -1,5 +1,6 @@
 package com.trilead.ssh2.transport;
 
+import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -7,6 +8,7 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.channels.SocketChannel;
 import java.security.SecureRandom;
 import java.util.Vector;
 
@@ -20,12 +22,17 @@ import com.trilead.ssh2.ServerHostKeyVerifier;
 import com.trilead.ssh2.compression.ICompressor;
 import com.trilead.ssh2.crypto.Base64;
 import com.trilead.ssh2.crypto.CryptoWishList;
+import com.trilead.ssh2.crypto.cipher.AEADCipher;
 import com.trilead.ssh2.crypto.cipher.BlockCipher;
 import com.trilead.ssh2.crypto.digest.MAC;
 import com.trilead.ssh2.log.Logger;
 import com.trilead.ssh2.packets.PacketDisconnect;
 import com.trilead.ssh2.packets.Packets;
 import com.trilead.ssh2.packets.TypesReader;
+import com.trilead.ssh2.util.BufferPool;
+import com.trilead.ssh2.util.ThreadService;
+import com.trilead.ssh2.util.TimeoutService;
+import com.trilead.ssh2.util.TimeoutService.TimeoutToken;
 import com.trilead.ssh2.util.Tokenizer;
 
 /*
@@ -51,7 +58,7 @@ import com.trilead.ssh2.util.Tokenizer;
  * @version $Id: TransportManager.java,v 1.2 2008/04/01 12:38:09 cplattne Exp $
  */
 public class TransportManager {
-	class AsynchronousWorker extends Thread {
+	class AsynchronousWorker implements Runnable {
 		@Override
 		public void run() {
 			while (true) {
@@ -103,6 +110,97 @@ public class TransportManager {
 		}
 	}
 
+	/**
+	 * Used in writer thread mode: takes the next batch of queued messages from
+	 * the send scheduler and sends them back to back, followed by a single
+	 * flush. Other threads never touch the socket for normal messages.
+	 * <p>
+	 * Without a writer thread, a short lived instance drains the messages
+	 * that were queued during a key exchange and exits once the queue is
+	 * empty.
+	 */
+	class TransportWriter implements Runnable {
+		final boolean drainOnly;
+
+		TransportWriter(boolean drainOnly) {
+			this.drainOnly = drainOnly;
+		}
+
+		@Override
+		public void run() {
+			byte[][] batch = new byte[WRITE_QUEUE_SIZE][];
+			int[] batchLength = new int[WRITE_QUEUE_SIZE];
+
+			while (true) {
+				int count;
+
+				synchronized (connectionSemaphore) {
+					/* Nothing but KEX messages may be sent during a key exchange */
+
+					while (((scheduler.size() == 0) || flagKexOngoing)
+							&& (connectionClosed == false)) {
+						if (drainOnly) {
+							drainThread = null;
+							connectionSemaphore.notifyAll();
+							return;
+						}
+
+						try {
+							connectionSemaphore.wait();
+						} catch (InterruptedException e) {
+						}
+					}
+
+					if (connectionClosed) {
+						if (drainOnly)
+							drainThread = null;
+						return;
+					}
+
+					count = scheduler.next(batch, batchLength,
+							WRITE_BATCH_BYTES);
+
+					writesInFlight = count;
+
+					/* Wake up senders waiting for free space */
+					connectionSemaphore.notifyAll();
+				}
+
+				long bytes = 0;
+				long packets;
+				long sent;
+
+				try {
+					synchronized (sendLock) {
+						for (int i = 0; i < count; i++) {
+							bytes += batchLength[i];
+							tc.sendMessage(batch[i], 0, batchLength[i], 0,
+									false);
+							bufferPool.release(batch[i]);
+							batch[i] = null;
+						}
+						tc.flush();
+
+						packets = tc.getSentPackets();
+						sent = tc.getSentBytes();
+					}
+				} catch (IOException e) {
+					close(e, false);
+					return;
+				}
+
+				synchronized (connectionSemaphore) {
+					pendingWrites -= count;
+					pendingBytes -= bytes;
+					writesInFlight = 0;
+					connectionSemaphore.notifyAll();
+				}
+
+				checkRekeyThresholds(packets, sent);
+			}
+		}
+	}
+
 	class HandlerEntry {
 		MessageHandler mh;
 		int low;
@@ -110,17 +208,111 @@ public class TransportManager {
 	}
 
 	private static final Logger log = Logger.getLogger(TransportManager.class);
+
+	/*
+	 * Writer thread mode: max. number of queued messages (per lane and per
+	 * flow), max. bytes of channel data per batch, output buffer size
+	 */
+
+	static final int WRITE_QUEUE_SIZE = 256;
+	static final int FLOW_QUEUE_SIZE = 32;
+	static final int WRITE_BATCH_BYTES = 65536;
+	static final int WRITE_BUFFER_SIZE = 16384;
+
+	/* Max. bytes of messages queued while a key exchange is running */
+
+	static final int KEX_QUEUE_BYTES = 1024 * 1024;
+
+	/* Size of the direct buffers used in SocketChannel mode */
+
+	static final int SOCKET_CHANNEL_BUFFER_SIZE = 65536;
+
+	/* Max. size of a received message (after decompression) */
+
+	static final int RECEIVE_BUFFER_SIZE = TransportConnection.MAX_PACKET_LENGTH;
+
+	/* Receive pipeline: number of messages between the two stages */
+
+	static final int RECEIVE_RING_SIZE = 16;
+
 	private final Vector<byte[]> asynchronousQueue = new Vector<byte[]>();
 
 	private Thread asynchronousThread = null;
 
 	String hostname;
 	int port;
-	final Socket sock = new Socket();
+	Socket sock = new Socket();
+
+	/* Shared by the proxy handshake, ClientServerHello and TransportConnection */
+
+	InputStream sockIn;
+	OutputStream sockOut;
 
 	Object connectionSemaphore = new Object();
 
+	/*
+	 * Protects "tc" on the send side. Taken inside connectionSemaphore, except
+	 * by the writer thread, which never holds both at the same time.
+	 */
+
+	final Object sendLock = new Object();
+
+	boolean useWriterThread = false;
+
+	Thread writerThread;
+
+	/*
+	 * Messages waiting for the writer thread, protected by
+	 * connectionSemaphore. The buffers come from bufferPool and may be
+	 * larger than the message.
+	 */
+
+	final SendScheduler scheduler = new SendScheduler();
+
+	final BufferPool bufferPool = BufferPool.getShared();
+
+	/* Queued messages plus messages currently being written by the writer */
+
+	int pendingWrites = 0;
+	long pendingBytes = 0;
+
+	/* Messages taken from the queue, but not completely written yet */
+
+	int writesInFlight = 0;
+
+	/*
+	 * Without a writer thread: sends the messages that were queued during a
+	 * key exchange
+	 */
+
+	Thread drainThread;
+
 	boolean flagKexOngoing = false;
+
+	/*
+	 * Automatic key exchange: thresholds (0 disables), the time of the last
+	 * key exchange and whether one has been requested
+	 */
+
+	volatile long rekeyBytes = 0;
+	volatile long rekeyPackets = 0;
+	volatile long rekeyInterval = 0;
+
+	long lastKexTime = 0;
+	boolean rekeyRequested = false;
+	TimeoutToken rekeyTimer;
+
+	/*
+	 * Statistics: how long the sending of normal messages was held back by
+	 * a key exchange (the initial one is not counted)
+	 */
+
+	long kexStartTime;
+	int kexFinishedCount = 0;
+	int rekeyCount = 0;
+	long lastRekeyStall = 0;
+	long totalRekeyStall = 0;
+	long maxRekeyStall = 0;
 	boolean connectionClosed = false;
 
 	Throwable reasonClosedCause = null;
@@ -130,8 +322,21 @@ public class TransportManager {
 
 	Vector<HandlerEntry> messageHandlers = new Vector<HandlerEntry>();
 
+	/*
+	 * Message type -> handler, derived from messageHandlers (first match
+	 * wins). Replaced as a whole whenever a handler is (un)registered.
+	 */
+
+	volatile MessageHandler[] handlerTable = new MessageHandler[256];
+
 	Thread receiveThread;
 
+	boolean useReceivePipeline = false;
+
+	MessageRing receiveRing;
+
+	Thread dispatchThread;
+
 	Vector connectionMonitors = new Vector();
 	boolean monitorsWereInformed = false;
 
@@ -151,10 +356,18 @@ public class TransportManager {
 		tc.changeRecvCompression(comp);
 	}
 
+	public void changeRecvCipher(AEADCipher aead) {
+		tc.changeRecvCipher(aead);
+	}
+
 	public void changeSendCipher(BlockCipher bc, MAC mac) {
 		tc.changeSendCipher(bc, mac);
 	}
 
+	public void changeSendCipher(AEADCipher aead) {
+		tc.changeSendCipher(aead);
+	}
+
 	/**
 	 * @param comp
 	 */
@@ -189,8 +402,11 @@ public class TransportManager {
 						byte[] msg = new PacketDisconnect(
 								Packets.SSH_DISCONNECT_BY_APPLICATION,
 								cause.getMessage(), "").getPayload();
-						if (tc != null)
-							tc.sendMessage(msg);
+						if (tc != null) {
+							synchronized (sendLock) {
+								tc.sendMessage(msg);
+							}
+						}
 					} catch (IOException ignore) {
 					}
 
@@ -202,6 +418,9 @@ public class TransportManager {
 
 				connectionClosed = true;
 				reasonClosedCause = cause; /* may be null */
+
+				if (rekeyTimer != null)
+					TimeoutService.cancelTimeoutHandler(rekeyTimer);
 			}
 			connectionSemaphore.notifyAll();
 		}
@@ -255,6 +474,20 @@ public class TransportManager {
 		return InetAddress.getByName(host);
 	}
 
+	private void createStreams() throws IOException {
+		SocketChannel channel = sock.getChannel();
+
+		if (channel != null) {
+			sockIn = new SocketChannelInputStream(channel,
+					SOCKET_CHANNEL_BUFFER_SIZE);
+			sockOut = new SocketChannelOutputStream(channel,
+					SOCKET_CHANNEL_BUFFER_SIZE);
+		} else {
+			sockIn = sock.getInputStream();
+			sockOut = sock.getOutputStream();
+		}
+	}
+
 	private void establishConnection(ProxyData proxyData, int connectTimeout)
 			throws IOException {
 		/* See the comment for createInetAddress() */
@@ -263,6 +496,7 @@ public class TransportManager {
 			InetAddress addr = createInetAddress(hostname);
 			sock.connect(new InetSocketAddress(addr, port), connectTimeout);
 			sock.setSoTimeout(0);
+			createStreams();
 			return;
 		}
 
@@ -275,6 +509,7 @@ public class TransportManager {
 			sock.connect(new InetSocketAddress(addr, pd.proxyPort),
 					connectTimeout);
 			sock.setSoTimeout(0);
+			createStreams();
 
 			/* OK, now tell the proxy where we actually want to connect to */
 
@@ -306,7 +541,7 @@ public class TransportManager {
 
 			sb.append("\r\n");
 
-			OutputStream out = sock.getOutputStream();
+			OutputStream out = sockOut;
 
 			out.write(sb.toString().getBytes("ISO-8859-1"));
 			out.flush();
@@ -314,7 +549,7 @@ public class TransportManager {
 			/* Now parse the HTTP response */
 
 			byte[] buffer = new byte[1024];
-			InputStream in = sock.getInputStream();
+			InputStream in = sockIn;
 
 			int len = ClientServerHello.readLineRN(in, buffer);
 
@@ -398,20 +633,61 @@ public class TransportManager {
 		 * - that is why we wrap it into an object for later use.
 		 */
 
-		ClientServerHello csh = new ClientServerHello(sock.getInputStream(),
-				sock.getOutputStream());
+		ClientServerHello csh = new ClientServerHello(sockIn, sockOut);
+
+		if (useWriterThread && (sock.getChannel() == null)) {
+			/* The writer flushes once per batch, let the buffer coalesce */
 
-		tc = new TransportConnection(sock.getInputStream(),
-				sock.getOutputStream(), rnd);
+			tc = new TransportConnection(sockIn, new BufferedOutputStream(
+					sockOut, WRITE_BUFFER_SIZE), rnd);
+		} else {
+			tc = new TransportConnection(sockIn, sockOut, rnd);
+		}
 
 		km = new KexManager(this, csh, cwl, hostname, port, verifier, rnd);
 		km.initiateKEX(cwl, dhgex);
 
-		receiveThread = new Thread(new Runnable() {
+		if (useReceivePipeline) {
+			receiveRing = new MessageRing(RECEIVE_RING_SIZE,
+					RECEIVE_BUFFER_SIZE);
+
+			dispatchThread = ThreadService.newThread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						dispatchLoop();
+					} catch (IOException e) {
+						close(e, false);
+
+						if (log.isEnabled())
+							log.log(10,
+									"Dispatch thread: error in dispatchLoop: "
+											+ e.getMessage());
+					}
+
+					receiveRing.consumerDone();
+
+					/* Tell all handlers that it is time to say goodbye */
+
+					for (int i = 0; i < messageHandlers.size(); i++) {
+						HandlerEntry he = messageHandlers.elementAt(i);
+						try {
+							he.mh.handleMessage(null, 0);
+						} catch (Exception ignore) {
+						}
+					}
+				}
+			}, "TransportManager dispatcher");
+		}
+
+		receiveThread = ThreadService.newThread(new Runnable() {
 			@Override
 			public void run() {
 				try {
-					receiveLoop();
+					if (receiveRing != null)
+						receiveLoopPipelined();
+					else
+						receiveLoop();
 				} catch (IOException e) {
 					close(e, false);
 
@@ -432,6 +708,13 @@ public class TransportManager {
 					}
 				}
 
+				if (receiveRing != null) {
+					/* The dispatcher says goodbye once it has drained the ring */
+
+					receiveRing.producerDone();
+					return;
+				}
+
 				for (int i = 0; i < messageHandlers.size(); i++) {
 					HandlerEntry he = messageHandlers.elementAt(i);
 					try {
@@ -440,17 +723,183 @@ public class TransportManager {
 					}
 				}
 			}
-		});
+		}, "TransportManager receiver");
 
-		receiveThread.setDaemon(true);
 		receiveThread.start();
+
+		if (dispatchThread != null)
+			dispatchThread.start();
+
+		if (useWriterThread) {
+			writerThread = ThreadService.start(new TransportWriter(false),
+					"TransportManager writer");
+		}
 	}
 
 	public void kexFinished() throws IOException {
 		synchronized (connectionSemaphore) {
 			flagKexOngoing = false;
+			rekeyRequested = false;
+
+			long stall = (System.nanoTime() - kexStartTime) / 1000000;
+
+			if (kexFinishedCount++ > 0) {
+				rekeyCount++;
+				lastRekeyStall = stall;
+				totalRekeyStall += stall;
+
+				if (stall > maxRekeyStall)
+					maxRekeyStall = stall;
+			}
+
+			lastKexTime = System.currentTimeMillis();
+
+			/* The new keys are in place, send what was queued meanwhile */
+
+			if ((writerThread == null) && (pendingWrites > 0))
+				startDrain();
+
 			connectionSemaphore.notifyAll();
 		}
+
+		armRekeyTimer();
+	}
+
+	/* Called while holding connectionSemaphore */
+
+	private void startDrain() {
+		if (drainThread == null)
+			drainThread = ThreadService.start(new TransportWriter(true),
+					"TransportManager drain");
+	}
+
+	/**
+	 * Starts a key exchange automatically, once the given amount of traffic
+	 * has been sent or received with the current keys, or once the given
+	 * time has passed since the last key exchange.
+	 * 
+	 * @param bytes
+	 *            max. bytes per direction, 0 for no limit.
+	 * @param packets
+	 *            max. packets per direction, 0 for no limit.
+	 * @param intervalMillis
+	 *            max. time between two key exchanges, 0 for no limit.
+	 */
+	public void setRekeyThresholds(long bytes, long packets,
+			long intervalMillis) {
+		rekeyBytes = bytes;
+		rekeyPackets = packets;
+		rekeyInterval = intervalMillis;
+
+		armRekeyTimer();
+	}
+
+	private void armRekeyTimer() {
+		long interval = rekeyInterval;
+
+		synchronized (connectionSemaphore) {
+			if (lastKexTime == 0)
+				return;
+
+			if ((interval == 0) || connectionClosed) {
+				if (rekeyTimer != null)
+					TimeoutService.cancelTimeoutHandler(rekeyTimer);
+				return;
+			}
+
+			if (rekeyTimer != null) {
+				TimeoutService.reschedule(rekeyTimer, lastKexTime + interval);
+				return;
+			}
+
+			rekeyTimer = TimeoutService.addTimeoutHandler(lastKexTime
+					+ interval, new Runnable() {
+				@Override
+				public void run() {
+					requestRekey();
+				}
+			});
+		}
+	}
+
+	void checkRekeyThresholds(long packets, long bytes) {
+		long maxPackets = rekeyPackets;
+		long maxBytes = rekeyBytes;
+
+		if (((maxPackets > 0) && (packets >= maxPackets))
+				|| ((maxBytes > 0) && (bytes >= maxBytes)))
+			requestRekey();
+	}
+
+	/**
+	 * Starts a key exchange with the latest parameters, unless one is
+	 * already running. Does not block, the KEXINIT message is sent by a
+	 * separate thread.
+	 */
+	void requestRekey() {
+		synchronized (connectionSemaphore) {
+			if (rekeyRequested || flagKexOngoing || connectionClosed
+					|| (km == null))
+				return;
+
+			rekeyRequested = true;
+		}
+
+		if (log.isEnabled())
+			log.log(20, "Starting automatic key exchange");
+
+		ThreadService.start(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					km.initiateKEX();
+				} catch (IOException e) {
+					if (log.isEnabled())
+						log.log(20, "Automatic key exchange failed: "
+								+ e.getMessage());
+				}
+			}
+		}, "TransportManager rekey");
+	}
+
+	/**
+	 * @return number of key exchanges after the initial one.
+	 */
+	public int getRekeyCount() {
+		synchronized (connectionSemaphore) {
+			return rekeyCount;
+		}
+	}
+
+	/**
+	 * @return how long, in milliseconds, normal messages were held back by
+	 *         the last key exchange (0 if there was none after the initial
+	 *         one).
+	 */
+	public long getLastRekeyStallMillis() {
+		synchronized (connectionSemaphore) {
+			return lastRekeyStall;
+		}
+	}
+
+	/**
+	 * @return the longest time, in milliseconds, normal messages were held
+	 *         back by a key exchange.
+	 */
+	public long getMaxRekeyStallMillis() {
+		synchronized (connectionSemaphore) {
+			return maxRekeyStall;
+		}
+	}
+
+	/**
+	 * @return the sum of the times, in milliseconds, normal messages were
+	 *         held back by key exchanges.
+	 */
+	public long getTotalRekeyStallMillis() {
+		synchronized (connectionSemaphore) {
+			return totalRekeyStall;
+		}
 	}
 
 	private InetAddress parseIPv4Address(String host)
@@ -490,113 +939,168 @@ public class TransportManager {
 		return InetAddress.getByAddress(host, addr);
 	}
 
-	public void receiveLoop() throws IOException {
-		byte[] msg = new byte[35000];
+	/**
+	 * Handles the messages that belong to the transport layer itself (and the
+	 * ones that change how subsequent packets are decoded). Always runs on
+	 * the receive thread, before the next packet is read.
+	 * 
+	 * @return true if the message has been consumed.
+	 */
+	private boolean handleTransportMessage(byte[] msg, int msglen)
+			throws IOException {
+		int type = msg[0] & 0xff;
 
-		while (true) {
-			int msglen = tc.receiveMessage(msg, 0, msg.length);
+		if (type == Packets.SSH_MSG_IGNORE)
+			return true;
 
-			int type = msg[0] & 0xff;
+		if (type == Packets.SSH_MSG_DEBUG) {
+			if (log.isEnabled()) {
+				TypesReader tr = new TypesReader(msg, 0, msglen);
+				tr.readByte();
+				tr.readBoolean();
+				StringBuffer debugMessageBuffer = new StringBuffer();
+				debugMessageBuffer.append(tr.readString("UTF-8"));
 
-			if (type == Packets.SSH_MSG_IGNORE)
-				continue;
+				for (int i = 0; i < debugMessageBuffer.length(); i++) {
+					char c = debugMessageBuffer.charAt(i);
 
-			if (type == Packets.SSH_MSG_DEBUG) {
-				if (log.isEnabled()) {
-					TypesReader tr = new TypesReader(msg, 0, msglen);
-					tr.readByte();
-					tr.readBoolean();
-					StringBuffer debugMessageBuffer = new StringBuffer();
-					debugMessageBuffer.append(tr.readString("UTF-8"));
+					if ((c >= 32) && (c <= 126))
+						continue;
+					debugMessageBuffer.setCharAt(i, '\uFFFD');
+				}
 
-					for (int i = 0; i < debugMessageBuffer.length(); i++) {
-						char c = debugMessageBuffer.charAt(i);
+				log.log(50, "DEBUG Message from remote: '"
+						+ debugMessageBuffer.toString() + "'");
+			}
+			return true;
+		}
 
-						if ((c >= 32) && (c <= 126))
-							continue;
-						debugMessageBuffer.setCharAt(i, '\uFFFD');
-					}
+		if (type == Packets.SSH_MSG_UNIMPLEMENTED) {
+			throw new IOException(
+					"Peer sent UNIMPLEMENTED message, that should not happen.");
+		}
 
-					log.log(50, "DEBUG Message from remote: '"
-							+ debugMessageBuffer.toString() + "'");
-				}
-				continue;
+		if (type == Packets.SSH_MSG_DISCONNECT) {
+			TypesReader tr = new TypesReader(msg, 0, msglen);
+			tr.readByte();
+			int reason_code = tr.readUINT32();
+			StringBuffer reasonBuffer = new StringBuffer();
+			reasonBuffer.append(tr.readString("UTF-8"));
+
+			/*
+			 * Do not get fooled by servers that send abnormal long error
+			 * messages
+			 */
+
+			if (reasonBuffer.length() > 255) {
+				reasonBuffer.setLength(255);
+				reasonBuffer.setCharAt(254, '.');
+				reasonBuffer.setCharAt(253, '.');
+				reasonBuffer.setCharAt(252, '.');
 			}
 
-			if (type == Packets.SSH_MSG_UNIMPLEMENTED) {
-				throw new IOException(
-						"Peer sent UNIMPLEMENTED message, that should not happen.");
+			/*
+			 * Also, check that the server did not send charcaters that may
+			 * screw up the receiver -> restrict to reasonable US-ASCII
+			 * subset -> "printable characters" (ASCII 32 - 126). Replace
+			 * all others with 0xFFFD (UNICODE replacement character).
+			 */
+
+			for (int i = 0; i < reasonBuffer.length(); i++) {
+				char c = reasonBuffer.charAt(i);
+
+				if ((c >= 32) && (c <= 126))
+					continue;
+				reasonBuffer.setCharAt(i, '\uFFFD');
 			}
 
-			if (type == Packets.SSH_MSG_DISCONNECT) {
-				TypesReader tr = new TypesReader(msg, 0, msglen);
-				tr.readByte();
-				int reason_code = tr.readUINT32();
-				StringBuffer reasonBuffer = new StringBuffer();
-				reasonBuffer.append(tr.readString("UTF-8"));
+			throw new IOException(
+					"Peer sent DISCONNECT message (reason code "
+							+ reason_code + "): " + reasonBuffer.toString());
+		}
 
-				/*
-				 * Do not get fooled by servers that send abnormal long error
-				 * messages
-				 */
+		/*
+		 * Is it a KEX Packet?
+		 */
 
-				if (reasonBuffer.length() > 255) {
-					reasonBuffer.setLength(255);
-					reasonBuffer.setCharAt(254, '.');
-					reasonBuffer.setCharAt(253, '.');
-					reasonBuffer.setCharAt(252, '.');
-				}
+		if ((type == Packets.SSH_MSG_KEXINIT)
+				|| (type == Packets.SSH_MSG_NEWKEYS)
+				|| ((type >= 30) && (type <= 49))) {
+			km.handleMessage(msg, msglen);
+			return true;
+		}
 
-				/*
-				 * Also, check that the server did not send charcaters that may
-				 * screw up the receiver -> restrict to reasonable US-ASCII
-				 * subset -> "printable characters" (ASCII 32 - 126). Replace
-				 * all others with 0xFFFD (UNICODE replacement character).
-				 */
+		if (type == Packets.SSH_MSG_USERAUTH_SUCCESS) {
+			tc.startCompression();
+		}
 
-				for (int i = 0; i < reasonBuffer.length(); i++) {
-					char c = reasonBuffer.charAt(i);
+		return false;
+	}
 
-					if ((c >= 32) && (c <= 126))
-						continue;
-					reasonBuffer.setCharAt(i, '\uFFFD');
-				}
+	private void dispatchMessage(byte[] msg, int msglen) throws IOException {
+		int type = msg[0] & 0xff;
 
-				throw new IOException(
-						"Peer sent DISCONNECT message (reason code "
-								+ reason_code + "): " + reasonBuffer.toString());
-			}
+		MessageHandler mh = handlerTable[type];
 
-			/*
-			 * Is it a KEX Packet?
-			 */
+		if (mh == null)
+			throw new IOException("Unexpected SSH message (type " + type
+					+ ")");
+
+		mh.handleMessage(msg, msglen);
+	}
 
-			if ((type == Packets.SSH_MSG_KEXINIT)
-					|| (type == Packets.SSH_MSG_NEWKEYS)
-					|| ((type >= 30) && (type <= 49))) {
-				km.handleMessage(msg, msglen);
+	public void receiveLoop() throws IOException {
+		byte[] msg = new byte[RECEIVE_BUFFER_SIZE];
+
+		while (true) {
+			int msglen = tc.receiveMessage(msg, 0, msg.length);
+
+			if (handleTransportMessage(msg, msglen))
 				continue;
-			}
 
-			if (type == Packets.SSH_MSG_USERAUTH_SUCCESS) {
-				tc.startCompression();
-			}
+			checkRekeyThresholds(tc.getReceivedPackets(),
+					tc.getReceivedBytes());
 
-			MessageHandler mh = null;
+			dispatchMessage(msg, msglen);
+		}
+	}
 
-			for (int i = 0; i < messageHandlers.size(); i++) {
-				HandlerEntry he = messageHandlers.elementAt(i);
-				if ((he.low <= type) && (type <= he.high)) {
-					mh = he.mh;
-					break;
-				}
-			}
+	/**
+	 * First stage of the receive pipeline: decrypts and authenticates packets
+	 * directly into the ring buffers, while the dispatch thread delivers the
+	 * previous messages.
+	 */
+	void receiveLoopPipelined() throws IOException {
+		while (true) {
+			byte[] msg = receiveRing.nextWriteBuffer();
+
+			int msglen = tc.receiveMessage(msg, 0, msg.length);
 
-			if (mh == null)
-				throw new IOException("Unexpected SSH message (type " + type
-						+ ")");
+			if (handleTransportMessage(msg, msglen))
+				continue;
+
+			checkRekeyThresholds(tc.getReceivedPackets(),
+					tc.getReceivedBytes());
+
+			receiveRing.commit(msglen);
+		}
+	}
 
-			mh.handleMessage(msg, msglen);
+	/**
+	 * Second stage of the receive pipeline.
+	 */
+	void dispatchLoop() throws IOException {
+		while (true) {
+			byte[] msg = receiveRing.nextReadBuffer();
+
+			if (msg == null)
+				return;
+
+			try {
+				dispatchMessage(msg, receiveRing.readLength());
+			} finally {
+				receiveRing.release();
+			}
 		}
 	}
 
@@ -608,7 +1112,26 @@ public class TransportManager {
 
 		synchronized (messageHandlers) {
 			messageHandlers.addElement(he);
+			rebuildHandlerTable();
+		}
+	}
+
+	/* Must be called with the messageHandlers lock held */
+
+	private void rebuildHandlerTable() {
+		MessageHandler[] table = new MessageHandler[256];
+
+		for (int i = 0; i < messageHandlers.size(); i++) {
+			HandlerEntry he = messageHandlers.elementAt(i);
+
+			for (int type = Math.max(he.low, 0); type <= Math.min(he.high,
+					255); type++) {
+				if (table[type] == null)
+					table[type] = he.mh;
+			}
 		}
+
+		handlerTable = table;
 	}
 
 	public void removeMessageHandler(MessageHandler mh, int low, int high) {
@@ -617,6 +1140,7 @@ public class TransportManager {
 				HandlerEntry he = messageHandlers.elementAt(i);
 				if ((he.mh == mh) && (he.low == low) && (he.high == high)) {
 					messageHandlers.removeElementAt(i);
+					rebuildHandlerTable();
 					break;
 				}
 			}
@@ -643,15 +1167,18 @@ public class TransportManager {
 			/* Check if we have an asynchronous sending thread */
 
 			if (asynchronousThread == null) {
-				asynchronousThread = new AsynchronousWorker();
-				asynchronousThread.setDaemon(true);
-				asynchronousThread.start();
+				asynchronousThread = ThreadService.start(
+						new AsynchronousWorker(), "TransportManager async");
 
 				/*
 				 * The thread will stop after 2 seconds of inactivity (i.e.,
 				 * empty queue)
 				 */
 			}
+
+			/* Wake up an idle worker, it would otherwise wait for 2 seconds */
+
+			asynchronousQueue.notifyAll();
 		}
 	}
 
@@ -663,10 +1190,33 @@ public class TransportManager {
 						.initCause(reasonClosedCause);
 			}
 
-			flagKexOngoing = true;
+			if (flagKexOngoing == false) {
+				flagKexOngoing = true;
+				kexStartTime = System.nanoTime();
+			}
+
+			/*
+			 * Messages that are being written go first. Queued messages stay
+			 * queued until the new keys are in place.
+			 */
+
+			while ((writesInFlight > 0) && (connectionClosed == false)) {
+				try {
+					connectionSemaphore.wait();
+				} catch (InterruptedException e) {
+				}
+			}
+
+			if (connectionClosed) {
+				throw (IOException) new IOException(
+						"Sorry, this connection is closed.")
+						.initCause(reasonClosedCause);
+			}
 
 			try {
-				tc.sendMessage(msg);
+				synchronized (sendLock) {
+					tc.sendMessage(msg);
+				}
 			} catch (IOException e) {
 				close(e, false);
 				throw e;
@@ -675,7 +1225,51 @@ public class TransportManager {
 	}
 
 	public void sendMessage(byte[] msg) throws IOException {
-		if (Thread.currentThread() == receiveThread)
+		sendMessage(null, 0, msg, 0, msg.length);
+	}
+
+	/**
+	 * Sends a message that consists of a header and a payload, e.g., the
+	 * fixed fields of a SSH_MSG_CHANNEL_DATA message and the caller's data.
+	 * Both parts are copied straight into the transport's packet buffer (or,
+	 * in writer thread mode, into one pooled buffer), so callers do not have
+	 * to allocate a buffer for every message.
+	 * 
+	 * @param header
+	 *            may be null if <code>headerLen</code> is 0.
+	 */
+	public void sendMessage(byte[] header, int headerLen, byte[] payload,
+			int off, int len) throws IOException {
+		sendMessage(null, false, header, headerLen, payload, off, len);
+	}
+
+	/**
+	 * Sends channel data. In writer thread mode, the data is queued on the
+	 * flow of the channel and interleaved with the data of other channels
+	 * according to their weights.
+	 * 
+	 * @see #sendMessage(byte[], int, byte[], int, int)
+	 */
+	public void sendMessage(SendFlow flow, byte[] header, int headerLen,
+			byte[] payload, int off, int len) throws IOException {
+		sendMessage(flow, false, header, headerLen, payload, off, len);
+	}
+
+	/**
+	 * Sends a control message of a channel (EOF, close, request). In writer
+	 * thread mode, it is sent before any queued channel data, unless data of
+	 * the same flow is still queued.
+	 */
+	public void sendControlMessage(SendFlow flow, byte[] msg)
+			throws IOException {
+		sendMessage(flow, true, null, 0, msg, 0, msg.length);
+	}
+
+	private void sendMessage(SendFlow flow, boolean control, byte[] header,
+			int headerLen, byte[] payload, int off, int len)
+			throws IOException {
+		if ((Thread.currentThread() == receiveThread)
+				|| (Thread.currentThread() == dispatchThread))
 			throw new IOException(
 					"Assertion error: sendMessage may never be invoked by the receiver thread!");
 
@@ -687,7 +1281,17 @@ public class TransportManager {
 							.initCause(reasonClosedCause);
 				}
 
-				if (flagKexOngoing == false)
+				/*
+				 * During a key exchange (and until the messages queued
+				 * meanwhile are sent) messages are queued instead of
+				 * blocking the caller, as long as there is room.
+				 */
+
+				if ((writerThread == null) && (flagKexOngoing == false)
+						&& (pendingWrites == 0))
+					break;
+
+				if (hasQueueSpace(flow, control))
 					break;
 
 				try {
@@ -696,12 +1300,77 @@ public class TransportManager {
 				}
 			}
 
+			if ((writerThread != null) || flagKexOngoing || (pendingWrites > 0)) {
+				/*
+				 * Callers may reuse their buffer (e.g., window adjust
+				 * messages), hence the copy. Errors are reported to the
+				 * caller of the next send, once the writer has closed the
+				 * connection.
+				 */
+
+				byte[] copy = bufferPool.acquire(headerLen + len);
+
+				if (headerLen > 0)
+					System.arraycopy(header, 0, copy, 0, headerLen);
+
+				System.arraycopy(payload, off, copy, headerLen, len);
+
+				if ((flow == null) || control)
+					scheduler.addControl(flow, copy, headerLen + len);
+				else
+					scheduler.add(flow, copy, headerLen + len);
+
+				pendingWrites++;
+				pendingBytes += headerLen + len;
+
+				if (writerThread == null) {
+					if (flagKexOngoing == false)
+						startDrain();
+				} else if (scheduler.size() == 1)
+					connectionSemaphore.notifyAll();
+				return;
+			}
+
+			long packets;
+			long sent;
+
 			try {
-				tc.sendMessage(msg);
+				synchronized (sendLock) {
+					tc.sendMessage(header, headerLen, payload, off, len, 0,
+							true);
+
+					packets = tc.getSentPackets();
+					sent = tc.getSentBytes();
+				}
 			} catch (IOException e) {
 				close(e, false);
 				throw e;
 			}
+
+			checkRekeyThresholds(packets, sent);
+		}
+	}
+
+	/* Called while holding connectionSemaphore */
+
+	private boolean hasQueueSpace(SendFlow flow, boolean control) {
+		if (flagKexOngoing && (pendingBytes >= KEX_QUEUE_BYTES))
+			return false;
+
+		if ((flow == null) || control)
+			return (scheduler.size() - scheduler.dataSize()) < WRITE_QUEUE_SIZE;
+
+		return (scheduler.dataSize() < WRITE_QUEUE_SIZE)
+				&& (flow.queue.size() < FLOW_QUEUE_SIZE);
+	}
+
+	/**
+	 * @return number of payload bytes waiting for the writer thread, or
+	 *         queued during a key exchange.
+	 */
+	public long getQueuedBytes() {
+		synchronized (connectionSemaphore) {
+			return pendingBytes;
 		}
 	}
 
@@ -711,6 +1380,38 @@ public class TransportManager {
 		}
 	}
 
+	/**
+	 * Enables the writer thread mode. Must be called before
+	 * {@link #initialize}.
+	 */
+	public void setWriterThreadEnabled(boolean enabled) {
+		useWriterThread = enabled;
+	}
+
+	/**
+	 * Uses a <code>java.nio.channels.SocketChannel</code> with large direct
+	 * buffers for the connection instead of a plain socket. Must be called
+	 * before {@link #initialize}.
+	 * <p>
+	 * Note: interrupting a thread that is blocked in a socket operation
+	 * closes the channel (and therefore the connection) in this mode.
+	 */
+	public void setSocketChannelEnabled(boolean enabled) throws IOException {
+		if (enabled == (sock.getChannel() != null))
+			return;
+
+		sock = enabled ? SocketChannel.open().socket() : new Socket();
+	}
+
+	/**
+	 * Enables the two stage receive pipeline: one thread decrypts and
+	 * authenticates incoming packets, a second one dispatches them to the
+	 * message handlers. Must be called before {@link #initialize}.
+	 */
+	public void setReceivePipelineEnabled(boolean enabled) {
+		useReceivePipeline = enabled;
+	}
+
 	public void setSoTimeout(int timeout) throws IOException {
 		sock.setSoTimeout(timeout);
 	}
@@ -0,0 +1,201 @@
+package com.trilead.ssh2.util;
+
+/**
+ * BufferPool. Recycles byte arrays in power-of-two size classes (256 bytes
+ * up to 128 KB), so that short lived buffers (e.g., messages waiting for the
+ * transport writer thread) do not have to be allocated and collected over and
+ * over again. Requests for larger buffers are served with plain allocations.
+ * <p>
+ * Each size class keeps a limited number of free buffers and has its own
+ * lock. The pool counts hits, misses and discarded buffers, see
+ * {@link #toString()}.
+ *
+ * @version $Id$
+ */
+public class BufferPool {
+	private static final int MIN_SHIFT = 8;
+	private static final int MAX_SHIFT = 17;
+
+	public static final int MAX_POOLED_SIZE = 1 << MAX_SHIFT;
+
+	private static final BufferPool shared = new BufferPool(32);
+
+	private static class SizeClass {
+		final int size;
+		final byte[][] free;
+		int count = 0;
+
+		long hits = 0;
+		long misses = 0;
+		long discarded = 0;
+
+		SizeClass(int size, int capacity) {
+			this.size = size;
+			this.free = new byte[capacity][];
+		}
+	}
+
+	private final SizeClass[] classes = new SizeClass[MAX_SHIFT - MIN_SHIFT + 1];
+
+	private long oversize = 0;
+
+	/**
+	 * @param buffersPerClass
+	 *            max. number of free buffers kept per size class.
+	 */
+	public BufferPool(int buffersPerClass) {
+		for (int i = 0; i < classes.length; i++)
+			classes[i] = new SizeClass(1 << (MIN_SHIFT + i), buffersPerClass);
+	}
+
+	/**
+	 * @return the pool shared by all connections.
+	 */
+	public static BufferPool getShared() {
+		return shared;
+	}
+
+	private static int classIndex(int size) {
+		int shift = MIN_SHIFT;
+
+		while ((1 << shift) < size)
+			shift++;
+
+		return shift - MIN_SHIFT;
+	}
+
+	/**
+	 * Returns a buffer of at least <code>minSize</code> bytes. The content is
+	 * undefined.
+	 */
+	public byte[] acquire(int minSize) {
+		if (minSize > MAX_POOLED_SIZE) {
+			synchronized (this) {
+				oversize++;
+			}
+			return new byte[minSize];
+		}
+
+		SizeClass sc = classes[classIndex(minSize)];
+
+		synchronized (sc) {
+			if (sc.count > 0) {
+				sc.hits++;
+				byte[] b = sc.free[--sc.count];
+				sc.free[sc.count] = null;
+				return b;
+			}
+
+			sc.misses++;
+		}
+
+		return new byte[sc.size];
+	}
+
+	/**
+	 * Hands a buffer back to the pool. The pool does not know which buffers
+	 * it has handed out: any array whose length is exactly one of the size
+	 * classes is kept (if there is room) and will be returned by a later
+	 * {@link #acquire(int)}, other arrays and <code>null</code> are ignored.
+	 * Therefore only release buffers that were obtained from
+	 * {@link #acquire(int)}, and only once. The caller must not touch the
+	 * buffer afterwards.
+	 */
+	public void release(byte[] buffer) {
+		if ((buffer == null) || (buffer.length > MAX_POOLED_SIZE))
+			return;
+
+		SizeClass sc = classes[classIndex(buffer.length)];
+
+		if (sc.size != buffer.length)
+			return;
+
+		synchronized (sc) {
+			if (sc.count == sc.free.length) {
+				sc.discarded++;
+				return;
+			}
+
+			sc.free[sc.count++] = buffer;
+		}
+	}
+
+	/**
+	 * @return number of requests served with a recycled buffer.
+	 */
+	public long getHits() {
+		long hits = 0;
+
+		for (int i = 0; i < classes.length; i++) {
+			synchronized (classes[i]) {
+				hits += classes[i].hits;
+			}
+		}
+
+		return hits;
+	}
+
+	/**
+	 * @return number of requests that needed a new allocation (including
+	 *         buffers larger than {@link #MAX_POOLED_SIZE}).
+	 */
+	public long getMisses() {
+		long misses;
+
+		synchronized (this) {
+			misses = oversize;
+		}
+
+		for (int i = 0; i < classes.length; i++) {
+			synchronized (classes[i]) {
+				misses += classes[i].misses;
+			}
+		}
+
+		return misses;
+	}
+
+	/**
+	 * @return number of released buffers that were dropped since their size
+	 *         class was full.
+	 */
+	public long getDiscarded() {
+		long discarded = 0;
+
+		for (int i = 0; i < classes.length; i++) {
+			synchronized (classes[i]) {
+				discarded += classes[i].discarded;
+			}
+		}
+
+		return discarded;
+	}
+
+	/**
+	 * @return the statistics per size class, e.g., for debug logging.
+	 */
+	@Override
+	public String toString() {
+		StringBuffer sb = new StringBuffer("BufferPool[");
+
+		for (int i = 0; i < classes.length; i++) {
+			SizeClass sc = classes[i];
+
+			synchronized (sc) {
+				if ((sc.hits == 0) && (sc.misses == 0))
+					continue;
+
+				sb.append(sc.size).append(": hits=").append(sc.hits)
+						.append(" misses=").append(sc.misses)
+						.append(" discarded=").append(sc.discarded)
+						.append(" free=").append(sc.count).append("; ");
+			}
+		}
+
+		synchronized (this) {
+			sb.append("oversize=").append(oversize).append("]");
+		}
+
+		return sb.toString();
+	}
+}
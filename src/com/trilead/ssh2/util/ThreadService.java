@@ -0,0 +1,108 @@
+package com.trilead.ssh2.util;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * ThreadService. Creates the threads of the library (transport receive and
+ * writer threads, port forwarding threads, stream gobblers). By default these
+ * are platform daemon threads. A different <code>ThreadFactory</code> can be
+ * plugged in, e.g., one for virtual threads (JDK 21+), so that thousands of
+ * forwarded connections do not need thousands of platform threads.
+ * <p>
+ * Threads created through this service are always daemon threads. The
+ * factory has to return unstarted threads.
+ * <p>
+ * The worker classes of the port forwardings (e.g., LocalAcceptThread,
+ * StreamForwarder) still extend <code>Thread</code> for compatibility. The
+ * library does not start these objects, it passes them as the
+ * <code>Runnable</code> of a thread created here.
+ * <p>
+ * Only threads created after the factory has been changed are affected.
+ * Long lived housekeeping threads (the timeout thread and the selector
+ * threads of the forwarding engine) are not created here.
+ *
+ * @version $Id$
+ */
+public class ThreadService {
+	private static volatile ThreadFactory factory = null;
+
+	/**
+	 * Sets the factory for all threads created by the library from now on.
+	 *
+	 * @param threadFactory
+	 *            <code>null</code> to go back to platform threads.
+	 */
+	public static void setThreadFactory(ThreadFactory threadFactory) {
+		factory = threadFactory;
+	}
+
+	/**
+	 * @return the factory in use, <code>null</code> for platform threads.
+	 */
+	public static ThreadFactory getThreadFactory() {
+		return factory;
+	}
+
+	/**
+	 * @return a factory for virtual threads, or <code>null</code> if the
+	 *         runtime does not support them (e.g., Android or JDK < 21).
+	 */
+	public static ThreadFactory getVirtualThreadFactory() {
+		try {
+			/* Thread.ofVirtual().factory(), without a compile time dependency */
+
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Method m = Class.forName("java.lang.Thread$Builder").getMethod(
+					"factory");
+
+			return (ThreadFactory) m.invoke(builder);
+		} catch (Exception e) {
+			return null;
+		} catch (LinkageError e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Switches to virtual threads if the runtime supports them.
+	 *
+	 * @return whether virtual threads are used from now on.
+	 */
+	public static boolean useVirtualThreads() {
+		ThreadFactory vtf = getVirtualThreadFactory();
+
+		if (vtf == null)
+			return false;
+
+		setThreadFactory(vtf);
+		return true;
+	}
+
+	/**
+	 * Creates an unstarted daemon thread.
+	 */
+	public static Thread newThread(Runnable r, String name) {
+		ThreadFactory f = factory;
+
+		Thread t = (f != null) ? f.newThread(r) : new Thread(r);
+
+		t.setName(name);
+
+		/* Virtual threads are always daemon threads */
+
+		if (!t.isDaemon())
+			t.setDaemon(true);
+
+		return t;
+	}
+
+	/**
+	 * Creates and starts a daemon thread.
+	 */
+	public static Thread start(Runnable r, String name) {
+		Thread t = newThread(r, name);
+		t.start();
+		return t;
+	}
+}
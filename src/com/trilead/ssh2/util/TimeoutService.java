@@ -2,8 +2,6 @@ package com.trilead.ssh2.util;
 
 import java.io.PrintWriter;
 import java.io.StringWriter;
-import java.util.Collections;
-import java.util.LinkedList;
 
 import com.trilead.ssh2.log.Logger;
 
@@ -15,7 +13,16 @@ import com.trilead.ssh2.log.Logger;
  * thread. Once all timeouts have expired/are cancelled, the thread will (sooner
  * or later) exit. Only after new timeouts arrive a new thread (singleton) will
  * be instantiated.
- * 
+ * <p>
+ * The timeouts are kept in a hashed timing wheel: a ring of buckets, one per
+ * tick of TICK_MS milliseconds, each holding a doubly linked list of tokens.
+ * Adding, cancelling and rescheduling a timeout take constant time and do not
+ * allocate anything, so a timeout can be armed for each channel and moved on
+ * every packet. Timeouts fire up to TICK_MS late, never early.
+ * <p>
+ * Handlers run in the timeout thread, without holding any lock of the
+ * service. A handler may therefore reschedule its own token.
+ *
  * @author Christian Plattner, plattner@trilead.com
  * @version $Id: TimeoutService.java,v 1.1 2007/10/15 12:49:57 cplattne Exp $
  */
@@ -23,66 +30,117 @@ public class TimeoutService {
 	private static class TimeoutThread extends Thread {
 		@Override
 		public void run() {
-			synchronized (todolist) {
-				while (true) {
-					if (todolist.size() == 0) {
-						timeoutThread = null;
-						return;
-					}
+			while (true) {
+				TimeoutToken expired = null;
 
-					long now = System.currentTimeMillis();
+				synchronized (wheel) {
+					while (true) {
+						if (count == 0) {
+							timeoutThread = null;
+							return;
+						}
 
-					TimeoutToken tt = (TimeoutToken) todolist.getFirst();
+						long nowTick = System.currentTimeMillis() / TICK_MS;
 
-					if (tt.runTime > now) {
-						/* Not ready yet, sleep a little bit */
+						expired = advance(nowTick);
 
-						try {
-							todolist.wait(tt.runTime - now);
-						} catch (InterruptedException e) {
-						}
+						if (expired != null)
+							break;
 
-						/*
-						 * We cannot simply go on, since it could be that the
-						 * token was removed (cancelled) or another one has been
-						 * inserted in the meantime.
-						 */
+						/* Not ready yet, sleep until the next occupied bucket */
 
-						continue;
+						wakeTick = nextOccupiedTick();
+
+						long delay = wakeTick * TICK_MS
+								- System.currentTimeMillis();
+
+						if (delay > 0) {
+							try {
+								wheel.wait(delay);
+							} catch (InterruptedException e) {
+							}
+						}
+
+						wakeTick = Long.MAX_VALUE;
 					}
+				}
 
-					todolist.removeFirst();
-
-					try {
-						tt.handler.run();
-					} catch (Exception e) {
-						StringWriter sw = new StringWriter();
-						e.printStackTrace(new PrintWriter(sw));
-						log.log(20,
-								"Exeception in Timeout handler:"
-										+ e.getMessage() + "(" + sw.toString()
-										+ ")");
+				runExpired(expired);
+			}
+		}
+
+		private void runExpired(TimeoutToken expired) {
+			while (expired != null) {
+				TimeoutToken tt;
+				Runnable handler = null;
+
+				synchronized (wheel) {
+					tt = expired;
+					expired = tt.nextExpired;
+					tt.nextExpired = null;
+
+					/* Cancelled or rescheduled in the mean time? */
+
+					if (tt.state == TimeoutToken.FIRING) {
+						tt.state = TimeoutToken.IDLE;
+						handler = tt.handler;
 					}
 				}
+
+				if (handler == null)
+					continue;
+
+				try {
+					handler.run();
+				} catch (Exception e) {
+					StringWriter sw = new StringWriter();
+					e.printStackTrace(new PrintWriter(sw));
+					log.log(20, "Exeception in Timeout handler:" + e.getMessage()
+							+ "(" + sw.toString() + ")");
+				}
 			}
 		}
 	}
 
 	public static class TimeoutToken implements Comparable {
+		static final int IDLE = 0;
+		static final int SCHEDULED = 1;
+		static final int FIRING = 2;
+
 		private long runTime;
 		private Runnable handler;
 
+		/* The following fields are protected by the wheel's monitor */
+
+		private long tick;
+		private int state = IDLE;
+		private TimeoutToken prev;
+		private TimeoutToken next;
+		private TimeoutToken nextExpired;
+
 		private TimeoutToken(long runTime, Runnable handler) {
 			this.runTime = runTime;
 			this.handler = handler;
 		}
 
+		/**
+		 * @return the time (as in <code>System.currentTimeMillis()</code>)
+		 *         at which the handler is due.
+		 */
+		public long getRunTime() {
+			synchronized (wheel) {
+				return runTime;
+			}
+		}
+
 		@Override
 		public int compareTo(Object o) {
 			TimeoutToken t = (TimeoutToken) o;
-			if (runTime > t.runTime)
+			long r1 = getRunTime();
+			long r2 = t.getRunTime();
+			if (r1 > r2)
 				return 1;
-			if (runTime == t.runTime)
+			if (r1 == r2)
 				return 0;
 			return -1;
 		}
@@ -90,14 +148,29 @@ public class TimeoutService {
 
 	private static final Logger log = Logger.getLogger(TimeoutService.class);
 
-	/* The list object is also used for locking purposes */
-	private static final LinkedList todolist = new LinkedList();
+	/* Resolution of the wheel and number of buckets (a power of two) */
+
+	static final long TICK_MS = 10;
+	static final int WHEEL_SIZE = 512;
+	private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+
+	/* The wheel object is also used for locking purposes */
+	private static final TimeoutToken[] wheel = new TimeoutToken[WHEEL_SIZE];
+
+	/* Number of scheduled tokens */
+	private static int count = 0;
+
+	/* The next tick the timeout thread has to process */
+	private static long currentTick = 0;
+
+	/* The tick the timeout thread is sleeping until */
+	private static long wakeTick = Long.MAX_VALUE;
 
 	private static Thread timeoutThread = null;
 
 	/**
 	 * It is assumed that the passed handler will not execute for a long time.
-	 * 
+	 *
 	 * @param runTime
 	 * @param handler
 	 * @return a TimeoutToken that can be used to cancel the timeout.
@@ -106,29 +179,145 @@ public class TimeoutService {
 			Runnable handler) {
 		TimeoutToken token = new TimeoutToken(runTime, handler);
 
-		synchronized (todolist) {
-			todolist.add(token);
-			Collections.sort(todolist);
-
-			if (timeoutThread != null)
-				timeoutThread.interrupt();
-			else {
-				timeoutThread = new TimeoutThread();
-				timeoutThread.setDaemon(true);
-				timeoutThread.start();
-			}
+		synchronized (wheel) {
+			schedule(token, runTime);
 		}
 
 		return token;
 	}
 
+	/**
+	 * Moves a timeout to a new time. If the handler has already run or the
+	 * timeout has been cancelled, it is scheduled again. Constant time, no
+	 * allocation.
+	 *
+	 * @param token
+	 * @param runTime
+	 */
+	public static final void reschedule(TimeoutToken token, long runTime) {
+		synchronized (wheel) {
+			if (token.state == TimeoutToken.SCHEDULED)
+				unlink(token);
+
+			schedule(token, runTime);
+		}
+	}
+
 	public static final void cancelTimeoutHandler(TimeoutToken token) {
-		synchronized (todolist) {
-			todolist.remove(token);
+		synchronized (wheel) {
+			if (token.state == TimeoutToken.SCHEDULED)
+				unlink(token);
 
-			if (timeoutThread != null)
-				timeoutThread.interrupt();
+			token.state = TimeoutToken.IDLE;
 		}
 	}
 
+	/* The following methods are called while holding the wheel's monitor */
+
+	private static void schedule(TimeoutToken token, long runTime) {
+		if (count == 0)
+			currentTick = System.currentTimeMillis() / TICK_MS;
+
+		/* Round up, a timeout must not fire early */
+
+		long tick = (runTime + TICK_MS - 1) / TICK_MS;
+
+		if (tick < currentTick)
+			tick = currentTick;
+
+		token.runTime = runTime;
+		token.tick = tick;
+		token.state = TimeoutToken.SCHEDULED;
+
+		int bucket = (int) (tick & WHEEL_MASK);
+
+		token.prev = null;
+		token.next = wheel[bucket];
+
+		if (token.next != null)
+			token.next.prev = token;
+
+		wheel[bucket] = token;
+		count++;
+
+		if (timeoutThread == null) {
+			timeoutThread = new TimeoutThread();
+			timeoutThread.setDaemon(true);
+			timeoutThread.start();
+		} else if (tick < wakeTick) {
+			wheel.notifyAll();
+		}
+	}
+
+	private static void unlink(TimeoutToken token) {
+		if (token.prev != null)
+			token.prev.next = token.next;
+		else
+			wheel[(int) (token.tick & WHEEL_MASK)] = token.next;
+
+		if (token.next != null)
+			token.next.prev = token.prev;
+
+		token.prev = null;
+		token.next = null;
+		count--;
+	}
+
+	/**
+	 * Processes all ticks up to <code>nowTick</code>.
+	 *
+	 * @return the expired tokens, linked by <code>nextExpired</code>.
+	 */
+	private static TimeoutToken advance(long nowTick) {
+		TimeoutToken expired = null;
+
+		if (nowTick - currentTick >= WHEEL_SIZE) {
+			/* Far behind, one sweep over all buckets does it */
+
+			for (int i = 0; i < WHEEL_SIZE; i++)
+				expired = expire(i, nowTick, expired);
+
+			currentTick = nowTick + 1;
+			return expired;
+		}
+
+		while (currentTick <= nowTick) {
+			expired = expire((int) (currentTick & WHEEL_MASK), currentTick,
+					expired);
+			currentTick++;
+		}
+
+		return expired;
+	}
+
+	private static TimeoutToken expire(int bucket, long tick,
+			TimeoutToken expired) {
+		TimeoutToken tt = wheel[bucket];
+
+		while (tt != null) {
+			TimeoutToken next = tt.next;
+
+			/* Tokens of later rounds stay */
+
+			if (tt.tick <= tick) {
+				unlink(tt);
+				tt.state = TimeoutToken.FIRING;
+				tt.nextExpired = expired;
+				expired = tt;
+			}
+
+			tt = next;
+		}
+
+		return expired;
+	}
+
+	private static long nextOccupiedTick() {
+		for (int i = 0; i < WHEEL_SIZE; i++) {
+			if (wheel[(int) ((currentTick + i) & WHEEL_MASK)] != null)
+				return currentTick + i;
+		}
+
+		return currentTick + WHEEL_SIZE;
+	}
 }
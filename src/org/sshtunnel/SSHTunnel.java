@@ -164,6 +164,7 @@ public class SSHTunnel extends PreferenceActivity implements
 	private CheckBoxPreference isGFWListCheck;
 	private CheckBoxPreference isDNSProxyCheck;
 	private CheckBoxPreference isUpstreamProxyCheck;
+	private CheckBoxPreference isIdleTimeoutCheck;
 
 	private ListPreference profileListPreference;
 
@@ -295,6 +296,7 @@ public class SSHTunnel extends PreferenceActivity implements
 		isGFWListCheck.setEnabled(false);
 		isDNSProxyCheck.setEnabled(false);
 		isUpstreamProxyCheck.setEnabled(false);
+		isIdleTimeoutCheck.setEnabled(false);
 	}
 
 	private void enableAll() {
@@ -326,6 +328,7 @@ public class SSHTunnel extends PreferenceActivity implements
 		isAutoReconnectCheck.setEnabled(true);
 		isDNSProxyCheck.setEnabled(true);
 		isUpstreamProxyCheck.setEnabled(true);
+		isIdleTimeoutCheck.setEnabled(true);
 	}
 
 	private String getVersionName() {
@@ -425,6 +428,7 @@ public class SSHTunnel extends PreferenceActivity implements
 		isGFWListCheck = (CheckBoxPreference) findPreference("isGFWList");
 		isDNSProxyCheck = (CheckBoxPreference) findPreference("isDNSProxy");
 		isUpstreamProxyCheck = (CheckBoxPreference) findPreference("isUpstreamProxy");
+		isIdleTimeoutCheck = (CheckBoxPreference) findPreference("isIdleTimeout");
 
 		registerReceiver(ssidReceiver, new IntentFilter(
 				android.net.ConnectivityManager.CONNECTIVITY_ACTION));
@@ -738,6 +742,7 @@ public class SSHTunnel extends PreferenceActivity implements
 
 		isAutoReconnectCheck.setChecked(profile.isAutoReconnect());
 		isDNSProxyCheck.setChecked(profile.isDNSProxy());
+		isIdleTimeoutCheck.setChecked(profile.isIdleTimeout());
 	}
 
 	@Override
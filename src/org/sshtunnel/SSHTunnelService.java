@@ -99,6 +99,7 @@ import com.trilead.ssh2.InteractiveCallback;
 import com.trilead.ssh2.KnownHosts;
 import com.trilead.ssh2.LocalPortForwarder;
 import com.trilead.ssh2.ServerHostKeyVerifier;
+import com.trilead.ssh2.transport.SendFlow;
 
 public class SSHTunnelService extends Service implements ServerHostKeyVerifier,
 		InteractiveCallback, ConnectionMonitor {
@@ -484,6 +485,29 @@ public class SSHTunnelService extends Service implements ServerHostKeyVerifier,
 			if (proxyData != null)
 				connection.setProxyData(proxyData);
 
+			/* Lets the writer interleave DNS with bulk transfers */
+			connection.setTransportWriterThread(true);
+
+			/*
+			 * Let bulk downloads grow their windows, but not so far that
+			 * hundreds of stalled browser connections exhaust the heap
+			 */
+			connection.setMaxChannelWindowSize(256 * 1024);
+
+			/*
+			 * Fail open requests the server does not answer. Idle forwarded
+			 * connections (IMAP IDLE, push channels, ...) are only reaped if
+			 * the profile asks for it.
+			 */
+			if (profile.isIdleTimeout())
+				connection.setChannelTimeouts(30 * 1000, 30 * 60 * 1000,
+						5 * 60 * 1000);
+			else
+				connection.setChannelTimeouts(30 * 1000, 0, 0);
+
+			/* Rekey after 1 GB or an hour, as RFC 4253 recommends */
+			connection.setRekeyThresholds(1024L * 1024 * 1024, 0, 60 * 60 * 1000);
+
 			connection.addConnectionMonitor(this);
 
 			/*
@@ -635,6 +659,7 @@ public class SSHTunnelService extends Service implements ServerHostKeyVerifier,
 
 			dnspf = connection.createLocalPortForwarder(8053, "www.google.com",
 					80);
+			dnspf.setSendWeight(SendFlow.WEIGHT_INTERACTIVE);
 
 			if (profile.isSocks()) {
 				dpf = connection.createDynamicPortForwarder(profile
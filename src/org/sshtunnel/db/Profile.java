@@ -56,6 +56,8 @@ public class Profile {
 	boolean isActive;
 	@DatabaseField
 	boolean isUpstreamProxy;
+	@DatabaseField
+	boolean isIdleTimeout;
 
 	Profile() {
 		// needed by ormlite
@@ -78,6 +80,7 @@ public class Profile {
 		this.isSocks = false;
 		this.isDNSProxy = true;
 		this.isUpstreamProxy = false;
+		this.isIdleTimeout = false;
 		this.keyPath = "/sdcard/sshtunnel/key";
 		this.ssid = "";
 		this.proxyedApps = "";
@@ -169,6 +172,10 @@ public class Profile {
 	public boolean isUpstreamProxy() {
 		return isUpstreamProxy;
 	}
+	
+	public boolean isIdleTimeout() {
+		return isIdleTimeout;
+	}
 
 	public void setAutoConnect(boolean isAutoConnect) {
 		this.isAutoConnect = isAutoConnect;
@@ -197,6 +204,10 @@ public class Profile {
 	public void setIsUpstreamProxy(boolean isUpstreamProxy) {
 		this.isUpstreamProxy = isUpstreamProxy;
 	}
+	
+	public void setIdleTimeout(boolean isIdleTimeout) {
+		this.isIdleTimeout = isIdleTimeout;
+	}
 
 	public void setHost(String host) {
 		this.host = host;